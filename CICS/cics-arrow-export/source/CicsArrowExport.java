@@ -0,0 +1,844 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.*;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.*;
+
+import com.google.gson.Gson;
+import com.blackhillsoftware.json.EasySmfGsonBuilder;
+import com.blackhillsoftware.json.util.CompositeEntry;
+import com.blackhillsoftware.smf.*;
+import com.blackhillsoftware.smf.cics.*;
+import com.blackhillsoftware.smf.cics.monitoring.*;
+import com.blackhillsoftware.smf.cics.monitoring.fields.*;
+import com.blackhillsoftware.smf.cics.monitoring.fields.Field;
+
+/**
+ * Export CICS transactions to Apache Arrow IPC stream files.
+ * <p>
+ * The columns are created from the CICS dictionary: a column for each
+ * dictionary field, plus the system, job name and APPLIDs from the
+ * record. CICS clock fields have 2 columns, the time in seconds and the
+ * count. The column type is chosen from the type of the dictionary
+ * field, so it doesn't depend on the values in any transaction.
+ * <p>
+ * A file is written for each different dictionary layout, named
+ * prefix-1.arrows, prefix-2.arrows etc. Transactions are written in
+ * record batches of a fixed number of rows. The system, job name,
+ * APPLID, TRAN and PGMNAME columns are dictionary encoded, with a new
+ * dictionary for each batch. The IPC stream format is used because
+ * the Arrow file format doesn't allow dictionaries to change between
+ * batches.
+ * <p>
+ * The --json option writes the same transactions as newline delimited
+ * JSON in the same format as the smf2json CicsTransactions sample, to
+ * compare the size and speed.
+ * <p>
+ * Java 17 and later need the JVM option
+ * --add-opens=java.base/java.nio=ALL-UNNAMED for Arrow.
+ */
+public class CicsArrowExport
+{
+    private static final int DEFAULT_BATCH_ROWS = 65536;
+
+    /** Columns to dictionary encode, in addition to the record fields */
+    private static final Set<String> ENCODED_FIELDS = new HashSet<>(Arrays.asList("tran", "pgmname"));
+
+    /**
+     * The layouts are cleared if more than this many dictionary instances
+     * are seen, so memory use stays limited.
+     */
+    private static final int MAX_DICTIONARIES = 1000;
+
+    public static void main(String[] args) throws IOException
+    {
+        int batchRows = DEFAULT_BATCH_ROWS;
+        boolean json = false;
+        List<String> names = new ArrayList<>();
+        for (String arg : args)
+        {
+            if (arg.startsWith("--batch="))
+            {
+                batchRows = Integer.parseInt(arg.substring("--batch=".length()));
+            }
+            else if (arg.equals("--json"))
+            {
+                json = true;
+            }
+            else
+            {
+                names.add(arg);
+            }
+        }
+
+        if (names.size() < 2)
+        {
+            System.out.println("Usage: CicsArrowExport [--batch=n] [--json] <output-prefix> <input-name> <input-name2> ...");
+            System.out.println("<output-prefix> Output files are named prefix-1.arrows, prefix-2.arrows etc.");
+            System.out.println("<input-name> can be filename, //DD:DDNAME or //'DATASET.NAME'");
+            System.out.println("CICS dictionary records must be read before the transaction records.");
+            System.out.println("--batch=n  Rows in each record batch, default " + DEFAULT_BATCH_ROWS);
+            System.out.println("--json     Write JSON to prefix.json instead, for comparison");
+            return;
+        }
+
+        String prefix = names.get(0);
+        long transactions = 0;
+        int noDictionary = 0;
+        long start = System.nanoTime();
+
+        try (Exporter exporter = json ? new JsonExporter(prefix) : new ArrowExporter(prefix, batchRows))
+        {
+            for (String name : names.subList(1, names.size()))
+            {
+                try (SmfRecordReader reader = SmfRecordReader.fromName(name)
+                        .include(110, 1))
+                {
+                    for (SmfRecord record : reader)
+                    {
+                        Smf110Record r110 = Smf110Record.from(record);
+                        if (r110.haveDictionary())
+                        {
+                            for (PerformanceRecord transaction : r110.performanceRecords())
+                            {
+                                exporter.add(r110, transaction);
+                                transactions++;
+                            }
+                        }
+                        else
+                        {
+                            noDictionary++;
+                        }
+                    }
+                }
+            }
+            exporter.close();
+
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            System.out.format("%,d transactions, %d file(s), %,.1f MB, %.0f bytes per transaction%n",
+                    transactions,
+                    exporter.files(),
+                    exporter.bytes() / (1024.0 * 1024),
+                    transactions > 0 ? (double) exporter.bytes() / transactions : 0);
+            System.out.format("%.1f seconds, %,.0f transactions/sec, %.1f MB/sec%n",
+                    seconds,
+                    transactions / seconds,
+                    exporter.bytes() / (1024.0 * 1024) / seconds);
+        }
+
+        if (noDictionary > 0)
+        {
+            System.out.format("Skipped %,d records because no applicable dictionary was found.%n",
+                    noDictionary);
+        }
+    }
+
+    private interface Exporter extends Closeable
+    {
+        void add(Smf110Record r110, PerformanceRecord transaction) throws IOException;
+        int files();
+        long bytes();
+    }
+
+    /**
+     * Write transactions to JSON in the same format as the smf2json
+     * CicsTransactions sample
+     */
+    private static class JsonExporter implements Exporter
+    {
+        private final Path path;
+        private final Writer writer;
+        private final Gson gson = new EasySmfGsonBuilder()
+                .cicsClockDetail(true)
+                .includeZeroValues(false)
+                .includeEmptyStrings(false)
+                .includeUnsetFlags(false)
+                .createGson();
+        private boolean closed = false;
+
+        JsonExporter(String prefix) throws IOException
+        {
+            path = Paths.get(prefix + ".json");
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void add(Smf110Record r110, PerformanceRecord transaction) throws IOException
+        {
+            CompositeEntry entry = new CompositeEntry()
+                    .add("time", transaction.getField(Field.STOP))
+                    .add("recordtype", "CICS Transaction")
+                    .add("system", r110.smfsid())
+                    .add("smfmnjbn", r110.mnProductSection().smfmnjbn())
+                    .add("smfmnprn", r110.mnProductSection().smfmnprn())
+                    .add("smfmnspn", r110.mnProductSection().smfmnspn())
+                    .add(transaction);
+            gson.toJson(entry, writer);
+            writer.write('\n');
+        }
+
+        @Override
+        public int files()
+        {
+            return 1;
+        }
+
+        @Override
+        public long bytes()
+        {
+            try
+            {
+                return Files.size(path);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Write transactions to Arrow files, one for each dictionary layout
+     */
+    private static class ArrowExporter implements Exporter
+    {
+        private final String prefix;
+        private final int batchRows;
+        private final BufferAllocator allocator = new RootAllocator();
+
+        // The layout for each dictionary instance, and the file for each
+        // distinct layout. Different dictionary instances can have the
+        // same layout, e.g. CICS regions at the same release. Layouts
+        // are cleared after MAX_DICTIONARIES instances, the files stay
+        // open so they are reused when the layouts are created again.
+        private final Map<Object, Layout> layouts = new IdentityHashMap<>();
+        private final Map<List<String>, ArrowFile> files = new HashMap<>();
+        private long bytes = 0;
+        private boolean closed = false;
+
+        ArrowExporter(String prefix, int batchRows)
+        {
+            this.prefix = prefix;
+            this.batchRows = batchRows;
+        }
+
+        @Override
+        public void add(Smf110Record r110, PerformanceRecord transaction) throws IOException
+        {
+            Layout layout = layouts.get(transaction.getDictionary());
+            if (layout == null)
+            {
+                if (layouts.size() >= MAX_DICTIONARIES)
+                {
+                    layouts.clear();
+                }
+                layout = createLayout(transaction);
+                layouts.put(transaction.getDictionary(), layout);
+            }
+            layout.file.add(r110, transaction, layout.entries);
+        }
+
+        private Layout createLayout(PerformanceRecord transaction) throws IOException
+        {
+            List<DictionaryEntry> entries = new ArrayList<>();
+            List<String> signature = new ArrayList<>();
+            for (DictionaryEntry entry : transaction.getDictionary().entries())
+            {
+                entries.add(entry);
+                signature.add(entry.cmodhead() + ":" + entry.field().getClass().getName());
+            }
+
+            ArrowFile file = files.get(signature);
+            if (file == null)
+            {
+                Path path = Paths.get(String.format("%s-%d.arrows", prefix, files.size() + 1));
+                file = new ArrowFile(path, allocator, batchRows, entries);
+                files.put(signature, file);
+            }
+            return new Layout(file, entries.toArray(new DictionaryEntry[0]));
+        }
+
+        @Override
+        public int files()
+        {
+            return files.size();
+        }
+
+        @Override
+        public long bytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                for (ArrowFile file : files.values())
+                {
+                    file.close();
+                    bytes += Files.size(file.path);
+                }
+                allocator.close();
+            }
+        }
+    }
+
+    private static class Layout
+    {
+        final ArrowFile file;
+        final DictionaryEntry[] entries;
+
+        Layout(ArrowFile file, DictionaryEntry[] entries)
+        {
+            this.file = file;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * An Arrow IPC stream file with a column for each dictionary entry
+     */
+    private static class ArrowFile implements Closeable
+    {
+        private final Path path;
+        private final int batchRows;
+        private final FileChannel channel;
+        private final VectorSchemaRoot root;
+        private final ArrowStreamWriter writer;
+        private final DictionaryProvider.MapDictionaryProvider provider = new DictionaryProvider.MapDictionaryProvider();
+
+        // columns from the record
+        private final Column system;
+        private final Column smfmnjbn;
+        private final Column smfmnprn;
+        private final Column smfmnspn;
+        // columns from the dictionary entries, in the same order as the entries
+        private final Column[] fields;
+        private final List<Column> columns = new ArrayList<>();
+
+        private int rows = 0;
+
+        ArrowFile(Path path, BufferAllocator allocator, int batchRows,
+                List<DictionaryEntry> entries) throws IOException
+        {
+            this.path = path;
+            this.batchRows = batchRows;
+
+            Set<String> names = new HashSet<>();
+            system = addColumn(new EncodedStringColumn(uniqueName("system", names), allocator));
+            smfmnjbn = addColumn(new EncodedStringColumn(uniqueName("smfmnjbn", names), allocator));
+            smfmnprn = addColumn(new EncodedStringColumn(uniqueName("smfmnprn", names), allocator));
+            smfmnspn = addColumn(new EncodedStringColumn(uniqueName("smfmnspn", names), allocator));
+            fields = new Column[entries.size()];
+            for (int i = 0; i < entries.size(); i++)
+            {
+                String name = uniqueName(entries.get(i).cmodhead().trim().toLowerCase(), names);
+                fields[i] = addColumn(createColumn(name, entries.get(i), allocator));
+            }
+
+            List<org.apache.arrow.vector.types.pojo.Field> schemaFields = new ArrayList<>();
+            for (Column column : columns)
+            {
+                schemaFields.addAll(column.fields());
+            }
+            root = VectorSchemaRoot.create(new Schema(schemaFields), allocator);
+            root.allocateNew();
+            int vectorIndex = 0;
+            for (Column column : columns)
+            {
+                int count = column.fields().size();
+                column.bind(root.getFieldVectors().subList(vectorIndex, vectorIndex + count));
+                vectorIndex += count;
+                if (column instanceof EncodedStringColumn)
+                {
+                    provider.put(((EncodedStringColumn) column).dictionary);
+                }
+            }
+
+            channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            writer = new ArrowStreamWriter(root, provider, channel);
+            writer.start();
+        }
+
+        private Column addColumn(Column column)
+        {
+            columns.add(column);
+            return column;
+        }
+
+        private static String uniqueName(String name, Set<String> names)
+        {
+            String result = name;
+            for (int i = 2; !names.add(result); i++)
+            {
+                result = name + "_" + i;
+            }
+            return result;
+        }
+
+        /**
+         * Create a column for a dictionary entry based on the type of the
+         * field. The field class name is also part of the layout signature,
+         * so every dictionary written to a file has the same column types.
+         * Other field types are written as strings.
+         */
+        private static Column createColumn(String name, DictionaryEntry entry, BufferAllocator allocator)
+        {
+            if (entry.field() instanceof ClockField)
+            {
+                return new ClockColumn(name);
+            }
+            if (entry.field() instanceof CountField)
+            {
+                return new LongColumn(name);
+            }
+            if (entry.field() instanceof TimestampField)
+            {
+                return new TimestampColumn(name);
+            }
+            if (entry.field() instanceof ByteStringField)
+            {
+                return new BinaryColumn(name);
+            }
+            if (ENCODED_FIELDS.contains(name))
+            {
+                return new EncodedStringColumn(name, allocator);
+            }
+            return new StringColumn(name);
+        }
+
+        void add(Smf110Record r110, PerformanceRecord transaction, DictionaryEntry[] entries) throws IOException
+        {
+            system.set(rows, r110.smfsid());
+            smfmnjbn.set(rows, r110.mnProductSection().smfmnjbn());
+            smfmnprn.set(rows, r110.mnProductSection().smfmnprn());
+            smfmnspn.set(rows, r110.mnProductSection().smfmnspn());
+            for (int i = 0; i < entries.length; i++)
+            {
+                fields[i].set(rows, transaction.getField(entries[i]));
+            }
+            rows++;
+            if (rows >= batchRows)
+            {
+                writeBatch();
+            }
+        }
+
+        private void writeBatch() throws IOException
+        {
+            for (Column column : columns)
+            {
+                column.finishBatch();
+            }
+            root.setRowCount(rows);
+            writer.writeBatch();
+            for (Column column : columns)
+            {
+                column.reset();
+            }
+            rows = 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (rows > 0)
+            {
+                writeBatch();
+            }
+            writer.end();
+            writer.close();
+            root.close();
+            for (Column column : columns)
+            {
+                column.close();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Converts values to one or more Arrow vectors
+     */
+    private abstract static class Column implements Closeable
+    {
+        protected final String name;
+
+        Column(String name)
+        {
+            this.name = name;
+        }
+
+        /** The fields for the schema */
+        abstract List<org.apache.arrow.vector.types.pojo.Field> fields();
+
+        /** Receive the vectors created for the fields */
+        abstract void bind(List<FieldVector> vectors);
+
+        abstract void set(int row, Object value);
+
+        /** Called before a batch is written */
+        void finishBatch()
+        {
+        }
+
+        /** Called after a batch is written */
+        abstract void reset();
+
+        @Override
+        public void close()
+        {
+        }
+
+        protected static org.apache.arrow.vector.types.pojo.Field field(String name, ArrowType type)
+        {
+            return new org.apache.arrow.vector.types.pojo.Field(name, FieldType.nullable(type), null);
+        }
+    }
+
+    private static class StringColumn extends Column
+    {
+        private VarCharVector vector;
+
+        StringColumn(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Collections.singletonList(field(name, new ArrowType.Utf8()));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            vector = (VarCharVector) vectors.get(0);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (value == null)
+            {
+                vector.setNull(row);
+            }
+            else
+            {
+                vector.setSafe(row, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            vector.reset();
+        }
+    }
+
+    /**
+     * A string column with a dictionary of the values in each batch.
+     * The column vector holds indexes into the dictionary vector.
+     */
+    private static class EncodedStringColumn extends Column
+    {
+        private static long nextId = 0;
+
+        private final DictionaryEncoding encoding = new DictionaryEncoding(nextId++, false, null);
+        private final VarCharVector values;
+        private final Dictionary dictionary;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private IntVector vector;
+
+        EncodedStringColumn(String name, BufferAllocator allocator)
+        {
+            super(name);
+            values = new VarCharVector(name + "-dictionary", allocator);
+            values.allocateNew();
+            dictionary = new Dictionary(values, encoding);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Collections.singletonList(
+                    new org.apache.arrow.vector.types.pojo.Field(name,
+                            new FieldType(true, new ArrowType.Int(32, true), encoding),
+                            null));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            vector = (IntVector) vectors.get(0);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (value == null)
+            {
+                vector.setNull(row);
+                return;
+            }
+            String text = value.toString();
+            Integer index = indexes.get(text);
+            if (index == null)
+            {
+                index = indexes.size();
+                values.setSafe(index, text.getBytes(StandardCharsets.UTF_8));
+                indexes.put(text, index);
+            }
+            vector.setSafe(row, index);
+        }
+
+        @Override
+        void finishBatch()
+        {
+            values.setValueCount(indexes.size());
+        }
+
+        @Override
+        void reset()
+        {
+            vector.reset();
+            values.reset();
+            indexes.clear();
+        }
+
+        @Override
+        public void close()
+        {
+            values.close();
+        }
+    }
+
+    private static class LongColumn extends Column
+    {
+        private BigIntVector vector;
+
+        LongColumn(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Collections.singletonList(field(name, new ArrowType.Int(64, true)));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            vector = (BigIntVector) vectors.get(0);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (value instanceof Number)
+            {
+                vector.setSafe(row, ((Number) value).longValue());
+            }
+            else
+            {
+                vector.setNull(row);
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            vector.reset();
+        }
+    }
+
+    /**
+     * CICS clock: 2 columns, name_seconds and name_count
+     */
+    private static class ClockColumn extends Column
+    {
+        private Float8Vector seconds;
+        private BigIntVector count;
+
+        ClockColumn(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Arrays.asList(
+                    field(name + "_seconds",
+                            new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)),
+                    field(name + "_count", new ArrowType.Int(64, true)));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            seconds = (Float8Vector) vectors.get(0);
+            count = (BigIntVector) vectors.get(1);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (value instanceof CicsClock)
+            {
+                CicsClock clock = (CicsClock) value;
+                seconds.setSafe(row, clock.timerSeconds());
+                count.setSafe(row, clock.count());
+            }
+            else
+            {
+                seconds.setNull(row);
+                count.setNull(row);
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            seconds.reset();
+            count.reset();
+        }
+    }
+
+    /**
+     * Timestamps in microseconds, UTC
+     */
+    private static class TimestampColumn extends Column
+    {
+        private TimeStampMicroTZVector vector;
+
+        TimestampColumn(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Collections.singletonList(field(name, new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC")));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            vector = (TimeStampMicroTZVector) vectors.get(0);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            Instant instant = null;
+            if (value instanceof ZonedDateTime)
+            {
+                instant = ((ZonedDateTime) value).toInstant();
+            }
+            else if (value instanceof OffsetDateTime)
+            {
+                instant = ((OffsetDateTime) value).toInstant();
+            }
+            else if (value instanceof Instant)
+            {
+                instant = (Instant) value;
+            }
+            else if (value instanceof LocalDateTime)
+            {
+                instant = ((LocalDateTime) value).toInstant(ZoneOffset.UTC);
+            }
+
+            if (instant != null)
+            {
+                vector.setSafe(row, instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000);
+            }
+            else
+            {
+                vector.setNull(row);
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            vector.reset();
+        }
+    }
+
+    private static class BinaryColumn extends Column
+    {
+        private VarBinaryVector vector;
+
+        BinaryColumn(String name)
+        {
+            super(name);
+        }
+
+        @Override
+        List<org.apache.arrow.vector.types.pojo.Field> fields()
+        {
+            return Collections.singletonList(field(name, new ArrowType.Binary()));
+        }
+
+        @Override
+        void bind(List<FieldVector> vectors)
+        {
+            vector = (VarBinaryVector) vectors.get(0);
+        }
+
+        @Override
+        void set(int row, Object value)
+        {
+            if (value instanceof byte[])
+            {
+                vector.setSafe(row, (byte[]) value);
+            }
+            else if (value != null)
+            {
+                vector.setSafe(row, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            else
+            {
+                vector.setNull(row);
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            vector.reset();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import com.blackhillsoftware.smf.*;
+import com.blackhillsoftware.smf.realtime.*;
+
+/**
+ * Detect duplicate SMF records in real time.
+ * <p>
+ * This program reads records from an in memory resource and keeps
+ * the hashes of records seen in a sliding window of minutes, based on
+ * the SMF date and time of the records. Duplicate records have the same
+ * SMF time as the original, so each record only needs to be checked
+ * against the hashes for its own minute.
+ * <p>
+ * The hashes for each minute are kept in a bucket in a ring of buckets
+ * covering the window. When a record arrives for a new minute the window
+ * moves forward, and the buckets for minutes that have left the window
+ * are cleared and reused. Each bucket has a maximum size, so memory use
+ * stays constant however long the connection runs.
+ * <p>
+ * A short time after each minute (the report delay) the counts for the
+ * minute are checked, and an alert is printed if the number of duplicates
+ * is greater than or equal to the number of unique records. Duplicates
+ * that arrive after the minute was reported are reported when the minute
+ * leaves the window.
+ * <p>
+ * The program runs until the MVS STOP command is received.
+ */
+public class RtiDeDup
+{
+    private static final int DEFAULT_WINDOW_MINUTES = 120;
+    private static final int DEFAULT_REPORT_DELAY_MINUTES = 5;
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: RtiDeDup <resource-name> [ window-minutes [ report-delay-minutes ] ]");
+            System.out.println("");
+            System.out.println("  window-minutes        Minutes of hashes to keep, default "
+                    + DEFAULT_WINDOW_MINUTES);
+            System.out.println("  report-delay-minutes  Minutes to wait before reporting duplicates,");
+            System.out.println("                        default " + DEFAULT_REPORT_DELAY_MINUTES);
+            return;
+        }
+
+        String inMemoryResource = args[0];
+        int windowMinutes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WINDOW_MINUTES;
+        int reportDelay = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REPORT_DELAY_MINUTES;
+        if (windowMinutes < 1 || reportDelay < 0)
+        {
+            System.out.println("window-minutes must be 1 or greater, and report-delay-minutes 0 or greater");
+            return;
+        }
+        if (reportDelay >= windowMinutes)
+        {
+            System.out.println("Report delay must be less than the window size");
+            return;
+        }
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        DuplicateWindow window = new DuplicateWindow(windowMinutes, reportDelay);
+
+        try (SmfConnection connection =
+                 SmfConnection.forResourceName(inMemoryResource)
+                     .onMissedData(RtiDeDup::handleMissedData)
+                     .disconnectOnStop()
+                     .connect();
+
+             SmfRecordReader reader = SmfRecordReader.fromByteArrays(connection))
+        {
+            for (SmfRecord record : reader)
+            {
+                // We only need 64 bits of the hash to detect duplicates
+                // within a minute
+                long hash = ByteBuffer.wrap(sha1.digest(record.getBytes())).getLong();
+                window.add(record.smfDateTime(), record.recordType(), hash);
+            }
+        }
+
+        // report anything left when we disconnect
+        window.reportAll();
+        System.out.format("Finished, %d records, %d duplicates, %d too old to check, %d not checked "
+                + "because a minute was full.%n",
+                window.records, window.duplicates, window.tooOld, window.notChecked);
+    }
+
+    /**
+     * Process the SMF missed data event. This method prints a message
+     * and indicates that an exception should not be thrown.
+     *
+     * @param e the missed data event information
+     */
+    private static void handleMissedData(MissedDataEvent e)
+    {
+        System.out.println("Missed Data!");
+        e.throwException(false);
+    }
+
+    /**
+     * A sliding window of minutes, with a bucket of record hashes
+     * for each minute.
+     */
+    private static class DuplicateWindow
+    {
+        DuplicateWindow(int minutes, int reportDelay)
+        {
+            this.reportDelay = reportDelay;
+            buckets = new MinuteBucket[minutes];
+            for (int i = 0; i < minutes; i++)
+            {
+                buckets[i] = new MinuteBucket();
+            }
+        }
+
+        private final int reportDelay;
+        private final MinuteBucket[] buckets;
+        private long newestMinute = Long.MIN_VALUE;
+
+        private long records = 0;
+        private long duplicates = 0;
+        private long tooOld = 0;
+        private long notChecked = 0;
+
+        /**
+         * Add a record to the window
+         * @param time the SMF date and time of the record
+         * @param recordType the record type
+         * @param hash the record hash
+         */
+        void add(LocalDateTime time, int recordType, long hash)
+        {
+            records++;
+            long minute = time.toEpochSecond(ZoneOffset.UTC) / 60;
+            if (minute > newestMinute)
+            {
+                advance(minute);
+            }
+            else if (minute <= newestMinute - buckets.length)
+            {
+                // the bucket for this minute has been reused
+                tooOld++;
+                return;
+            }
+
+            MinuteBucket bucket = buckets[(int) Math.floorMod(minute, (long) buckets.length)];
+            if (bucket.minute != minute)
+            {
+                // first record for this minute since the program started
+                bucket.clear(minute);
+            }
+            switch (bucket.add(hash, recordType))
+            {
+            case DUPLICATE:
+                duplicates++;
+                break;
+            case FULL:
+                notChecked++;
+                break;
+            default:
+                break;
+            }
+        }
+
+        /**
+         * Move the window forward to a new minute. Minutes which have
+         * reached the report delay are reported, and buckets for minutes
+         * which are leaving the window are cleared.
+         */
+        private void advance(long minute)
+        {
+            if (newestMinute != Long.MIN_VALUE)
+            {
+                // no need to visit more than one window of minutes
+                long from = Math.max(newestMinute + 1, minute - buckets.length + 1);
+                for (long next = from; next <= minute; next++)
+                {
+                    reportIfActive(next - reportDelay);
+
+                    // The bucket for the new minute was used by a minute
+                    // leaving the window. If the window jumped forward
+                    // the old minute might not have been reported yet.
+                    MinuteBucket leaving = buckets[(int) Math.floorMod(next, (long) buckets.length)];
+                    leaving.report();
+                    leaving.reportLate();
+                    leaving.clear(next);
+                }
+            }
+            newestMinute = minute;
+        }
+
+        private void reportIfActive(long minute)
+        {
+            MinuteBucket bucket = buckets[(int) Math.floorMod(minute, (long) buckets.length)];
+            if (bucket.minute == minute)
+            {
+                bucket.report();
+            }
+        }
+
+        /**
+         * Report all minutes in the window that have not been reported
+         */
+        void reportAll()
+        {
+            if (newestMinute != Long.MIN_VALUE)
+            {
+                for (long minute = newestMinute - buckets.length + 1; minute <= newestMinute; minute++)
+                {
+                    MinuteBucket bucket = buckets[(int) Math.floorMod(minute, (long) buckets.length)];
+                    if (bucket.minute == minute)
+                    {
+                        bucket.report();
+                        bucket.reportLate();
+                    }
+                }
+            }
+        }
+    }
+
+    private enum AddResult { UNIQUE, DUPLICATE, FULL }
+
+    /**
+     * The record hashes and counts for one minute. Hashes are kept in an
+     * open addressing hash table of longs, which grows up to a maximum
+     * size. The arrays are kept when the bucket is reused for a new minute.
+     */
+    private static class MinuteBucket
+    {
+        private static final int INITIAL_CAPACITY = 1 << 10;
+        // 4MB for up to 390,000 records per minute, so the maximum
+        // memory for a 120 minute window is about 480MB
+        private static final int MAX_CAPACITY = 1 << 19;
+
+        private long minute = Long.MIN_VALUE;
+        private long[] hashes = new long[INITIAL_CAPACITY];
+        private int size = 0;
+
+        private int unique = 0;
+        private int duplicates = 0;
+        private int[] duplicatesByType = new int[256];
+
+        private boolean reported = false;
+        private int reportedDuplicates = 0;
+
+        void clear(long newMinute)
+        {
+            minute = newMinute;
+            Arrays.fill(hashes, 0);
+            size = 0;
+            unique = 0;
+            duplicates = 0;
+            Arrays.fill(duplicatesByType, 0);
+            reported = false;
+            reportedDuplicates = 0;
+        }
+
+        AddResult add(long hash, int recordType)
+        {
+            // 0 marks an empty slot
+            if (hash == 0) hash = 1;
+
+            if (size >= hashes.length * 3 / 4)
+            {
+                if (hashes.length >= MAX_CAPACITY)
+                {
+                    return AddResult.FULL;
+                }
+                grow();
+            }
+
+            int mask = hashes.length - 1;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask)
+            {
+                if (hashes[slot] == 0)
+                {
+                    hashes[slot] = hash;
+                    size++;
+                    unique++;
+                    return AddResult.UNIQUE;
+                }
+                if (hashes[slot] == hash)
+                {
+                    duplicates++;
+                    duplicatesByType[recordType]++;
+                    return AddResult.DUPLICATE;
+                }
+            }
+        }
+
+        private void grow()
+        {
+            long[] old = hashes;
+            hashes = new long[old.length * 2];
+            int mask = hashes.length - 1;
+            for (long hash : old)
+            {
+                if (hash != 0)
+                {
+                    int slot = (int) hash & mask;
+                    while (hashes[slot] != 0)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes[slot] = hash;
+                }
+            }
+        }
+
+        /**
+         * Print an alert if the number of duplicates is greater than
+         * or equal to the number of unique records
+         */
+        void report()
+        {
+            if (!reported)
+            {
+                reported = true;
+                reportedDuplicates = duplicates;
+                if (duplicates > 0 && duplicates >= unique)
+                {
+                    printAlert("Duplicate data");
+                }
+            }
+        }
+
+        /**
+         * Print an alert if duplicates arrived after the minute was reported
+         */
+        void reportLate()
+        {
+            if (reported && duplicates > reportedDuplicates && duplicates >= unique)
+            {
+                printAlert("Late duplicate data");
+                reportedDuplicates = duplicates;
+            }
+        }
+
+        private void printAlert(String message)
+        {
+            StringBuilder types = new StringBuilder();
+            for (int recordType = 0; recordType < duplicatesByType.length; recordType++)
+            {
+                if (duplicatesByType[recordType] > 0)
+                {
+                    types.append(String.format(" %d(%d)", recordType, duplicatesByType[recordType]));
+                }
+            }
+            System.out.format("%s %s: records %d, duplicates %d, types:%s%n",
+                    LocalDateTime.ofEpochSecond(minute * 60, 0, ZoneOffset.UTC),
+                    message,
+                    unique + duplicates,
+                    duplicates,
+                    types);
+        }
+    }
+}
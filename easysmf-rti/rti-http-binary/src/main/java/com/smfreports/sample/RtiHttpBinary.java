@@ -5,91 +5,361 @@ import java.net.*;
 import java.net.http.*;
 import java.net.http.HttpRequest.*;
 import java.net.http.HttpResponse.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 import com.blackhillsoftware.smf.realtime.*;
 
 /**
- * Read data from a SMF in memory resource and send the 
+ * Read data from a SMF in memory resource and send the
  * complete SMF records in binary format over HTTP.
+ * <p>
+ * Records are collected in a small pool of reusable buffers. When a
+ * buffer is ready to send it is passed to a sender thread, and the
+ * reading thread continues with the next free buffer. The sender
+ * thread optionally gzip compresses the data, POSTs it and returns the
+ * buffer to the pool. The buffers are sent using
+ * BodyPublishers.ofByteArray with an offset and length, so the data is
+ * not copied into a new array for each request. If all the buffers
+ * are waiting to be sent, reading waits for the sender.
+ * <p>
+ * If a spool directory is specified, the data is written to a
+ * DiskSpool and sent by a separate thread. Reading from the in memory
+ * resource continues if the HTTP server is slow or unavailable, and
+ * data that has not been sent when the program ends is sent when it
+ * is restarted.
  */
 public class RtiHttpBinary
 {
-	public static void main(String[] args) 
-	        throws IOException, InterruptedException, URISyntaxException 
+    /** Maximum data waiting in the spool */
+    private static final long MAX_SPOOL_BYTES = 1024L * 1024 * 1024;
+    /** Send the data when this much is queued */
+    private static final int SEND_THRESHOLD = 10 * 1024 * 1024;
+    /** Maximum length of a SMF record */
+    private static final int MAX_RECORD_LENGTH = 32768;
+    /** Number of buffers: one being filled, the others waiting or being sent */
+    private static final int BUFFERS = 3;
+    /** 
+     * gzip compression level. SMF data compresses well at the fastest 
+     * level, higher levels use much more CPU for a small reduction in size.
+     */
+    private static final int GZIP_LEVEL = Deflater.BEST_SPEED;
+
+	public static void main(String[] args)
+	        throws IOException, InterruptedException, URISyntaxException
 	{
         if (args.length < 2)
         {
-            System.out.println("Usage: RtiHttpBinary <resource-name> <url>");
+            System.out.println("Usage: RtiHttpBinary <resource-name> <url> [ --gzip ] [ spool-directory ]");
             return;
         }
-        
+
         String inMemoryResource = args[0];
         String url = args[1];
-        
-        // Create a HttpClient and request builder (HttpClient requires Java 11) 
-        HttpClient client = 
+        boolean gzip = false;
+        Path spoolDirectory = null;
+        for (int i = 2; i < args.length; i++)
+        {
+            if (args[i].equals("--gzip"))
+            {
+                gzip = true;
+            }
+            else
+            {
+                spoolDirectory = Paths.get(args[i]);
+            }
+        }
+
+        // Create a HttpClient and request builder (HttpClient requires Java 11)
+        HttpClient client =
             HttpClient.newBuilder()
-                .build();    
-        Builder requestBuilder = 
+                .build();
+        Builder requestBuilder =
             HttpRequest.newBuilder(new URI(url))
                 .header("Content-Type", "application/octet-stream");
-        
+        if (gzip)
+        {
+            requestBuilder.header("Content-Encoding", "gzip");
+        }
+
+        // Open the spool and start the thread to send the data
+        DiskSpool spool = null;
+        SpoolForwarder forwarder = null;
+        if (spoolDirectory != null)
+        {
+            spool = DiskSpool.open(spoolDirectory, MAX_SPOOL_BYTES);
+            forwarder = new SpoolForwarder(spool, client, requestBuilder);
+            forwarder.start();
+        }
+
+        Sender sender = new Sender(client, requestBuilder, spool, gzip);
+        sender.start();
+
         // Create the connection to the in memory resource,
         // to be closed when a MVS STOP command is received.
-		try (SmfConnection connection = 
+		try (SmfConnection connection =
 				SmfConnection
-					.forResourceName(inMemoryResource) 
+					.forResourceName(inMemoryResource)
 					.disconnectOnStop()
 					.onMissedData(RtiHttpBinary::handleMissedData)
 					.connect())
 		{
-		    // We can send multiple SMF records in a single post, concatenated 
+		    // We can send multiple SMF records in a single post, concatenated
 		    // in a byte array.
-		    // We queue them in a ByteArrayOutputStream, and send them when 
-		    // the SmfConnection tells us there are no records queued in the 
-		    // connection i.e. the next read is likely to wait, or if the 
+		    // We queue them in a buffer, and send them when
+		    // the SmfConnection tells us there are no records queued in the
+		    // connection i.e. the next read is likely to wait, or if the
 		    // total queued bytes reaches a threshold
-		    
-		    ByteArrayOutputStream outputQueue = new ByteArrayOutputStream();
+
+		    Batch batch = sender.freeBatch();
 
 			for (byte[] record : connection) // read next SMF record
 			{
-				outputQueue.write(record); // add it to our queue
+				batch.add(record); // add it to our queue
 				// if nothing more currently available, or 10MB queued
 				if (!connection.moreQueued()
-						|| outputQueue.size() > 10 * 1024 * 1024)   
+						|| batch.length > SEND_THRESHOLD)
 				{
-				    // send data and create a new queue 
-					sendData(client, requestBuilder, outputQueue.toByteArray());             
-                    outputQueue= new ByteArrayOutputStream();
+				    // pass the data to the sender and get an empty buffer
+					sender.send(batch);
+					batch = sender.freeBatch();
 				}
 			}
 			// end of input, most likely due to MVS STOP command.
 			// send any remaining data
-			if (outputQueue.size() > 0) 
+			if (batch.length > 0)
 			{
-                sendData(client, requestBuilder, outputQueue.toByteArray());             			    
+			    sender.send(batch);
 			}
-		} 	
+		}
+		finally
+		{
+		    sender.finish();
+		}
+
+		// send the remaining spooled data, if the server is accepting it
+		if (spool != null)
+		{
+		    forwarder.finish();
+		    spool.close();
+		}
 	}
 
+    /**
+     * A reusable buffer holding 1 or more complete SMF records
+     */
+    private static class Batch
+    {
+        Batch(int capacity)
+        {
+            data = new byte[capacity];
+        }
+
+        private final byte[] data;
+        private int length = 0;
+        private int records = 0;
+
+        void add(byte[] record)
+        {
+            System.arraycopy(record, 0, data, length, record.length);
+            length += record.length;
+            records++;
+        }
+    }
+
+    /**
+     * A thread that compresses and sends the batches, or adds them
+     * to the spool.
+     */
+    private static class Sender extends Thread
+    {
+        Sender(HttpClient client, Builder requestBuilder, DiskSpool spool, boolean gzip)
+        {
+            super("sender");
+            this.client = client;
+            this.requestBuilder = requestBuilder;
+            this.spool = spool;
+            this.gzip = gzip;
+            for (int i = 0; i < BUFFERS; i++)
+            {
+                free.add(new Batch(SEND_THRESHOLD + MAX_RECORD_LENGTH));
+            }
+            compressed = gzip ? new CompressedBuffer() : null;
+        }
+
+        private final HttpClient client;
+        private final Builder requestBuilder;
+        private final DiskSpool spool;
+        private final boolean gzip;
+
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BUFFERS);
+        // room for all the batches and the end of data marker
+        private final BlockingQueue<Batch> ready = new ArrayBlockingQueue<>(BUFFERS + 1);
+        /** Queued after the last batch to stop the thread */
+        private final Batch endOfData = new Batch(0);
+        private final CompressedBuffer compressed;
+        private volatile Exception failure = null;
+
+        // updated by the sender thread
+        private long records = 0;
+        private long batches = 0;
+        private long bytesRead = 0;
+        private long bytesSent = 0;
+        private final long startTime = System.nanoTime();
+
+        /**
+         * Get an empty batch, waiting if all the batches are in use
+         * @return the batch
+         * @throws InterruptedException if interrupted while waiting
+         */
+        Batch freeBatch() throws InterruptedException
+        {
+            checkFailure();
+            return free.take();
+        }
+
+        /**
+         * Queue a batch to be sent
+         * @param batch the batch
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void send(Batch batch) throws InterruptedException
+        {
+            checkFailure();
+            ready.put(batch);
+        }
+
+        /**
+         * Send the queued batches, wait for the thread to end and
+         * print statistics.
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void finish() throws InterruptedException
+        {
+            ready.put(endOfData);
+            join();
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            System.out.format("%d records, %d batches, %.1f MB read, %.1f MB sent (%.1f:1), %.1f seconds, %.1f MB/sec%n",
+                    records, batches,
+                    bytesRead / (1024.0 * 1024),
+                    bytesSent / (1024.0 * 1024),
+                    bytesSent > 0 ? (double) bytesRead / bytesSent : 0,
+                    seconds,
+                    seconds > 0 ? bytesRead / (1024.0 * 1024) / seconds : 0);
+            checkFailure();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Batch batch;
+                while ((batch = ready.take()) != endOfData)
+                {
+                    sendBatch(batch);
+                    batch.length = 0;
+                    batch.records = 0;
+                    free.put(batch);
+                }
+            }
+            catch (IOException | InterruptedException | RuntimeException e)
+            {
+                // e.g. a failure in gzip, the spool or the HTTP client
+                failure = e;
+                // free the reading thread if it is waiting
+                free.clear();
+                free.add(new Batch(SEND_THRESHOLD + MAX_RECORD_LENGTH));
+            }
+        }
+
+        private void sendBatch(Batch batch) throws IOException, InterruptedException
+        {
+            records += batch.records;
+            batches++;
+            bytesRead += batch.length;
+
+            byte[] payload = batch.data;
+            int length = batch.length;
+            if (gzip)
+            {
+                compressed.reset();
+                try (GZIPOutputStream out = new LevelGZIPOutputStream(compressed, GZIP_LEVEL))
+                {
+                    out.write(batch.data, 0, batch.length);
+                }
+                payload = compressed.buffer();
+                length = compressed.size();
+            }
+            bytesSent += length;
+
+            if (spool != null)
+            {
+                spool.append(payload, 0, length);
+            }
+            else
+            {
+                sendData(client, requestBuilder, payload, length);
+            }
+        }
+
+        private void checkFailure()
+        {
+            if (failure != null)
+            {
+                throw new RuntimeException("Sender failed", failure);
+            }
+        }
+    }
+
+    /**
+     * GZIPOutputStream with a compression level
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream
+    {
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException
+        {
+            super(out, 64 * 1024);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that is reused for each batch, giving
+     * access to the buffer so the data isn't copied.
+     */
+    private static class CompressedBuffer extends ByteArrayOutputStream
+    {
+        CompressedBuffer()
+        {
+            super(SEND_THRESHOLD / 2);
+        }
+
+        byte[] buffer()
+        {
+            return buf;
+        }
+    }
+
 	/**
-	 * POST the SMF data to a HTTP server. 
-	 * 
+	 * POST the SMF data to a HTTP server.
+	 *
 	 * @param client a HttpClient
 	 * @param requestBuilder a HttpRequestBuilder
 	 * @param payload the byte array containing 1 or more complete SMF records
+	 * @param length the length of the data in the array
 	 * @throws IOException if the HttpClient send throws an IOException
 	 * @throws InterruptedException if the HttpClient send is interrupted
 	 */
-    private static void sendData(HttpClient client, Builder requestBuilder, byte[] payload)
-            throws IOException, InterruptedException 
+    private static void sendData(HttpClient client, Builder requestBuilder, byte[] payload, int length)
+            throws IOException, InterruptedException
     {
         // create the HttpRequest and POST the records
-        HttpRequest request = 
+        HttpRequest request =
             requestBuilder
-                .POST(BodyPublishers.ofByteArray(payload))
-                .build();					
+                .POST(BodyPublishers.ofByteArray(payload, 0, length))
+                .build();
         HttpResponse<String> response =
             client.send(request, BodyHandlers.ofString());
 
@@ -107,6 +377,6 @@ public class RtiHttpBinary
 	static void handleMissedData(MissedDataEvent e)
 	{
 		System.out.println("Missed Data!");
-		e.throwException(false);	
+		e.throwException(false);
 	}
 }
@@ -0,0 +1,151 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.net.http.*;
+import java.net.http.HttpRequest.*;
+import java.net.http.HttpResponse.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that sends the entries from a DiskSpool to a HTTP server.
+ * <p>
+ * Each spool entry is sent as the body of a POST request. The entry is
+ * committed when the server responds with any 2xx status. If the request
+ * fails, or the server returns an error that might be temporary (5xx,
+ * 408 or 429), the same entry is retried after a delay which doubles
+ * with each failure up to a maximum. Other responses (3xx and 4xx) mean
+ * the server will never accept the entry, so it is reported and skipped.
+ * The HttpClient does not follow redirects for a POST unless it is
+ * configured to do so.
+ * <p>
+ * When the forwarder is stopped it sends the entries remaining in the
+ * spool, but gives up when a request fails. Unsent entries are left in
+ * the spool and sent when the program is restarted.
+ */
+class SpoolForwarder extends Thread
+{
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60 * 1000;
+
+    private final DiskSpool spool;
+    private final HttpClient client;
+    private final Builder requestBuilder;
+
+    private volatile boolean stopping = false;
+    private volatile Exception failure = null;
+
+    private long sent = 0;
+    private long retries = 0;
+    private long skipped = 0;
+
+    /**
+     * Create a SpoolForwarder. The thread must be started using start().
+     *
+     * @param spool the spool
+     * @param client a HttpClient
+     * @param requestBuilder a HttpRequestBuilder
+     */
+    SpoolForwarder(DiskSpool spool, HttpClient client, Builder requestBuilder)
+    {
+        super("spool-forwarder");
+        this.spool = spool;
+        this.client = client;
+        this.requestBuilder = requestBuilder;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                DiskSpool.Entry entry = spool.next(1, TimeUnit.SECONDS);
+                if (entry == null)
+                {
+                    if (stopping)
+                    {
+                        break;
+                    }
+                }
+                else if (deliver(entry))
+                {
+                    spool.commit(entry);
+                }
+                else
+                {
+                    // stopping and the server is not accepting data,
+                    // leave the entry in the spool
+                    break;
+                }
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            failure = e;
+        }
+    }
+
+    /**
+     * Stop the forwarder after it has sent the data in the spool, or
+     * when a request fails, and wait for the thread to end.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if the forwarder failed with an exception
+     */
+    void finish() throws InterruptedException, IOException
+    {
+        stopping = true;
+        join();
+        System.out.format("%d requests sent from spool, %d retries, %d skipped%n", sent, retries, skipped);
+        if (failure != null)
+        {
+            throw new IOException("Spool forwarder failed", failure);
+        }
+    }
+
+    /**
+     * Send an entry, retrying until the server accepts it.
+     * @return true if the entry was sent or skipped and should be
+     * committed, false if stopping and the request failed
+     */
+    private boolean deliver(DiskSpool.Entry entry) throws InterruptedException
+    {
+        long retryMillis = MIN_RETRY_MILLIS;
+        while (true)
+        {
+            HttpRequest request =
+                requestBuilder
+                    .POST(BodyPublishers.ofByteArray(entry.data()))
+                    .build();
+            try
+            {
+                HttpResponse<String> response =
+                    client.send(request, BodyHandlers.ofString());
+                int status = response.statusCode();
+                if (status >= 200 && status < 300)
+                {
+                    sent++;
+                    return true;
+                }
+                System.out.println(status + " " + response.body());
+                if (status < 500 && status != 408 && status != 429)
+                {
+                    // not retryable
+                    skipped++;
+                    return true;
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("POST failed: " + e);
+            }
+            if (stopping)
+            {
+                return false;
+            }
+            retries++;
+            Thread.sleep(retryMillis);
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+}
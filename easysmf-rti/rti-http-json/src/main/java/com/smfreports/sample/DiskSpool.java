@@ -0,0 +1,443 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+
+/**
+ * An append only disk spool between the thread reading SMF data and
+ * the thread sending it over HTTP.
+ * <p>
+ * The reading thread appends entries (e.g. the body of a POST request)
+ * to segment files in the spool directory. It never waits for the
+ * network, so a slow or unavailable HTTP server doesn't hold up reading
+ * from the in memory resource. A sender thread reads the entries in
+ * order, and commits each entry after it has been sent.
+ * <p>
+ * The committed position (segment number and offset) is kept in a
+ * small memory mapped file, so a restarted program continues from the
+ * first entry that was not committed. Segments are deleted when all
+ * their entries have been committed. An entry is committed after the
+ * server accepts it, so if the program ends between sending and
+ * committing the entry it will be sent again after a restart.
+ * <p>
+ * Each entry is written as a 4 byte length followed by the data. If
+ * the program ends part way through writing an entry, the incomplete
+ * entry is removed when the spool is opened.
+ * <p>
+ * If the data waiting to be sent reaches the maximum size, new entries
+ * are discarded until the sender catches up.
+ * <p>
+ * append is called by the reading thread, next and commit by the sender
+ * thread.
+ */
+class DiskSpool implements Closeable
+{
+    private static final long SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String OFFSETS_FILE = "spool.offsets";
+    private static final int HEADER_BYTES = 4;
+    /** Used to check the offsets were written completely */
+    private static final long OFFSETS_CHECK = 0x534D4653504F4F4CL;
+
+    /**
+     * An entry read from the spool
+     */
+    static class Entry
+    {
+        private Entry(byte[] data, long segment, long nextOffset)
+        {
+            this.data = data;
+            this.segment = segment;
+            this.nextOffset = nextOffset;
+        }
+
+        private final byte[] data;
+        private final long segment;
+        private final long nextOffset;
+
+        /**
+         * The data for the entry
+         * @return the data
+         */
+        byte[] data()
+        {
+            return data;
+        }
+    }
+
+    /**
+     * Open a spool, creating the directory if it doesn't exist.
+     *
+     * @param directory the spool directory
+     * @param maxBytes the maximum size of the data waiting to be sent
+     * @return the spool
+     * @throws IOException if an I/O error occurs
+     */
+    static DiskSpool open(Path directory, long maxBytes) throws IOException
+    {
+        Files.createDirectories(directory);
+        return new DiskSpool(directory, maxBytes);
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // reading thread state
+    private long writeSegment;
+    private long writeOffset;
+    private FileChannel writeChannel;
+    private final ByteBuffer writeHeader = ByteBuffer.allocate(HEADER_BYTES);
+    private boolean full = false;
+    private long discardedEntries = 0;
+
+    // sender thread state
+    private long readSegment;
+    private long readOffset;
+    private FileChannel readChannel = null;
+    private long oldestSegment;
+    private final FileChannel offsetsChannel;
+    private final MappedByteBuffer offsets;
+
+    // the position of the end of the data, published by the reading thread
+    private final Lock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private long publishedSegment;
+    private long publishedOffset;
+
+    /** Bytes written but not yet committed */
+    private final AtomicLong backlog = new AtomicLong();
+
+    private DiskSpool(Path directory, long maxBytes) throws IOException
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        offsetsChannel = FileChannel.open(directory.resolve(OFFSETS_FILE),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        offsets = offsetsChannel.map(FileChannel.MapMode.READ_WRITE, 0, 3 * Long.BYTES);
+
+        long committedSegment = offsets.getLong(0);
+        long committedOffset = offsets.getLong(Long.BYTES);
+        if (offsets.getLong(2 * Long.BYTES) != (committedSegment ^ committedOffset ^ OFFSETS_CHECK))
+        {
+            // new or incomplete offsets, start from the oldest segment
+            committedSegment = 0;
+            committedOffset = 0;
+        }
+
+        List<Long> segments = segments();
+        if (segments.isEmpty())
+        {
+            writeSegment = Math.max(committedSegment, 1);
+            readSegment = writeSegment;
+            readOffset = 0;
+            writeChannel = openSegment(writeSegment);
+            writeOffset = 0;
+        }
+        else
+        {
+            long first = segments.get(0);
+            long last = segments.get(segments.size() - 1);
+            if (committedSegment >= first && committedSegment <= last)
+            {
+                readSegment = committedSegment;
+                readOffset = committedOffset;
+            }
+            else
+            {
+                readSegment = first;
+                readOffset = 0;
+            }
+            writeSegment = last;
+            writeChannel = openSegment(writeSegment);
+            writeOffset = validLength(writeChannel);
+            // remove any incomplete entry at the end
+            writeChannel.truncate(writeOffset);
+            writeChannel.position(writeOffset);
+            if (readSegment == writeSegment)
+            {
+                readOffset = Math.min(readOffset, writeOffset);
+            }
+
+            for (long segment : segments)
+            {
+                if (segment < readSegment)
+                {
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+                else
+                {
+                    backlog.addAndGet(segment == writeSegment
+                            ? writeOffset
+                            : Files.size(segmentPath(segment)));
+                }
+            }
+            backlog.addAndGet(-readOffset);
+        }
+        oldestSegment = readSegment;
+        publishedSegment = writeSegment;
+        publishedOffset = writeOffset;
+    }
+
+    /**
+     * Add an entry to the spool. Called by the reading thread.
+     *
+     * @param data the data
+     * @param offset the offset of the entry in the data
+     * @param length the length of the entry
+     * @return true if the entry was added, false if it was discarded
+     * because the spool is full
+     * @throws IOException if an I/O error occurs
+     */
+    boolean append(byte[] data, int offset, int length) throws IOException
+    {
+        if (backlog.get() + HEADER_BYTES + length > maxBytes)
+        {
+            if (!full)
+            {
+                System.out.println("Spool full, discarding data until the sender catches up");
+                full = true;
+            }
+            discardedEntries++;
+            return false;
+        }
+        full = false;
+
+        if (writeOffset > 0 && writeOffset + HEADER_BYTES + length > SEGMENT_BYTES)
+        {
+            nextWriteSegment();
+        }
+        writeHeader.clear();
+        writeHeader.putInt(0, length);
+        ByteBuffer[] buffers = { writeHeader, ByteBuffer.wrap(data, offset, length) };
+        while (writeHeader.hasRemaining() || buffers[1].hasRemaining())
+        {
+            writeChannel.write(buffers);
+        }
+        writeOffset += HEADER_BYTES + length;
+        backlog.addAndGet(HEADER_BYTES + length);
+        publish();
+        return true;
+    }
+
+    /**
+     * Get the next entry from the spool, waiting if no entries are
+     * available. Called by the sender thread.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the entry, or null if no entry is available
+     * @throws IOException if an I/O error occurs
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Entry next(long timeout, TimeUnit unit) throws IOException, InterruptedException
+    {
+        long waitNanos = unit.toNanos(timeout);
+        while (true)
+        {
+            long endSegment;
+            long endOffset;
+            lock.lock();
+            try
+            {
+                while (readSegment == publishedSegment && readOffset >= publishedOffset)
+                {
+                    if (waitNanos <= 0)
+                    {
+                        return null;
+                    }
+                    waitNanos = dataAvailable.awaitNanos(waitNanos);
+                }
+                endSegment = publishedSegment;
+                endOffset = publishedOffset;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            FileChannel channel = readChannel();
+            long segmentEnd = readSegment == endSegment ? endOffset : channel.size();
+            if (readOffset >= segmentEnd)
+            {
+                // this segment is finished
+                channel.close();
+                readChannel = null;
+                readSegment++;
+                readOffset = 0;
+                continue;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, readOffset);
+            byte[] data = new byte[header.getInt(0)];
+            readFully(channel, ByteBuffer.wrap(data), readOffset + HEADER_BYTES);
+            readOffset += HEADER_BYTES + data.length;
+            return new Entry(data, readSegment, readOffset);
+        }
+    }
+
+    /**
+     * Record that an entry has been sent. Segments before the entry's
+     * segment are deleted. Called by the sender thread.
+     *
+     * @param entry the entry
+     * @throws IOException if an I/O error occurs
+     */
+    void commit(Entry entry) throws IOException
+    {
+        offsets.putLong(0, entry.segment);
+        offsets.putLong(Long.BYTES, entry.nextOffset);
+        offsets.putLong(2 * Long.BYTES, entry.segment ^ entry.nextOffset ^ OFFSETS_CHECK);
+        offsets.force();
+        backlog.addAndGet(-(HEADER_BYTES + entry.data.length));
+
+        while (oldestSegment < entry.segment)
+        {
+            Files.deleteIfExists(segmentPath(oldestSegment));
+            oldestSegment++;
+        }
+    }
+
+    /**
+     * The number of bytes waiting to be sent
+     * @return the bytes
+     */
+    long backlog()
+    {
+        return backlog.get();
+    }
+
+    /**
+     * Close the spool. Entries that have not been committed remain
+     * in the spool directory to be sent by the next program using the
+     * spool.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writeChannel.force(false);
+        writeChannel.close();
+        if (readChannel != null)
+        {
+            readChannel.close();
+        }
+        offsetsChannel.close();
+        if (discardedEntries > 0)
+        {
+            System.out.format("%d entries discarded because the spool was full%n", discardedEntries);
+        }
+        if (backlog.get() > 0)
+        {
+            System.out.format("%d bytes remain in spool %s%n", backlog.get(), directory);
+        }
+    }
+
+    private void nextWriteSegment() throws IOException
+    {
+        writeChannel.force(false);
+        writeChannel.close();
+        writeSegment++;
+        writeOffset = 0;
+        writeChannel = openSegment(writeSegment);
+        writeChannel.truncate(0);
+        publish();
+    }
+
+    private void publish()
+    {
+        lock.lock();
+        try
+        {
+            publishedSegment = writeSegment;
+            publishedOffset = writeOffset;
+            dataAvailable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private FileChannel readChannel() throws IOException
+    {
+        if (readChannel == null)
+        {
+            readChannel = FileChannel.open(segmentPath(readSegment), StandardOpenOption.READ);
+        }
+        return readChannel;
+    }
+
+    private FileChannel openSegment(long segment) throws IOException
+    {
+        return FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long segment)
+    {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * The segment numbers in the spool directory, in order
+     */
+    private List<Long> segments() throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files
+                .map(path -> path.getFileName().toString())
+                .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The length of the complete entries in a segment
+     */
+    private static long validLength(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size)
+        {
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length < 0 || position + HEADER_BYTES + length > size)
+            {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        buffer.clear();
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of spool segment");
+            }
+        }
+    }
+}
@@ -5,7 +5,11 @@ import java.net.*;
 import java.net.http.*;
 import java.net.http.HttpRequest.*;
 import java.net.http.HttpResponse.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import com.blackhillsoftware.json.EasySmfGsonBuilder;
 import com.blackhillsoftware.json.util.CompositeEntry;
@@ -18,21 +22,64 @@ import com.google.gson.Gson;
  * Read data from a SMF in memory resource, and post
  * information from job end records (type 30 subtype 5)
  * to a HTTP server in JSON format.  
+ * <p>
+ * Records are sent in batches of newline delimited JSON, one
+ * record per line. A batch is sent when there are no more records
+ * immediately available from the in memory resource, or when it
+ * reaches the maximum number of records, size or age. 
+ * <p>
+ * Batches are sent asynchronously so the program can continue reading
+ * SMF data while waiting for the response. The number of requests in
+ * flight is limited, if the limit is reached reading waits until a
+ * request completes. 
+ * <p>
+ * Specifying a batch size of 1 and 1 request in flight sends each
+ * record in a separate POST and waits for the response.
+ * <p>
+ * If a spool directory is specified, batches are written to a
+ * DiskSpool and sent one at a time by a separate thread. Reading from
+ * the in memory resource continues if the HTTP server is slow or
+ * unavailable, and data that has not been sent when the program ends
+ * is sent when it is restarted.
  *
  */
 public class RtiHttpJson 
 {
+    private static final int DEFAULT_BATCH_RECORDS = 500;
+    private static final int DEFAULT_BATCH_SECONDS = 5;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int MAX_BATCH_CHARS = 10 * 1024 * 1024;
+    /** Maximum data waiting in the spool */
+    private static final long MAX_SPOOL_BYTES = 1024L * 1024 * 1024;
+    
     public static void main(String[] args) 
             throws IOException, InterruptedException, URISyntaxException 
     {
         if (args.length < 2)
         {
-            System.out.println("Usage: RtiHttpJson <resource-name> <url>");
+            System.out.println("Usage: RtiHttpJson <resource-name> <url> [ batch-records [ batch-seconds [ max-in-flight [ spool-directory ] ] ] ]");
+            System.out.println("");
+            System.out.println("  batch-records  Maximum records in each POST, default " 
+                    + DEFAULT_BATCH_RECORDS);
+            System.out.println("  batch-seconds  Maximum seconds to hold a record before sending, default " 
+                    + DEFAULT_BATCH_SECONDS);
+            System.out.println("  max-in-flight  Maximum POST requests waiting for a response, default " 
+                    + DEFAULT_MAX_IN_FLIGHT);
+            System.out.println("  spool-directory  Write batches to a disk spool, sent by a separate thread");
             return;
         }
         
         String inMemoryResource = args[0];
         String url = args[1];
+        int batchRecords = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BATCH_RECORDS;
+        int batchSeconds = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BATCH_SECONDS;
+        int maxInFlight = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MAX_IN_FLIGHT;
+        Path spoolDirectory = args.length > 5 ? Paths.get(args[5]) : null;
+        if (batchRecords < 1 || batchSeconds < 1 || maxInFlight < 1)
+        {
+            System.out.println("batch-records, batch-seconds and max-in-flight must be 1 or greater");
+            return;
+        }
 
         // Create a HttpClient and request builder (HttpClient requires Java 11) 
         HttpClient client = 
@@ -56,81 +103,112 @@ public class RtiHttpJson
                 
                 .createGson();
         
-        // Create the connection, to be closed when a MVS STOP command is received
-        // and wrap it in a SmfRecordReader to include only SMF 30 subtype 5
+        // Open the spool and start the thread to send the data
+        DiskSpool spool = null;
+        SpoolForwarder forwarder = null;
+        if (spoolDirectory != null)
+        {
+            spool = DiskSpool.open(spoolDirectory, MAX_SPOOL_BYTES);
+            forwarder = new SpoolForwarder(spool, client, requestBuilder);
+            forwarder.start();
+        }
+        
+        BatchSender sender = new BatchSender(client, requestBuilder, spool,
+                batchRecords, Duration.ofSeconds(batchSeconds), maxInFlight);
+        
+        // Create the connection, to be closed when a MVS STOP command is received.
+        // We read the byte arrays from the connection instead of using a 
+        // SmfRecordReader, so we can check whether the batch needs to be 
+        // sent after every record, not only after the SMF 30 subtype 5 records.
         try (SmfConnection connection = 
                 SmfConnection.forResourceName(inMemoryResource)
                     .disconnectOnStop()
                     .onMissedData(RtiHttpJson::handleMissedData)
-                    .connect();
-             SmfRecordReader reader =     
-                SmfRecordReader.fromByteArrays(connection)
-                    .include(30, 5)) 
+                    .connect())
         {
             // Read the records
-            for (SmfRecord record : reader) 
+            for (byte[] recordBytes : connection) 
             {
-                // Create the SMF 30 record
-                Smf30Record r30 = Smf30Record.from(record);
-                
-                // A job can generate multiple SMF 30 records, only
-                // the first one has a Completion Section
-                if (r30.completionSection() != null) 
+                SmfRecord record = new SmfRecord(recordBytes);
+                if (record.recordType() == 30 && record.subType() == 5)
                 {
-                    // Create an EasySMF-JSON CompositeEntry and add the interesting data
-                    CompositeEntry compositeEntry = new CompositeEntry();
-                    
-                    compositeEntry.add("time", r30.smfDateTime());
-                    compositeEntry.add("system", r30.system());
-                    compositeEntry.add("jobname", r30.identificationSection().smf30jbn());
-                    compositeEntry.add("jobid", r30.identificationSection().smf30jnm());                    
-                    
-                    LocalDateTime start = r30.identificationSection().smf30std()
-                            .atTime(r30.identificationSection().smf30sit());
+                    // Create the SMF 30 record
+                    Smf30Record r30 = Smf30Record.from(record);
                     
-                    compositeEntry.add("start_time", start);
-                    compositeEntry.add("elapsed", Duration.between(start, r30.smfDateTime()));
-                    
-                    compositeEntry.add("cpTime",
-                            r30.processorAccountingSection().smf30cptSeconds()
-                            + r30.processorAccountingSection().smf30cpsSeconds()
-                            + r30.processorAccountingSection().smf30icuStepInitSeconds()
-                            + r30.processorAccountingSection().smf30icuStepTermSeconds()
-                            + r30.processorAccountingSection().smf30isbStepInitSeconds()
-                            + r30.processorAccountingSection().smf30isbStepTermSeconds()
-                            + r30.processorAccountingSection().smf30iipSeconds()
-                            + r30.processorAccountingSection().smf30rctSeconds()
-                            + r30.processorAccountingSection().smf30hptSeconds()
-                            );
-
-                    compositeEntry.add("ziipTime",
-                            r30.processorAccountingSection().smf30TimeOnZiipSeconds()
-                            );
-                    
-                    // add some complete sections
-                    compositeEntry.add("identification",       r30.identificationSection());
-                    compositeEntry.add("completion",           r30.completionSection());
-                    compositeEntry.add("processor_accounting", r30.processorAccountingSection());
-                    compositeEntry.add("performance",          r30.performanceSection());
-                    compositeEntry.add("io_activity",          r30.ioActivitySection());
-                    compositeEntry.add("storage",              r30.storageSection());
-                    
-                    // generate the JSON
-                    String json = gson.toJson(compositeEntry);
-
-                    // build the post request and send it
-                    HttpRequest request = requestBuilder
-                            .POST(BodyPublishers.ofString(json))
-                            .build();
-                    HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
-
-                    if (response.statusCode() != 200) 
+                    // A job can generate multiple SMF 30 records, only
+                    // the first one has a Completion Section
+                    if (r30.completionSection() != null) 
                     {
-                        System.out.println(response.statusCode() + " " + response.body());
-                    }
-                }             
+                        // generate the JSON and add it to the batch
+                        sender.add(gson.toJson(jobEndEntry(r30)));
+                    }             
+                }
+                // send the batch if nothing more is currently available,
+                // or it has reached the size or age limit
+                if (!connection.moreQueued() || sender.full()) 
+                {
+                    sender.send();
+                }
             }
         }
+        // end of input, most likely due to MVS STOP command.
+        // send any remaining data and wait for the responses
+        sender.close();
+        
+        // send the remaining spooled data, if the server is accepting it
+        if (spool != null)
+        {
+            forwarder.finish();
+            spool.close();
+        }
+    }
+
+    /**
+     * Create an EasySMF-JSON CompositeEntry with the interesting data
+     * from a job end record
+     * @param r30 the SMF 30 record
+     * @return the CompositeEntry
+     */
+    private static CompositeEntry jobEndEntry(Smf30Record r30)
+    {
+        CompositeEntry compositeEntry = new CompositeEntry();
+        
+        compositeEntry.add("time", r30.smfDateTime());
+        compositeEntry.add("system", r30.system());
+        compositeEntry.add("jobname", r30.identificationSection().smf30jbn());
+        compositeEntry.add("jobid", r30.identificationSection().smf30jnm());                    
+        
+        LocalDateTime start = r30.identificationSection().smf30std()
+                .atTime(r30.identificationSection().smf30sit());
+        
+        compositeEntry.add("start_time", start);
+        compositeEntry.add("elapsed", Duration.between(start, r30.smfDateTime()));
+        
+        compositeEntry.add("cpTime",
+                r30.processorAccountingSection().smf30cptSeconds()
+                + r30.processorAccountingSection().smf30cpsSeconds()
+                + r30.processorAccountingSection().smf30icuStepInitSeconds()
+                + r30.processorAccountingSection().smf30icuStepTermSeconds()
+                + r30.processorAccountingSection().smf30isbStepInitSeconds()
+                + r30.processorAccountingSection().smf30isbStepTermSeconds()
+                + r30.processorAccountingSection().smf30iipSeconds()
+                + r30.processorAccountingSection().smf30rctSeconds()
+                + r30.processorAccountingSection().smf30hptSeconds()
+                );
+
+        compositeEntry.add("ziipTime",
+                r30.processorAccountingSection().smf30TimeOnZiipSeconds()
+                );
+        
+        // add some complete sections
+        compositeEntry.add("identification",       r30.identificationSection());
+        compositeEntry.add("completion",           r30.completionSection());
+        compositeEntry.add("processor_accounting", r30.processorAccountingSection());
+        compositeEntry.add("performance",          r30.performanceSection());
+        compositeEntry.add("io_activity",          r30.ioActivitySection());
+        compositeEntry.add("storage",              r30.storageSection());
+        
+        return compositeEntry;
     }
 
     /**
@@ -143,4 +221,157 @@ public class RtiHttpJson
         System.out.println("Missed Data!");
         e.throwException(false);
     }
+
+    /**
+     * Collect JSON records into batches and POST them asynchronously,
+     * with a limit on the number of requests waiting for a response,
+     * or add them to a spool.
+     * <p>
+     * Methods other than the response handling are called on the 
+     * thread reading the SMF data.
+     */
+    private static class BatchSender
+    {
+        BatchSender(HttpClient client, HttpRequest.Builder requestBuilder, DiskSpool spool,
+                int maxRecords, Duration maxAge, int maxInFlight)
+        {
+            this.client = client;
+            this.requestBuilder = requestBuilder;
+            this.spool = spool;
+            this.maxRecords = maxRecords;
+            this.maxAgeNanos = maxAge.toNanos();
+            this.maxInFlight = maxInFlight;
+            inFlight = new Semaphore(maxInFlight);
+        }
+        
+        private final HttpClient client;
+        private final HttpRequest.Builder requestBuilder;
+        private final DiskSpool spool;
+        private final int maxRecords;
+        private final long maxAgeNanos;
+        private final int maxInFlight;
+        private final Semaphore inFlight;
+        
+        private final StringBuilder batch = new StringBuilder();
+        private int batchCount = 0;
+        private long batchStart = 0;
+        
+        private final long startTime = System.nanoTime();
+        private long batches = 0;
+        // updated by the response handling
+        private final AtomicLong recordsSent = new AtomicLong();
+        private final AtomicLong recordsFailed = new AtomicLong();
+        private long recordsSpooled = 0;
+        
+        /**
+         * Add a record to the current batch
+         * @param json the JSON text for the record
+         */
+        void add(String json)
+        {
+            if (batchCount == 0)
+            {
+                batchStart = System.nanoTime();
+            }
+            batch.append(json).append('\n');
+            batchCount++;
+        }
+        
+        /**
+         * Check whether the batch has reached the maximum number of 
+         * records, size or age 
+         * @return true if the batch should be sent
+         */
+        boolean full()
+        {
+            return batchCount > 0 
+                    && (batchCount >= maxRecords
+                        || batch.length() >= MAX_BATCH_CHARS
+                        || System.nanoTime() - batchStart >= maxAgeNanos);
+        }
+        
+        /**
+         * POST the current batch, if it contains any records. Waits if
+         * the maximum number of requests are already in flight. If 
+         * there is a spool, the batch is added to the spool instead.
+         * @throws InterruptedException if interrupted while waiting
+         * @throws IOException if writing to the spool fails
+         */
+        void send() throws InterruptedException, IOException
+        {
+            if (batchCount == 0)
+            {
+                return;
+            }
+            int count = batchCount;
+            if (spool != null)
+            {
+                byte[] payload = batch.toString().getBytes(StandardCharsets.UTF_8);
+                batch.setLength(0);
+                batchCount = 0;
+                batches++;
+                if (spool.append(payload, 0, payload.length))
+                {
+                    recordsSpooled += count;
+                }
+                else
+                {
+                    recordsFailed.addAndGet(count);
+                }
+                return;
+            }
+            HttpRequest request = requestBuilder
+                    .POST(BodyPublishers.ofString(batch.toString()))
+                    .build();
+            batch.setLength(0);
+            batchCount = 0;
+            batches++;
+            
+            inFlight.acquire();
+            client.sendAsync(request, BodyHandlers.ofString())
+                .whenComplete((response, exception) ->
+                {
+                    if (exception != null)
+                    {
+                        System.out.println("POST failed: " + exception);
+                        recordsFailed.addAndGet(count);
+                    }
+                    else if (response.statusCode() != 200) 
+                    {
+                        System.out.println(response.statusCode() + " " + response.body());
+                        recordsFailed.addAndGet(count);
+                    }
+                    else
+                    {
+                        recordsSent.addAndGet(count);
+                    }
+                    inFlight.release();
+                });
+        }
+        
+        /**
+         * Send the remaining records, wait for all the responses and 
+         * print statistics
+         * @throws InterruptedException if interrupted while waiting
+         * @throws IOException if writing to the spool fails
+         */
+        void close() throws InterruptedException, IOException
+        {
+            send();
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            
+            double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+            if (spool != null)
+            {
+                System.out.format("%d records spooled in %d batches, %d discarded, %.1f seconds, %.0f records/sec%n",
+                        recordsSpooled, batches, recordsFailed.get(), seconds,
+                        seconds > 0 ? recordsSpooled / seconds : 0);
+                return;
+            }
+            System.out.format("%d records sent in %d batches, %d failed, %.1f seconds, %.0f records/sec%n",
+                    recordsSent.get(), batches, recordsFailed.get(), seconds,
+                    seconds > 0 ? recordsSent.get() / seconds : 0);
+        }
+    }
 }
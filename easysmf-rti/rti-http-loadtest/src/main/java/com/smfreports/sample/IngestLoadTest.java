@@ -0,0 +1,245 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.net.http.HttpRequest.*;
+import java.net.http.HttpResponse.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.blackhillsoftware.smf.*;
+
+/**
+ * A load test for a HTTP server receiving SMF data, e.g. the
+ * IngestServlet in the rti-http-servlet project.
+ * <p>
+ * The program reads SMF records from a file and divides them into
+ * batches of complete records, like the batches sent by rti-http-binary.
+ * Multiple threads POST the batches to the URL for the specified time.
+ * Each thread sends the next batch as soon as the previous request
+ * completes, so the test measures the sustained rate the server can
+ * accept.
+ * <p>
+ * When the test ends the program reports the data accepted per
+ * second, the request rate, the p50 and p99 latency of the
+ * successful requests and the number of requests rejected by the
+ * server (429 or 503) or failed with other errors.
+ */
+public class IngestLoadTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: IngestLoadTest <url> <smf-file> [threads [seconds [batch-mb]]]");
+            return;
+        }
+
+        URI uri = new URI(args[0]);
+        String smfFile = args[1];
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+        int batchBytes = (int) ((args.length > 4 ? Double.parseDouble(args[4]) : 1) * 1024 * 1024);
+
+        List<byte[]> batches = readBatches(smfFile, batchBytes);
+        if (batches.isEmpty())
+        {
+            System.out.println("No SMF records in " + smfFile);
+            return;
+        }
+        System.out.format("%d batches from %s, %d threads, %d seconds%n",
+                batches.size(), smfFile, threads, seconds);
+
+        HttpClient client =
+            HttpClient.newBuilder()
+                .build();
+        Builder requestBuilder =
+            HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/octet-stream");
+
+        AtomicInteger nextBatch = new AtomicInteger();
+        long startTime = System.nanoTime();
+        long endTime = startTime + TimeUnit.SECONDS.toNanos(seconds);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            // HttpRequest.Builder is not thread safe, each thread needs its own
+            Worker worker = new Worker(client, requestBuilder.copy(), batches, nextBatch, endTime);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Results results = new Results();
+        for (Worker worker : workers)
+        {
+            worker.join();
+            results.add(worker.results);
+        }
+        // requests in progress at the end time extend the test
+        results.print((System.nanoTime() - startTime) / 1_000_000_000.0);
+    }
+
+    /**
+     * Read the SMF file and divide the records into batches of
+     * approximately the specified size.
+     */
+    private static List<byte[]> readBatches(String smfFile, int batchBytes) throws IOException
+    {
+        List<byte[]> batches = new ArrayList<>();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(batchBytes + 32768);
+        try (SmfRecordReader reader = SmfRecordReader.fromName(smfFile))
+        {
+            for (SmfRecord record : reader)
+            {
+                batch.write(record.getBytes());
+                if (batch.size() >= batchBytes)
+                {
+                    batches.add(batch.toByteArray());
+                    batch.reset();
+                }
+            }
+        }
+        if (batch.size() > 0)
+        {
+            batches.add(batch.toByteArray());
+        }
+        return batches;
+    }
+
+    /**
+     * A thread that sends batches until the end time
+     */
+    private static class Worker extends Thread
+    {
+        Worker(HttpClient client, Builder requestBuilder,
+                List<byte[]> batches, AtomicInteger nextBatch, long endTime)
+        {
+            this.client = client;
+            this.requestBuilder = requestBuilder;
+            this.batches = batches;
+            this.nextBatch = nextBatch;
+            this.endTime = endTime;
+        }
+
+        private final HttpClient client;
+        private final Builder requestBuilder;
+        private final List<byte[]> batches;
+        private final AtomicInteger nextBatch;
+        private final long endTime;
+        private final Results results = new Results();
+
+        @Override
+        public void run()
+        {
+            while (System.nanoTime() < endTime)
+            {
+                byte[] batch = batches.get(
+                        Math.floorMod(nextBatch.getAndIncrement(), batches.size()));
+                HttpRequest request =
+                    requestBuilder
+                        .POST(BodyPublishers.ofByteArray(batch))
+                        .build();
+                long start = System.nanoTime();
+                try
+                {
+                    HttpResponse<Void> response =
+                        client.send(request, BodyHandlers.discarding());
+                    long nanos = System.nanoTime() - start;
+                    switch (response.statusCode())
+                    {
+                    case 200:
+                        results.accepted(batch.length, nanos);
+                        break;
+                    case 429:
+                    case 503:
+                        results.rejected++;
+                        // the server asked us to back off
+                        sleep(100);
+                        break;
+                    default:
+                        results.failed(response.statusCode() + " " + request.uri());
+                        break;
+                    }
+                }
+                catch (IOException e)
+                {
+                    results.failed(e.toString());
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters and latencies for one thread, and totals at the end
+     */
+    private static class Results
+    {
+        private long requests = 0;
+        private long bytes = 0;
+        private long rejected = 0;
+        private long failed = 0;
+        private long[] latencies = new long[1024];
+
+        void accepted(int length, long nanos)
+        {
+            if (requests == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[(int) requests] = nanos;
+            requests++;
+            bytes += length;
+        }
+
+        void failed(String message)
+        {
+            // print the first few failures for each thread so the cause is visible
+            if (failed < 5)
+            {
+                System.out.println("Request failed: " + message);
+            }
+            failed++;
+        }
+
+        void add(Results other)
+        {
+            for (int i = 0; i < other.requests; i++)
+            {
+                accepted(0, other.latencies[i]);
+            }
+            bytes += other.bytes;
+            rejected += other.rejected;
+            failed += other.failed;
+        }
+
+        void print(double seconds)
+        {
+            long[] sorted = Arrays.copyOf(latencies, (int) requests);
+            Arrays.sort(sorted);
+            System.out.format("%d requests accepted, %d rejected (429/503), %d failed in %.1f seconds%n",
+                    requests, rejected, failed, seconds);
+            System.out.format("%.1f MB/sec, %.1f requests/sec%n",
+                    bytes / (1024.0 * 1024) / seconds,
+                    (double) requests / seconds);
+            System.out.format("Latency p50 %.1f ms, p99 %.1f ms%n",
+                    percentile(sorted, 50) / 1_000_000.0,
+                    percentile(sorted, 99) / 1_000_000.0);
+        }
+
+        private static long percentile(long[] sorted, int percent)
+        {
+            if (sorted.length == 0)
+            {
+                return 0;
+            }
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(index, 0)];
+        }
+    }
+}
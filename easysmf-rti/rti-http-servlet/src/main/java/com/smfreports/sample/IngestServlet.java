@@ -0,0 +1,379 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.GZIPInputStream;
+
+import com.blackhillsoftware.smf.*;
+import jakarta.servlet.*;
+import jakarta.servlet.http.*;
+
+/**
+ * A servlet to receive SMF data at high volumes, e.g. from the
+ * rti-http-binary and rti-http-json projects.
+ * <p>
+ * Requests are handled asynchronously. The request body is read using
+ * a ReadListener, so container threads are not blocked waiting for
+ * data from slow clients. When the complete body has been received it
+ * is passed to a pool of worker threads through a bounded queue. The
+ * workers decompress the data if it was sent with Content-Encoding:
+ * gzip, read the SMF records and count the records and bytes for
+ * each SMF type. JSON data is counted by line. The response is sent
+ * when the worker has processed the data, so a 200 response means the
+ * data was accepted.
+ * <p>
+ * When the server is overloaded it rejects requests instead of queuing
+ * unlimited data in memory:
+ * <ul>
+ * <li>503 Service Unavailable if the worker queue is full, i.e. the
+ * workers can't keep up with the data arriving</li>
+ * <li>429 Too Many Requests if too many requests are already being
+ * received</li>
+ * </ul>
+ * Both responses include a Retry-After header. The rti-http spool
+ * forwarders retry these responses.
+ * <p>
+ * A GET request returns the counters in text format.
+ */
+public class IngestServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum size of a request body */
+    private static final int MAX_REQUEST_BYTES = 64 * 1024 * 1024;
+    /** Maximum requests being received at the same time */
+    private static final int MAX_REQUESTS_RECEIVING = 64;
+    /** Requests waiting in the worker queue for each worker thread */
+    private static final int QUEUE_PER_WORKER = 4;
+    /** Not defined in HttpServletResponse */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final long ASYNC_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+    private transient ThreadPoolExecutor workers;
+    private final Semaphore receiving = new Semaphore(MAX_REQUESTS_RECEIVING);
+
+    private final Map<Integer, TypeCounters> typeCounters = new ConcurrentSkipListMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder jsonLines = new LongAdder();
+    private final LongAdder rejectedReceiving = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder invalidRequests = new LongAdder();
+
+    @Override
+    public void init() throws ServletException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        workers = new ThreadPoolExecutor(threads, threads,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUE_PER_WORKER),
+                runnable ->
+                {
+                    Thread thread = new Thread(runnable, "ingest-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @Override
+    public void destroy()
+    {
+        workers.shutdown();
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        String contentType = request.getContentType();
+        boolean json;
+        if ("application/octet-stream".equals(contentType))
+        {
+            json = false;
+        }
+        else if (contentType != null && contentType.startsWith("application/json"))
+        {
+            json = true;
+        }
+        else
+        {
+            invalidRequests.increment();
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > MAX_REQUEST_BYTES)
+        {
+            invalidRequests.increment();
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        // Reject the request before reading the data if we are overloaded
+        if (workers.getQueue().remainingCapacity() == 0)
+        {
+            rejectedQueueFull.increment();
+            reject(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (!receiving.tryAcquire())
+        {
+            rejectedReceiving.increment();
+            reject(response, SC_TOO_MANY_REQUESTS);
+            return;
+        }
+
+        String encoding = request.getHeader("Content-Encoding");
+        AsyncContext async = request.startAsync();
+        async.setTimeout(ASYNC_TIMEOUT_MILLIS);
+        ServletInputStream input = request.getInputStream();
+        RequestBody body = new RequestBody(async, input,
+                json, encoding != null && encoding.equalsIgnoreCase("gzip"));
+        // the AsyncListener releases the receiving permit if the request
+        // times out or fails without a call to the ReadListener
+        async.addListener(body);
+        input.setReadListener(body);
+    }
+
+    /**
+     * Write the counters
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        response.setContentType("text/plain");
+        PrintWriter out = response.getWriter();
+        out.format("Requests: %d%n", requests.sum());
+        out.format("MB received: %.1f%n", bytesReceived.sum() / (1024.0 * 1024));
+        out.format("Rejected, too many requests (429): %d%n", rejectedReceiving.sum());
+        out.format("Rejected, queue full (503): %d%n", rejectedQueueFull.sum());
+        out.format("Invalid requests: %d%n", invalidRequests.sum());
+        out.format("Worker queue: %d%n", workers.getQueue().size());
+        out.format("JSON lines: %d%n", jsonLines.sum());
+        out.format("%8s %12s %12s%n", "SMF type", "Records", "MB");
+        for (Map.Entry<Integer, TypeCounters> entry : typeCounters.entrySet())
+        {
+            out.format("%8d %12d %12.1f%n",
+                    entry.getKey(),
+                    entry.getValue().records.sum(),
+                    entry.getValue().bytes.sum() / (1024.0 * 1024));
+        }
+    }
+
+    private static void reject(HttpServletResponse response, int status)
+    {
+        response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        response.setStatus(status);
+    }
+
+    /**
+     * Read the body of a request without blocking, and pass it to the
+     * workers when it is complete.
+     * <p>
+     * The buffer starts small and grows as data arrives, so clients
+     * that send a large Content-Length and no data don't hold memory.
+     */
+    private class RequestBody implements ReadListener, AsyncListener
+    {
+        RequestBody(AsyncContext async, ServletInputStream input,
+                boolean json, boolean gzip)
+        {
+            this.async = async;
+            this.input = input;
+            this.json = json;
+            this.gzip = gzip;
+            data = new byte[INITIAL_BUFFER_BYTES];
+        }
+
+        private final AsyncContext async;
+        private final ServletInputStream input;
+        private final boolean json;
+        private final boolean gzip;
+        private byte[] data;
+        private int length = 0;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        @Override
+        public void onDataAvailable() throws IOException
+        {
+            while (!completed.get() && input.isReady())
+            {
+                if (length == data.length)
+                {
+                    if (length >= MAX_REQUEST_BYTES)
+                    {
+                        invalidRequests.increment();
+                        complete(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        return;
+                    }
+                    data = Arrays.copyOf(data, Math.min(data.length * 2, MAX_REQUEST_BYTES));
+                }
+                int count = input.read(data, length, data.length - length);
+                if (count < 0)
+                {
+                    return;
+                }
+                length += count;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException
+        {
+            releaseReceiving();
+            if (completed.get())
+            {
+                // already rejected
+                return;
+            }
+            bytesReceived.add(length);
+            try
+            {
+                workers.execute(this::process);
+            }
+            catch (RejectedExecutionException e)
+            {
+                rejectedQueueFull.increment();
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+                complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            if (!completed.get())
+            {
+                invalidRequests.increment();
+                complete(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event)
+        {
+            if (!completed.get())
+            {
+                invalidRequests.increment();
+                complete(HttpServletResponse.SC_REQUEST_TIMEOUT);
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event)
+        {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+            // completed by the container, e.g. the client disconnected
+            releaseReceiving();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        /**
+         * Process the data on a worker thread
+         */
+        private void process()
+        {
+            try
+            {
+                InputStream in = new ByteArrayInputStream(data, 0, length);
+                if (gzip)
+                {
+                    in = new GZIPInputStream(in, 64 * 1024);
+                }
+                if (json)
+                {
+                    countJson(in);
+                }
+                else
+                {
+                    countSmfRecords(in);
+                }
+                requests.increment();
+                complete(HttpServletResponse.SC_OK);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // not valid SMF data
+                invalidRequests.increment();
+                complete(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        }
+
+        private void countSmfRecords(InputStream in) throws IOException
+        {
+            try (SmfRecordReader reader = SmfRecordReader.fromStream(in))
+            {
+                for (SmfRecord record : reader)
+                {
+                    // Process the record according to its type. This
+                    // sample just counts the records.
+                    typeCounters.computeIfAbsent(record.recordType(), key -> new TypeCounters())
+                        .add(record.recordLength());
+                }
+            }
+        }
+
+        private void countJson(InputStream in) throws IOException
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8")))
+            {
+                long lines = 0;
+                while (reader.readLine() != null)
+                {
+                    lines++;
+                }
+                jsonLines.add(lines);
+            }
+        }
+
+        private void complete(int status)
+        {
+            releaseReceiving();
+            if (completed.compareAndSet(false, true))
+            {
+                ((HttpServletResponse) async.getResponse()).setStatus(status);
+                async.complete();
+            }
+        }
+
+        private void releaseReceiving()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                receiving.release();
+            }
+        }
+    }
+
+    /**
+     * Counters for a SMF record type
+     */
+    private static class TypeCounters
+    {
+        private final LongAdder records = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        void add(int length)
+        {
+            records.increment();
+            bytes.add(length);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.smfreports.sample;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
 import com.blackhillsoftware.smf.*;
 import jakarta.servlet.*;
 import jakarta.servlet.http.*;
@@ -18,6 +21,8 @@ import jakarta.servlet.http.*;
  * and EasySMF-JSON
  * </ol>
  * <p>
+ * Data sent with Content-Encoding: gzip is decompressed as it is read.
+ * <p>
  * The Jetty Maven plugin can be used to run this servlet:
  * <p>
  * mvn jetty:run -Djetty.http.port=9999
@@ -41,11 +46,11 @@ public class RtiServlet extends HttpServlet
         	switch(request.getContentType())
         	{
         	case "application/octet-stream":
-                receiveSmfData(request);   
+                receiveSmfData(requestData(request));   
                 response.setStatus(HttpServletResponse.SC_OK);
                 break;
         	case "application/json":
-                receiveJson(request);
+                receiveJson(requestData(request), request.getCharacterEncoding());
                 response.setStatus(HttpServletResponse.SC_OK);   
                 break;
                 
@@ -58,15 +63,29 @@ public class RtiServlet extends HttpServlet
     }
 
     /**
-     * Process a POST containing binary SMF data
+     * Get the data from the request, decompressing it if necessary
      * @param request the request
-     * @throws IOException if an error is encountered reading the data eg if it is not valid SMF data 
+     * @return an InputStream to read the data
+     * @throws IOException if an I/O error occurs
      */
-    private void receiveSmfData(HttpServletRequest request) throws IOException 
+    private InputStream requestData(HttpServletRequest request) throws IOException
     {
-        // Get the data from the request
         InputStream inputStream = request.getInputStream();
-        
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding != null && encoding.equalsIgnoreCase("gzip"))
+        {
+            return new GZIPInputStream(inputStream, 64 * 1024);
+        }
+        return inputStream;
+    }
+    
+    /**
+     * Process a POST containing binary SMF data
+     * @param inputStream the request data
+     * @throws IOException if an error is encountered reading the data eg if it is not valid SMF data 
+     */
+    private void receiveSmfData(InputStream inputStream) throws IOException 
+    {
         // Read it as a sequence of SMF records 
         try (SmfRecordReader reader = 
                 SmfRecordReader.fromStream(inputStream))
@@ -84,14 +103,16 @@ public class RtiServlet extends HttpServlet
 
     /**
      * Process a post containing JSON data
-     * @param request the request
+     * @param inputStream the request data
+     * @param charset the character encoding from the request, or null for UTF-8
      * @throws IOException if an I/O error occurs
      */
-    private void receiveJson(HttpServletRequest request) throws IOException 
+    private void receiveJson(InputStream inputStream, String charset) throws IOException 
     {
         // get the request data as a character stream
         try (BufferedReader reader = 
-                request.getReader())
+                new BufferedReader(new InputStreamReader(inputStream, 
+                        charset != null ? charset : StandardCharsets.UTF_8.name())))
         {
             // read and print each line
             String line;
@@ -0,0 +1,130 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.util.*;
+
+import com.blackhillsoftware.smf.*;
+
+/**
+ * Replay SMF records from a file using SmfReplay, and report the rates
+ * and timing as they are read.
+ * <p>
+ * The program reads the records in the same way as the real time
+ * samples: it creates a SmfRecord for each byte array, and collects
+ * the records into batches which end when moreQueued() returns false,
+ * like rti-http-binary. Every 10 seconds it prints the records and MB
+ * read, the number of batches, missed data events and the maximum lag
+ * behind the replay timing.
+ * <p>
+ * This can be used to check the data and timing before running a real
+ * time sample against the same replay, and to measure the replay
+ * overhead at maximum speed.
+ */
+public class RtiReplay
+{
+    private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: RtiReplay <smf-file> [ --speed n | --speed max ] [ --missed-data interval,records ] [ --loop ]");
+            return;
+        }
+
+        SmfReplay.Builder builder = SmfReplay.forFile(args[0])
+                .onMissedData(RtiReplay::handleMissedData)
+                .disconnectOnStop();
+        for (int i = 1; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+            case "--speed":
+                String speed = args[++i];
+                if (speed.equalsIgnoreCase("max"))
+                {
+                    builder.maximumSpeed();
+                }
+                else
+                {
+                    builder.speed(Double.parseDouble(speed));
+                }
+                break;
+            case "--missed-data":
+                String[] missed = args[++i].split(",");
+                builder.injectMissedData(Long.parseLong(missed[0]),
+                        missed.length > 1 ? Integer.parseInt(missed[1]) : 1);
+                break;
+            case "--loop":
+                builder.loop();
+                break;
+            default:
+                System.out.println("Unknown argument: " + args[i]);
+                return;
+            }
+        }
+
+        Map<Integer, Long> recordTypes = new TreeMap<>();
+        long bytes = 0;
+        long batches = 0;
+        long startTime = System.nanoTime();
+        long nextReport = startTime + REPORT_INTERVAL_NANOS;
+
+        try (SmfReplay connection = builder.connect())
+        {
+            for (byte[] record : connection)
+            {
+                // create a SMF record as the real time samples do
+                SmfRecord smfrecord = new SmfRecord(record);
+                recordTypes.merge(smfrecord.recordType(), 1L, Long::sum);
+                bytes += record.length;
+
+                if (!connection.moreQueued())
+                {
+                    // a real time program would send or process the batch here
+                    batches++;
+                }
+                // check on every record, at maximum speed or when the
+                // program falls behind moreQueued() stays true
+                long now = System.nanoTime();
+                if (now >= nextReport)
+                {
+                    report(connection, bytes, batches, now - startTime);
+                    nextReport = now + REPORT_INTERVAL_NANOS;
+                }
+            }
+            report(connection, bytes, batches, System.nanoTime() - startTime);
+        }
+
+        System.out.format("%8s %12s%n", "SMF type", "Records");
+        for (Map.Entry<Integer, Long> entry : recordTypes.entrySet())
+        {
+            System.out.format("%8d %12d%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void report(SmfReplay connection, long bytes, long batches, long nanos)
+    {
+        double seconds = nanos / 1_000_000_000.0;
+        System.out.format("%d records, %.1f MB, %d batches, %d missed data, %.1f seconds, %.0f records/sec, %.1f MB/sec, max lag %d ms%n",
+                connection.delivered(),
+                bytes / (1024.0 * 1024),
+                batches,
+                connection.missedDataEvents(),
+                seconds,
+                seconds > 0 ? connection.delivered() / seconds : 0,
+                seconds > 0 ? bytes / (1024.0 * 1024) / seconds : 0,
+                connection.maximumLagMillis());
+    }
+
+    /**
+     * Process the missed data event. This method prints a message
+     * and indicates that an exception should not be thrown.
+     * @param e the missed data event information
+     */
+    static void handleMissedData(SmfReplay.MissedDataEvent e)
+    {
+        System.out.println("Missed Data! " + e.records() + " records");
+        e.throwException(false);
+    }
+}
@@ -0,0 +1,484 @@
+package com.smfreports.sample;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+import com.blackhillsoftware.smf.*;
+
+/**
+ * Replay SMF records from a file as if they were being read from a SMF
+ * in memory resource.
+ * <p>
+ * SmfReplay provides the same functions as the EasySMF-RTI SmfConnection
+ * used by the samples: it is an Iterable of byte arrays, with a stream()
+ * method, moreQueued() and a missed data handler. This allows the
+ * real time samples to be run and tested using recorded SMF data on
+ * any system, not only on z/OS.
+ * <p>
+ * Records are delivered according to the SMF record times:
+ * <ul>
+ * <li>at the original timing (the default)</li>
+ * <li>faster or slower by a speed factor e.g. speed(10) replays 1 hour of
+ * data in 6 minutes</li>
+ * <li>as fast as they can be read, using maximumSpeed()</li>
+ * </ul>
+ * SMF record times are not always in sequence, e.g. if the file contains
+ * data from multiple systems. A record with a time earlier than a previous
+ * record is delivered immediately.
+ * <p>
+ * moreQueued() returns true if the next record is already due, i.e. the
+ * next read will not wait. When the program reads more slowly than the
+ * records are due, records queue up as they would in the in memory
+ * resource. {@link #maximumLagMillis()} reports how far behind the
+ * program fell.
+ * <p>
+ * injectMissedData(interval, records) simulates the in memory resource
+ * wrapping before the data is read. After every interval records the
+ * following records are skipped and the missed data handler is called
+ * before the next record is returned. As with SmfConnection, an
+ * exception is thrown unless the handler calls
+ * {@link MissedDataEvent#throwException(boolean) throwException(false)}.
+ * <p>
+ * To run one of the samples using replayed data, copy this class into the
+ * sample project and change the connection e.g.
+ * <pre>
+ * try (SmfReplay connection =
+ *          SmfReplay.forFile(fileName)
+ *              .speed(10)
+ *              .onMissedData(RtiSimple::handleMissedData)
+ *              .disconnectOnStop()
+ *              .connect())
+ * </pre>
+ * and change the missed data handler parameter to SmfReplay.MissedDataEvent.
+ */
+public class SmfReplay implements Iterable<byte[]>, Closeable
+{
+    /** Check for close() at least this often while waiting */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Start building a SmfReplay for a file.
+     * @param fileName the name of the file containing SMF records
+     * @return a Builder
+     */
+    public static Builder forFile(String fileName)
+    {
+        return new Builder(fileName);
+    }
+
+    /**
+     * Build a SmfReplay with the required options
+     */
+    public static class Builder
+    {
+        private Builder(String fileName)
+        {
+            this.fileName = fileName;
+        }
+
+        private final String fileName;
+        private double speed = 1;
+        private long missedDataInterval = 0;
+        private int missedDataRecords = 0;
+        private boolean loop = false;
+        private Consumer<MissedDataEvent> missedDataHandler = null;
+
+        /**
+         * Replay the records at a multiple of the original rate.
+         * @param speed the speed factor, e.g. 1 for original timing,
+         * 10 to replay 10 times faster than the records were written
+         * @return this Builder
+         */
+        public Builder speed(double speed)
+        {
+            if (!(speed > 0))
+            {
+                throw new IllegalArgumentException("Speed must be greater than zero: " + speed);
+            }
+            this.speed = speed;
+            return this;
+        }
+
+        /**
+         * Replay the records as fast as they can be read, ignoring
+         * the record times.
+         * @return this Builder
+         */
+        public Builder maximumSpeed()
+        {
+            speed = Double.POSITIVE_INFINITY;
+            return this;
+        }
+
+        /**
+         * Simulate missed data by skipping records at regular intervals.
+         * @param interval skip records after every interval records delivered
+         * @param records the number of records to skip
+         * @return this Builder
+         */
+        public Builder injectMissedData(long interval, int records)
+        {
+            if (interval <= 0 || records <= 0)
+            {
+                throw new IllegalArgumentException("Interval and records must be greater than zero");
+            }
+            missedDataInterval = interval;
+            missedDataRecords = records;
+            return this;
+        }
+
+        /**
+         * Start again from the beginning of the file at the end, for
+         * long running tests. Timing continues from the last record,
+         * and the replay ends when it is closed.
+         * @return this Builder
+         */
+        public Builder loop()
+        {
+            loop = true;
+            return this;
+        }
+
+        /**
+         * Specify a handler to be called when data is missed.
+         * @param handler the missed data handler
+         * @return this Builder
+         */
+        public Builder onMissedData(Consumer<MissedDataEvent> handler)
+        {
+            missedDataHandler = handler;
+            return this;
+        }
+
+        /**
+         * Accepted for compatibility with SmfConnection. There is no
+         * STOP command for a replay, it ends at the end of the file or
+         * when it is closed.
+         * @return this Builder
+         */
+        public Builder disconnectOnStop()
+        {
+            return this;
+        }
+
+        /**
+         * Open the file and create the SmfReplay.
+         * @return the SmfReplay
+         * @throws IOException if the file cannot be opened
+         */
+        public SmfReplay connect() throws IOException
+        {
+            return new SmfReplay(this);
+        }
+    }
+
+    /**
+     * Information about records skipped by injectMissedData
+     */
+    public static class MissedDataEvent
+    {
+        private MissedDataEvent(int records)
+        {
+            this.records = records;
+        }
+
+        private final int records;
+        private boolean throwException = true;
+
+        /**
+         * Indicate whether an exception should be thrown after the
+         * handler returns. The default is true.
+         * @param throwException false to continue reading
+         */
+        public void throwException(boolean throwException)
+        {
+            this.throwException = throwException;
+        }
+
+        /**
+         * The number of records skipped
+         * @return the number of records
+         */
+        public int records()
+        {
+            return records;
+        }
+    }
+
+    private SmfReplay(Builder builder) throws IOException
+    {
+        fileName = builder.fileName;
+        speed = builder.speed;
+        missedDataInterval = builder.missedDataInterval;
+        missedDataRecords = builder.missedDataRecords;
+        loop = builder.loop;
+        missedDataHandler = builder.missedDataHandler;
+        open();
+        readNext();
+        // records are due relative to the connection time
+        startNanos = System.nanoTime();
+    }
+
+    private final String fileName;
+    private final double speed;
+    private final long missedDataInterval;
+    private final int missedDataRecords;
+    private final boolean loop;
+    private final Consumer<MissedDataEvent> missedDataHandler;
+
+    private SmfRecordReader reader;
+    private Iterator<SmfRecord> records;
+    private volatile boolean closed = false;
+    /** The thread that created the iterator, which reads the file */
+    private volatile Thread readingThread = null;
+
+    /** The next record, read ahead so moreQueued() can check the time */
+    private byte[] next = null;
+    /** When the next record is due, relative to the start of the replay */
+    private long nextDueNanos = 0;
+    /** Replay time, the total of the time increases between records */
+    private long replayNanos = 0;
+    private LocalDateTime previousTime = null;
+    private final long startNanos;
+
+    private long delivered = 0;
+    private int missedPending = 0;
+    private long missedEvents = 0;
+    private long maximumLagNanos = 0;
+
+    /**
+     * Get an iterator for the records. SmfReplay can only be iterated once.
+     */
+    @Override
+    public Iterator<byte[]> iterator()
+    {
+        if (readingThread != null)
+        {
+            throw new IllegalStateException("SmfReplay can only be iterated once");
+        }
+        readingThread = Thread.currentThread();
+        return new Iterator<byte[]>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return waitForNext();
+            }
+
+            @Override
+            public byte[] next()
+            {
+                if (!waitForNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return take();
+            }
+        };
+    }
+
+    /**
+     * Get the records as a Stream
+     * @return a Stream of byte arrays
+     */
+    public Stream<byte[]> stream()
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Indicates whether another record is available without waiting.
+     * @return true if the next record is due
+     */
+    public boolean moreQueued()
+    {
+        return !closed && next != null && System.nanoTime() - startNanos >= nextDueNanos;
+    }
+
+    /**
+     * The maximum time records waited after they were due before they
+     * were read, i.e. how far the program fell behind the replay.
+     * Always 0 at maximum speed.
+     * @return the maximum lag in milliseconds
+     */
+    public long maximumLagMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maximumLagNanos);
+    }
+
+    /**
+     * The number of records delivered
+     * @return the number of records
+     */
+    public long delivered()
+    {
+        return delivered;
+    }
+
+    /**
+     * The number of missed data events
+     * @return the number of events
+     */
+    public long missedDataEvents()
+    {
+        return missedEvents;
+    }
+
+    /**
+     * Close the replay. A thread waiting for the next record returns
+     * end of data.
+     * <p>
+     * If close is called from another thread, the reading thread closes
+     * the file when it sees the replay is closed, so the file is not
+     * closed while it is being read.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        Thread reading = readingThread;
+        if (reading == null || reading == Thread.currentThread())
+        {
+            closeReader();
+        }
+    }
+
+    /**
+     * Wait until the next record is due and report missed data.
+     * @return false at the end of the data
+     */
+    private boolean waitForNext()
+    {
+        if (next == null || closed)
+        {
+            closeReader();
+            return false;
+        }
+        long wait;
+        while ((wait = nextDueNanos - (System.nanoTime() - startNanos)) > 0)
+        {
+            LockSupport.parkNanos(Math.min(wait, MAX_WAIT_NANOS));
+            if (closed)
+            {
+                closeReader();
+                return false;
+            }
+        }
+        if (!Double.isInfinite(speed))
+        {
+            maximumLagNanos = Math.max(maximumLagNanos, -wait);
+        }
+
+        if (missedPending > 0)
+        {
+            MissedDataEvent event = new MissedDataEvent(missedPending);
+            missedPending = 0;
+            missedEvents++;
+            if (missedDataHandler != null)
+            {
+                missedDataHandler.accept(event);
+            }
+            if (event.throwException)
+            {
+                throw new UncheckedIOException(
+                        new IOException("Missed data: " + event.records() + " records"));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the next record and read the one after
+     */
+    private byte[] take()
+    {
+        byte[] result = next;
+        delivered++;
+        if (missedDataInterval > 0 && delivered % missedDataInterval == 0)
+        {
+            for (int i = 0; i < missedDataRecords && readNext(); i++)
+            {
+                missedPending++;
+            }
+        }
+        readNext();
+        return result;
+    }
+
+    /**
+     * Read the next record from the file and calculate when it is due.
+     * @return false at the end of the data
+     */
+    private boolean readNext()
+    {
+        if (closed)
+        {
+            next = null;
+            return false;
+        }
+        if (!records.hasNext() && loop)
+        {
+            closeReader();
+            try
+            {
+                open();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (!records.hasNext())
+        {
+            next = null;
+            return false;
+        }
+
+        SmfRecord record = records.next();
+        next = record.getBytes();
+
+        // Advance the replay time by the increase from the latest record
+        // time so far. Records with earlier times are due immediately.
+        LocalDateTime time = record.smfDateTime();
+        if (previousTime == null)
+        {
+            previousTime = time;
+        }
+        else if (time.isAfter(previousTime))
+        {
+            replayNanos += Duration.between(previousTime, time).toNanos();
+            previousTime = time;
+        }
+        nextDueNanos = Double.isInfinite(speed) ? 0 : (long) (replayNanos / speed);
+        return true;
+    }
+
+    private void open() throws IOException
+    {
+        reader = SmfRecordReader.fromName(fileName);
+        records = reader.iterator();
+        // times in the next pass continue from the last record
+        previousTime = null;
+    }
+
+    private void closeReader()
+    {
+        if (reader != null)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            reader = null;
+        }
+    }
+}
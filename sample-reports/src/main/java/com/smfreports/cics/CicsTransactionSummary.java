@@ -95,12 +95,16 @@ public class CicsTransactionSummary
                 // Headings
                 System.out.format("%n%-8s", applid.getKey());
     
-                System.out.format("%n%-4s %15s %15s %15s %15s %15s %15s%n%n", 
+                System.out.format("%n%-4s %15s %15s %15s %15s %15s %15s %15s %15s %15s %15s%n%n", 
                         "Name", 
                         "Count", 
                         "Avg Elapsed", 
+                        "P95 Elapsed", 
+                        "P99 Elapsed", 
                         "CPU", 
                         "Avg CPU", 
+                        "P95 CPU", 
+                        "P99 CPU", 
                         "Avg Disp.", 
                         "Avg Disp Wait");
     
@@ -111,12 +115,16 @@ public class CicsTransactionSummary
                     .forEachOrdered(txInfo -> 
                     {
                         // write detail line
-                        System.out.format("%-4s %15d %15f %15f %15f %15f %15f%n", 
+                        System.out.format("%-4s %15d %15f %15f %15f %15f %15f %15f %15f %15f %15f%n", 
                                 txInfo.getName(),
                                 txInfo.getCount(), 
                                 txInfo.getAvgElapsed(), 
+                                txInfo.getElapsedPercentile(95), 
+                                txInfo.getElapsedPercentile(99), 
                                 txInfo.getCpu(),
                                 txInfo.getAvgCpu(), 
+                                txInfo.getCpuPercentile(95), 
+                                txInfo.getCpuPercentile(99), 
                                 txInfo.getAvgDispatch(),
                                 txInfo.getAvgDispatchWait());
 
@@ -135,11 +143,17 @@ public class CicsTransactionSummary
         public void add(PerformanceRecord txData) 
         {
             count++;
-            elapsed += Utils.ToSeconds(
+            double txElapsed = Utils.ToSeconds(
                     Duration.between(txData.getField(Field.START), txData.getField(Field.STOP)));
+            double txCpu = txData.getField(Field.USRCPUT).timerSeconds();
+            elapsed += txElapsed;
             dispatch += txData.getField(Field.USRDISPT).timerSeconds();
             dispatchWait += txData.getField(Field.DISPWTT).timerSeconds();
-            cpu += txData.getField(Field.USRCPUT).timerSeconds();
+            cpu += txCpu;
+            // Histograms give the percentiles without keeping the
+            // individual transaction times
+            elapsedTimes.add(txElapsed);
+            cpuTimes.add(txCpu);
         }
 
         public String getName() 
@@ -177,11 +191,23 @@ public class CicsTransactionSummary
             return count != 0 ? cpu / count : null;
         }
 
+        public Double getElapsedPercentile(double percent) 
+        {
+            return count != 0 ? elapsedTimes.percentile(percent) : null;
+        }
+
+        public Double getCpuPercentile(double percent) 
+        {
+            return count != 0 ? cpuTimes.percentile(percent) : null;
+        }
+
         private String name;
         private int count = 0;
         private double elapsed = 0;
         private double dispatch = 0;
         private double dispatchWait = 0;
         private double cpu = 0;
+        private PercentileHistogram elapsedTimes = new PercentileHistogram();
+        private PercentileHistogram cpuTimes = new PercentileHistogram();
     }
 }
@@ -0,0 +1,126 @@
+package com.smfreports;
+
+/**
+ * A Bloom filter for record digests.
+ * <p>
+ * A Bloom filter uses a fixed amount of memory and can answer
+ * "definitely not seen before" or "possibly seen before". If every
+ * bit selected by a digest was already set the digest might have been
+ * added before, otherwise it is definitely new.
+ * <p>
+ * The bit positions are calculated from 2 64 bit hash values using
+ * double hashing, so the digest does not need to be hashed again.
+ * <p>
+ * This class is not thread safe.
+ */
+class BloomFilter
+{
+    // the largest long array we will allocate, 8GB
+    private static final long MAX_BITS = 1L << 36;
+
+    private final long[] bits;
+    private final long mask;
+    private final int hashes;
+
+    /**
+     * Create a Bloom filter using a specified amount of memory.
+     * The size is rounded down to a power of 2.
+     * @param memoryBytes the memory to use for the filter
+     * @param hashes the number of bits to set for each digest
+     */
+    BloomFilter(long memoryBytes, int hashes)
+    {
+        if (hashes < 1)
+        {
+            throw new IllegalArgumentException("Hash count must be at least 1: " + hashes);
+        }
+        long bitCount = Math.min(Long.highestOneBit(Math.max(memoryBytes * 8, Long.SIZE)), MAX_BITS);
+        bits = new long[(int) (bitCount / Long.SIZE)];
+        mask = bitCount - 1;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Add a digest to the filter.
+     * @param hash1 the first 64 bits of the digest
+     * @param hash2 a second independent 64 bit hash value
+     * @return true if the digest was definitely not in the filter,
+     * false if it might have been added before
+     */
+    boolean put(long hash1, long hash2)
+    {
+        boolean added = false;
+        // an odd increment visits different bits for each hash
+        long increment = hash2 | 1;
+        long hash = hash1;
+        for (int i = 0; i < hashes; i++)
+        {
+            long bit = hash & mask;
+            int index = (int) (bit >>> 6);
+            long bitMask = 1L << bit;
+            if ((bits[index] & bitMask) == 0)
+            {
+                bits[index] |= bitMask;
+                added = true;
+            }
+            hash += increment;
+        }
+        return added;
+    }
+
+    /**
+     * Check whether a digest might be in the filter.
+     * @param hash1 the first 64 bits of the digest
+     * @param hash2 a second independent 64 bit hash value
+     * @return false if the digest is definitely not in the filter,
+     * true if it might have been added
+     */
+    boolean mightContain(long hash1, long hash2)
+    {
+        long increment = hash2 | 1;
+        long hash = hash1;
+        for (int i = 0; i < hashes; i++)
+        {
+            long bit = hash & mask;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+            {
+                return false;
+            }
+            hash += increment;
+        }
+        return true;
+    }
+
+    /**
+     * The memory used by the filter.
+     * @return the size of the filter in bytes
+     */
+    long memoryBytes()
+    {
+        return (long) bits.length * Long.BYTES;
+    }
+
+    /**
+     * The proportion of bits set in the filter.
+     * @return the fill ratio from 0 to 1
+     */
+    double fillRatio()
+    {
+        long set = 0;
+        for (long word : bits)
+        {
+            set += Long.bitCount(word);
+        }
+        return (double) set / ((long) bits.length * Long.SIZE);
+    }
+
+    /**
+     * The estimated probability that a new digest is reported as
+     * possibly seen before, based on the current fill ratio.
+     * @return the estimated false positive rate from 0 to 1
+     */
+    double falsePositiveRate()
+    {
+        return Math.pow(fillRatio(), hashes);
+    }
+}
@@ -0,0 +1,42 @@
+package com.smfreports;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A class to store hashes in a HashSet, providing hashcode and equals implementations.
+ * <p>
+ * SmfDeDup now uses DigestSet, this class is kept as the baseline for
+ * DigestSetBenchmark.
+ */
+class Digest
+{
+    public Digest(byte[] digest)
+    {
+        this.digest = digest;
+        // for a SHA-1 hash, the first 4 bytes is probably an adequate
+        // value to return for hashCode
+        hashCode = ByteBuffer.wrap(digest).getInt();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        Digest other = (Digest) obj;
+        return Arrays.equals(this.digest, other.digest);
+    }
+
+    private byte[] digest;
+    private int hashCode;
+}
@@ -0,0 +1,441 @@
+package com.smfreports;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * A persistent set of record digests, kept in a memory mapped file so
+ * duplicates can be detected across multiple runs.
+ * <p>
+ * The file is an open addressing hash table like DigestSet. Each slot
+ * holds a 128 bit digest plus the SMF date of the record, so entries can
+ * be aged out after a number of days. Opening the index doesn't read the
+ * entries, pages of the file are loaded by the operating system as they
+ * are used, so the cost of a run depends on the amount of new data rather
+ * than the size of the index.
+ * <p>
+ * The table is rebuilt into a new file when it needs to grow, or when
+ * entries are removed because they are older than the retention period.
+ * The new file replaces the old one while the old file is still mapped;
+ * Java has no way to unmap a file before the buffers are garbage
+ * collected. This works on z/OS, Linux and other Unix systems, but
+ * Windows doesn't allow a mapped file to be replaced, so the index is not
+ * supported on Windows.
+ * <p>
+ * This class is not thread safe.
+ */
+class DigestIndex implements Closeable
+{
+    private static final long MAGIC = 0x534D464444494458L; // "SMFDDIDX"
+    private static final int VERSION = 1;
+
+    // header fields
+    private static final int HEADER_BYTES = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int HASH_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+    private static final int OLDEST_OFFSET = 32;
+    private static final int NEWEST_OFFSET = 40;
+    private static final int CLEAN_OFFSET = 48;
+    private static final int KEYS_OFFSET = 56;
+
+    /** Each slot is the 128 bit digest plus the day */
+    private static final int SLOT_BYTES = 3 * Long.BYTES;
+
+    /**
+     * Days are stored with a bias so any valid date is non zero,
+     * and zero indicates an empty slot.
+     */
+    private static final long DAY_BIAS = 1L << 32;
+
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.75;
+
+    // each mapped buffer holds this many slots, 384MB
+    private static final int SEGMENT_BITS = 24;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+
+    private final Path file;
+    private final int hashId;
+    private final long keys;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long mask;
+    private int shift;
+    private long threshold;
+
+    private long size;
+    private long oldestDay;
+    private long newestDay;
+    private long matched = 0;
+    private long added = 0;
+    private long expired = 0;
+
+    /**
+     * Open an index file, creating it if it doesn't exist.
+     * @param file the index file
+     * @param hashing how the digests are calculated. An existing index must 
+     * have been created using the same algorithm and key types.
+     * @throws IOException if the file can't be opened or is not a valid index
+     */
+    DigestIndex(Path file, RecordHashing hashing) throws IOException
+    {
+        this.file = file;
+        this.hashId = Arrays.asList(RecordHasher.NAMES.split(", ")).indexOf(hashing.algorithm());
+        if (hashId < 0)
+        {
+            throw new IllegalArgumentException("Unknown hash: " + hashing.algorithm());
+        }
+        // a bit for each keyed record type, folded into 64 bits
+        long keyBits = 0;
+        for (int recordType : hashing.keyTypes())
+        {
+            keyBits |= 1L << (recordType & 63);
+        }
+        this.keys = keyBits;
+
+        try
+        {
+            if (Files.exists(file))
+            {
+                openExisting();
+            }
+            else
+            {
+                create(file, INITIAL_CAPACITY);
+                size = 0;
+                oldestDay = Long.MAX_VALUE;
+                newestDay = Long.MIN_VALUE;
+            }
+            header.putInt(CLEAN_OFFSET, 0);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // don't leave the file open if it isn't a valid index
+            if (channel != null)
+            {
+                channel.close();
+                channel = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Map an existing index file and check that it matches the hash
+     * and key types
+     */
+    private void openExisting() throws IOException
+    {
+        map(file);
+        if (header.getLong(MAGIC_OFFSET) != MAGIC
+                || header.getInt(VERSION_OFFSET) != VERSION)
+        {
+            throw new IOException("Not a digest index file: " + file);
+        }
+        int fileHashId = header.getInt(HASH_OFFSET);
+        if (fileHashId != hashId)
+        {
+            String[] names = RecordHasher.NAMES.split(", ");
+            throw new IOException("Index " + file + " was created using hash "
+                    + (fileHashId >= 0 && fileHashId < names.length ? names[fileHashId] : fileHashId));
+        }
+        if (header.getLong(KEYS_OFFSET) != keys)
+        {
+            throw new IOException("Index " + file + " was created using different key types");
+        }
+        size = header.getLong(SIZE_OFFSET);
+        oldestDay = header.getLong(OLDEST_OFFSET);
+        newestDay = header.getLong(NEWEST_OFFSET);
+        if (header.getInt(CLEAN_OFFSET) == 0)
+        {
+            // a previous run didn't close the index,
+            // so the header might not match the entries
+            recount();
+        }
+    }
+
+    /**
+     * Add a digest to the index if it is not already present.
+     * @param digest the array containing the digest
+     * @param offset the index of the first word of the digest
+     * @param day the SMF date of the record as an epoch day
+     * @return true if the digest was added, false if it was already in the index
+     * @throws IOException if the index needs to grow and an I/O error occurs
+     */
+    boolean add(long[] digest, int offset, long day) throws IOException
+    {
+        long d0 = digest[offset];
+        long d1 = digest[offset + 1];
+        for (long slot = slotFor(d0); ; slot = (slot + 1) & mask)
+        {
+            MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+            int position = (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+            if (segment.getLong(position + 16) == 0)
+            {
+                // write the day last, it marks the slot as used
+                segment.putLong(position, d0);
+                segment.putLong(position + 8, d1);
+                segment.putLong(position + 16, day + DAY_BIAS);
+                size++;
+                added++;
+                oldestDay = Math.min(oldestDay, day);
+                newestDay = Math.max(newestDay, day);
+                if (size > threshold)
+                {
+                    rebuild(capacity * 2, Long.MIN_VALUE);
+                }
+                return true;
+            }
+            if (segment.getLong(position) == d0 && segment.getLong(position + 8) == d1)
+            {
+                matched++;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Remove entries older than a number of days, counting back from the 
+     * newest SMF date in the index. Dates are relative to the data rather
+     * than the current date, so reprocessing old data doesn't remove it
+     * all from the index.
+     * <p>
+     * The index is only rebuilt if there are entries to remove.
+     * @param retainDays the number of days to keep, including the newest day
+     * @throws IOException if an I/O error occurs
+     */
+    void expire(int retainDays) throws IOException
+    {
+        long minimumDay = newestDay - retainDays + 1;
+        if (size > 0 && oldestDay < minimumDay)
+        {
+            long before = size;
+            rebuild(capacity, minimumDay);
+            expired += before - size;
+        }
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    /** Number of digests found in the index */
+    long matched()
+    {
+        return matched;
+    }
+
+    /** Number of digests added to the index */
+    long added()
+    {
+        return added;
+    }
+
+    /** Number of entries removed by expire */
+    long expired()
+    {
+        return expired;
+    }
+
+    /**
+     * The date of the oldest entry
+     * @return the date, or null if the index is empty
+     */
+    LocalDate oldest()
+    {
+        return size > 0 ? LocalDate.ofEpochDay(oldestDay) : null;
+    }
+
+    /**
+     * The date of the newest entry
+     * @return the date, or null if the index is empty
+     */
+    LocalDate newest()
+    {
+        return size > 0 ? LocalDate.ofEpochDay(newestDay) : null;
+    }
+
+    /** The size of the index file */
+    long fileBytes()
+    {
+        return HEADER_BYTES + capacity * SLOT_BYTES;
+    }
+
+    /**
+     * Update the header and write the changes to disk.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null)
+        {
+            writeHeader();
+            for (MappedByteBuffer segment : segments)
+            {
+                segment.force();
+            }
+            header.putInt(CLEAN_OFFSET, 1);
+            header.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Copy the entries on or after minimumDay to a new table, and
+     * replace the index file.
+     */
+    private void rebuild(long newCapacity, long minimumDay) throws IOException
+    {
+        Path newFile = file.resolveSibling(file.getFileName() + ".new");
+        MappedByteBuffer[] oldSegments = segments;
+        long oldCapacity = capacity;
+        channel.close();
+
+        create(newFile, newCapacity);
+        size = 0;
+        oldestDay = Long.MAX_VALUE;
+        newestDay = Long.MIN_VALUE;
+        for (long slot = 0; slot < oldCapacity; slot++)
+        {
+            MappedByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_BITS)];
+            int position = (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+            long biasedDay = segment.getLong(position + 16);
+            if (biasedDay != 0 && biasedDay - DAY_BIAS >= minimumDay)
+            {
+                insertNew(segment.getLong(position), segment.getLong(position + 8), biasedDay);
+            }
+        }
+        writeHeader();
+        for (MappedByteBuffer segment : segments)
+        {
+            segment.force();
+        }
+        header.force();
+        channel.close();
+
+        // the old file is still mapped by oldSegments, see the class comment
+        Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING);
+        map(file);
+        header.putInt(CLEAN_OFFSET, 0);
+    }
+
+    /**
+     * Insert an entry known not to be in the table
+     */
+    private void insertNew(long d0, long d1, long biasedDay)
+    {
+        for (long slot = slotFor(d0); ; slot = (slot + 1) & mask)
+        {
+            MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+            int position = (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES;
+            if (segment.getLong(position + 16) == 0)
+            {
+                segment.putLong(position, d0);
+                segment.putLong(position + 8, d1);
+                segment.putLong(position + 16, biasedDay);
+                size++;
+                oldestDay = Math.min(oldestDay, biasedDay - DAY_BIAS);
+                newestDay = Math.max(newestDay, biasedDay - DAY_BIAS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Count the entries and find the date range by reading every slot.
+     */
+    private void recount()
+    {
+        size = 0;
+        oldestDay = Long.MAX_VALUE;
+        newestDay = Long.MIN_VALUE;
+        for (long slot = 0; slot < capacity; slot++)
+        {
+            MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+            long biasedDay = segment.getLong((int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES + 16);
+            if (biasedDay != 0)
+            {
+                size++;
+                oldestDay = Math.min(oldestDay, biasedDay - DAY_BIAS);
+                newestDay = Math.max(newestDay, biasedDay - DAY_BIAS);
+            }
+        }
+    }
+
+    private long slotFor(long d0)
+    {
+        // multiply to mix the bits, then take the top bits as the slot
+        return (d0 * 0x9E3779B97F4A7C15L) >>> shift;
+    }
+
+    /**
+     * Create a new empty index file and map it
+     */
+    private void create(Path path, long newCapacity) throws IOException
+    {
+        Files.deleteIfExists(path);
+        try (FileChannel newChannel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            MappedByteBuffer newHeader = newChannel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+            newHeader.putLong(MAGIC_OFFSET, MAGIC);
+            newHeader.putInt(VERSION_OFFSET, VERSION);
+            newHeader.putInt(HASH_OFFSET, hashId);
+            newHeader.putLong(KEYS_OFFSET, keys);
+            newHeader.putLong(CAPACITY_OFFSET, newCapacity);
+            // extend the file to the full size, new space reads as zeros
+            newChannel.map(MapMode.READ_WRITE,
+                    HEADER_BYTES + newCapacity * SLOT_BYTES - 1, 1).put(0, (byte) 0);
+            newHeader.force();
+        }
+        map(path);
+    }
+
+    /**
+     * Map the header and the slots of an index file
+     */
+    private void map(Path path) throws IOException
+    {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+        capacity = header.getLong(CAPACITY_OFFSET);
+        if (Long.bitCount(capacity) != 1
+                || channel.size() != HEADER_BYTES + capacity * SLOT_BYTES)
+        {
+            throw new IOException("Invalid digest index file: " + path);
+        }
+        mask = capacity - 1;
+        shift = 64 - Long.numberOfTrailingZeros(capacity);
+        threshold = (long) (capacity * MAX_LOAD);
+
+        int segmentSlots = (int) Math.min(capacity, SEGMENT_SLOTS);
+        segments = new MappedByteBuffer[(int) ((capacity + segmentSlots - 1) / segmentSlots)];
+        for (int i = 0; i < segments.length; i++)
+        {
+            segments[i] = channel.map(MapMode.READ_WRITE,
+                    HEADER_BYTES + (long) i * segmentSlots * SLOT_BYTES,
+                    (long) segmentSlots * SLOT_BYTES);
+        }
+    }
+
+    private void writeHeader()
+    {
+        header.putLong(SIZE_OFFSET, size);
+        header.putLong(OLDEST_OFFSET, oldestDay);
+        header.putLong(NEWEST_OFFSET, newestDay);
+    }
+}
@@ -0,0 +1,238 @@
+package com.smfreports;
+
+/**
+ * A set of fixed width digests, stored in a long array.
+ * <p>
+ * A HashSet of Digest objects needs a HashMap entry, the Digest object
+ * and a byte array for every record, which adds up to around 100 bytes
+ * per record. This class stores the digest values directly in an open
+ * addressing hash table, so each record uses only the digest width
+ * (e.g. 16 bytes for a 128 bit digest) plus the empty space in the table.
+ * There are no per record objects for the garbage collector to process.
+ * <p>
+ * Digests are expected to be hash values i.e. evenly distributed, so no
+ * further hashing is required to find a slot. A digest of all zeros is
+ * used to mark empty slots, so it is tracked separately.
+ * <p>
+ * This class is not thread safe.
+ */
+class DigestSet
+{
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    // the largest array size we can allocate is a bit less than 2^31
+    private static final int MAX_ARRAY_LENGTH = 1 << 30;
+    private static final double MAX_LOAD = 0.75;
+
+    private final int words;
+    private long[] table;
+    private int capacity;
+    private int mask;
+    private int resizeThreshold;
+    private long size = 0;
+    private boolean containsZero = false;
+
+    /**
+     * Create a DigestSet
+     * @param words the width of the digests as a number of 64 bit words
+     */
+    DigestSet(int words)
+    {
+        this(words, 0);
+    }
+
+    /**
+     * Create a DigestSet with space for a number of digests,
+     * so the table does not need to be resized as it fills.
+     * @param words the width of the digests as a number of 64 bit words
+     * @param expectedSize the expected number of digests
+     */
+    DigestSet(int words, long expectedSize)
+    {
+        if (words < 1)
+        {
+            throw new IllegalArgumentException("Digest width must be at least 1 word: " + words);
+        }
+        this.words = words;
+        long required = (long) Math.ceil(expectedSize / MAX_LOAD) + 1;
+        int initialCapacity = INITIAL_CAPACITY;
+        while (initialCapacity < required && (long) initialCapacity * 2 * words <= MAX_ARRAY_LENGTH)
+        {
+            initialCapacity *= 2;
+        }
+        allocate(initialCapacity);
+    }
+
+    /**
+     * Add a digest to the set.
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     * @return true if the digest was not already present
+     */
+    boolean add(long[] digest, int offset)
+    {
+        if (isZero(digest, offset))
+        {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = findSlot(table, mask, digest, offset);
+        if (slot >= 0)
+        {
+            return false; // already present
+        }
+        System.arraycopy(digest, offset, table, ~slot * words, words);
+        if (++size > resizeThreshold)
+        {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Add a digest that is known not to be in the set, e.g. because a
+     * Bloom filter has reported that it is new. The digest is stored
+     * in the first empty slot without comparing existing entries.
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     */
+    void addNew(long[] digest, int offset)
+    {
+        if (isZero(digest, offset))
+        {
+            add(digest, offset);
+            return;
+        }
+        int slot = slotFor(digest[offset], mask);
+        while (!isZero(table, slot * words))
+        {
+            slot = (slot + 1) & mask;
+        }
+        System.arraycopy(digest, offset, table, slot * words, words);
+        if (++size > resizeThreshold)
+        {
+            resize();
+        }
+    }
+
+    /**
+     * Check whether the set contains a digest.
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     * @return true if the digest is present
+     */
+    boolean contains(long[] digest, int offset)
+    {
+        if (isZero(digest, offset))
+        {
+            return containsZero;
+        }
+        return findSlot(table, mask, digest, offset) >= 0;
+    }
+
+    /**
+     * The number of digests in the set.
+     * @return the number of digests
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * The width of the digests in 64 bit words.
+     * @return the number of words
+     */
+    int words()
+    {
+        return words;
+    }
+
+    /**
+     * The memory used by the hash table.
+     * @return the size of the table in bytes
+     */
+    long memoryBytes()
+    {
+        return (long) table.length * Long.BYTES;
+    }
+
+    /**
+     * Find the slot for a digest.
+     * @return the slot number if the digest was found, or the ones
+     * complement (~slot) of the empty slot where it can be inserted.
+     */
+    private int findSlot(long[] table, int mask, long[] digest, int offset)
+    {
+        int slot = slotFor(digest[offset], mask);
+        while (true)
+        {
+            int index = slot * words;
+            if (isZero(table, index))
+            {
+                return ~slot;
+            }
+            if (equals(table, index, digest, offset))
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask; // linear probing
+        }
+    }
+
+    /**
+     * Calculate the home slot for a digest. Fibonacci hashing spreads
+     * the first word across the table, and uses different bits to those
+     * used to choose a shard.
+     */
+    private static int slotFor(long firstWord, int mask)
+    {
+        return (int) ((firstWord * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private boolean isZero(long[] array, int offset)
+    {
+        for (int i = 0; i < words; i++)
+        {
+            if (array[offset + i] != 0) return false;
+        }
+        return true;
+    }
+
+    private boolean equals(long[] a, int aOffset, long[] b, int bOffset)
+    {
+        for (int i = 0; i < words; i++)
+        {
+            if (a[aOffset + i] != b[bOffset + i]) return false;
+        }
+        return true;
+    }
+
+    private void allocate(int newCapacity)
+    {
+        table = new long[newCapacity * words];
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        resizeThreshold = (int) (newCapacity * MAX_LOAD);
+    }
+
+    private void resize()
+    {
+        if ((long) capacity * 2 * words > MAX_ARRAY_LENGTH)
+        {
+            throw new IllegalStateException(
+                    String.format("DigestSet is full: %d digests of %d words", size, words));
+        }
+        long[] oldTable = table;
+        allocate(capacity * 2);
+        for (int index = 0; index < oldTable.length; index += words)
+        {
+            if (!isZero(oldTable, index))
+            {
+                int slot = findSlot(table, mask, oldTable, index);
+                System.arraycopy(oldTable, index, table, ~slot * words, words);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.smfreports;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Compare the memory usage and speed of the original HashSet of Digest
+ * objects with DigestSet.
+ * <p>
+ * Random values are used in place of SHA-1 hashes so no SMF data is
+ * required. A proportion of the values are repeated to simulate
+ * duplicate records. Run with a heap large enough for the HashSet
+ * e.g. -Xmx8g for 20 million entries.
+ */
+public class DigestSetBenchmark
+{
+    private static final int SHA1_BYTES = 20;
+
+    private static void printUsage() {
+        System.out.println("Usage: DigestSetBenchmark [ entries [ repeat ] ]");
+        System.out.println("");
+        System.out.println("Report memory per entry and insert rate for HashSet<Digest> and");
+        System.out.println("DigestSet.");
+        System.out.println("");
+        System.out.println("  entries  Number of digests to add to each set. Default 10000000.");
+        System.out.println("  repeat   Number of times to repeat each measurement. The best");
+        System.out.println("           result is reported. Default 3.");
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h")))
+        {
+            printUsage();
+            System.exit(0);
+        }
+
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        // Generate the hashes once. 1 in 10 entries repeats an earlier value.
+        Random random = new Random(0);
+        byte[][] hashes = new byte[entries][];
+        for (int i = 0; i < entries; i++)
+        {
+            if (i > 0 && random.nextInt(10) == 0)
+            {
+                hashes[i] = hashes[random.nextInt(i)];
+            }
+            else
+            {
+                hashes[i] = new byte[SHA1_BYTES];
+                random.nextBytes(hashes[i]);
+            }
+        }
+
+        System.out.format("%d entries%n%n", entries);
+        System.out.format("%-28s %12s %10s %12s%n", "Set", "Inserts/sec", "MB", "Bytes/entry");
+
+        measure("HashSet<Digest>", entries, repeat, () -> hashSetRun(hashes));
+        measure("DigestSet 128 bit", entries, repeat, () -> digestSetRun(hashes, 2, 1));
+        measure("ShardedDigestSet 128 bit", entries, repeat, () -> digestSetRun(hashes, 2, SmfDeDup.SHARDS));
+        measure("DigestSet 64 bit", entries, repeat, () -> digestSetRun(hashes, 1, 1));
+    }
+
+    private static void measure(String name, int entries, int repeat, Run run)
+    {
+        // warm up
+        run.run();
+
+        long bestNanos = Long.MAX_VALUE;
+        long bytes = 0;
+        // The set is kept here until memory has been measured. The set from
+        // the previous iteration is released before the heap is measured,
+        // so it is not counted in the "before" figure.
+        Object[] result = new Object[1];
+        for (int i = 0; i < repeat; i++)
+        {
+            result[0] = null;
+            long before = usedHeap();
+            long start = System.nanoTime();
+            result[0] = run.run();
+            long elapsed = System.nanoTime() - start;
+            long after = usedHeap();
+            bestNanos = Math.min(bestNanos, elapsed);
+            bytes = after - before;
+        }
+        result[0] = null;
+        System.out.format("%-28s %12.0f %10.1f %12.1f%n",
+                name,
+                entries / (bestNanos / 1_000_000_000.0),
+                bytes / (1024.0 * 1024),
+                (double) bytes / entries);
+    }
+
+    private static Object hashSetRun(byte[][] hashes)
+    {
+        Set<Digest> set = new HashSet<>();
+        for (byte[] hash : hashes)
+        {
+            // SmfDeDup used the array returned by MessageDigest.digest,
+            // so copy to get the same memory usage.
+            set.add(new Digest(hash.clone()));
+        }
+        return set;
+    }
+
+    private static Object digestSetRun(byte[][] hashes, int words, int shards)
+    {
+        ShardedDigestSet set = new ShardedDigestSet(shards, words);
+        long[] digest = new long[words];
+        for (byte[] hash : hashes)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(hash);
+            for (int i = 0; i < words; i++)
+            {
+                digest[i] = buffer.getLong();
+            }
+            set.add(digest, 0);
+        }
+        return set;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Run
+    {
+        Object run();
+    }
+}
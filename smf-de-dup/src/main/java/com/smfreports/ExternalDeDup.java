@@ -0,0 +1,426 @@
+package com.smfreports;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+import com.blackhillsoftware.smf.SmfRecord;
+
+/**
+ * Search for duplicate records when the digests do not fit in memory.
+ * <p>
+ * Processing is done in 3 phases:
+ * <ol>
+ * <li>Partition: read the input and write the digest and sequence number
+ * of each record to one of 256 temporary files, selected by the first
+ * byte of the digest. Duplicates always go to the same partition.
+ * <li>Deduplicate: process each partition with a DigestSet in memory.
+ * Entries in a partition are in input order, so the first occurrence of
+ * a digest is kept and the sequence numbers of the duplicates are written
+ * out in ascending order. A partition too large for the memory limit is
+ * split again using the next byte of the digest, and the results merged.
+ * The duplicate lists for all partitions are merged into a single list.
+ * <li>Output: read the input again and pass each record to a RecordListener,
+ * using the duplicate list to indicate whether it is unique. Output is
+ * in the original order.
+ * </ol>
+ * Temporary files are deleted when the instance is closed.
+ */
+class ExternalDeDup implements Closeable
+{
+    private static final int PARTITION_BITS = 8;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final int MAX_LEVEL = 64 / PARTITION_BITS;
+
+    /** Each entry is the 128 bit digest plus the record type and sequence number */
+    private static final int ENTRY_BYTES = 3 * Long.BYTES;
+
+    /**
+     * Estimated DigestSet memory per entry. A presized table is between
+     * 3/8 and 3/4 full, so a 16 byte digest uses up to 43 bytes.
+     */
+    private static final int DIGEST_SET_BYTES_PER_ENTRY = 48;
+
+    /** Record type is kept in the top byte of the sequence number */
+    private static final int TYPE_SHIFT = 56;
+    private static final long SEQUENCE_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long memoryLimit;
+    private final Path workDirectory;
+    private final RecordHashing hashing;
+
+    private Path[] partitions = null;
+    private Path duplicates = null;
+    private long records = 0;
+    private long duplicateCount = 0;
+
+    private long spillBytes = 0;
+    private int splitPartitions = 0;
+    private long partitionNanos = 0;
+    private long deDupNanos = 0;
+    private long outputNanos = 0;
+
+    /**
+     * Create an ExternalDeDup instance
+     * @param memoryLimit the maximum memory to use for the digests in a partition
+     * @param tempDirectory the directory for temporary files, or null to use the default
+     * @param hashing how records are hashed
+     * @throws IOException if the work directory cannot be created
+     */
+    ExternalDeDup(long memoryLimit, Path tempDirectory, RecordHashing hashing) throws IOException
+    {
+        this.memoryLimit = memoryLimit;
+        this.hashing = hashing;
+        workDirectory = tempDirectory != null
+                ? Files.createTempDirectory(tempDirectory, "smfdedup")
+                : Files.createTempDirectory("smfdedup");
+    }
+
+    /**
+     * Phase 1: Hash the input records and write the digests to the
+     * partition files.
+     * @param input the input records
+     * @throws IOException if an I/O error occurs
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    void partition(Iterable<SmfRecord> input) throws IOException, NoSuchAlgorithmException
+    {
+        long start = System.nanoTime();
+        RecordHasher hasher = hashing.create();
+        long[] digest = new long[SmfDeDup.DIGEST_WORDS];
+
+        partitions = new Path[PARTITIONS];
+        DataOutputStream[] outputs = new DataOutputStream[PARTITIONS];
+        try
+        {
+            for (int i = 0; i < PARTITIONS; i++)
+            {
+                partitions[i] = workDirectory.resolve("p" + i);
+                outputs[i] = openOutput(partitions[i]);
+            }
+            for (SmfRecord record : input)
+            {
+                SmfDeDup.digest(hasher, record, digest, 0);
+                DataOutputStream out = outputs[partitionFor(digest[0], 0)];
+                out.writeLong(digest[0]);
+                out.writeLong(digest[1]);
+                out.writeLong(((long) record.recordType() << TYPE_SHIFT) | records);
+                records++;
+            }
+        }
+        finally
+        {
+            closeAll(outputs);
+        }
+        spillBytes += records * ENTRY_BYTES;
+        partitionNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Phase 2: find the duplicates in each partition, and create a
+     * list of duplicate sequence numbers in ascending order.
+     * @param duplicateTypes receives the record type of each duplicate
+     * @throws IOException if an I/O error occurs
+     */
+    void findDuplicates(IntConsumer duplicateTypes) throws IOException
+    {
+        long start = System.nanoTime();
+        List<Path> results = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++)
+        {
+            Path result = workDirectory.resolve("d" + i);
+            deDupPartition(partitions[i], 1, result);
+            Files.delete(partitions[i]);
+            results.add(result);
+        }
+        duplicates = workDirectory.resolve("duplicates");
+        merge(results, duplicates);
+
+        // count duplicates by type
+        try (DataInputStream in = openInput(duplicates))
+        {
+            for (long entry = readEntry(in); entry != -1; entry = readEntry(in))
+            {
+                duplicateCount++;
+                duplicateTypes.accept((int) (entry >>> TYPE_SHIFT));
+            }
+        }
+        deDupNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Phase 3: read the input again and pass each record to the listener
+     * in the original order, indicating whether it is unique.
+     * @param input the input records, which must be the same records
+     * passed to partition
+     * @param listener receives the records
+     * @throws IOException if an I/O error occurs or the input does not
+     * match the partitioned data
+     */
+    void output(Iterable<SmfRecord> input, SmfDeDup.RecordListener listener) throws IOException
+    {
+        long start = System.nanoTime();
+        long sequence = 0;
+        try (DataInputStream in = openInput(duplicates))
+        {
+            long nextDuplicate = sequence(readEntry(in));
+            for (SmfRecord record : input)
+            {
+                boolean unique = sequence != nextDuplicate;
+                if (!unique)
+                {
+                    nextDuplicate = sequence(readEntry(in));
+                }
+                listener.record(record, unique);
+                sequence++;
+            }
+        }
+        if (sequence != records)
+        {
+            throw new IOException(String.format(
+                    "Input changed between passes: %d records partitioned, %d records read",
+                    records, sequence));
+        }
+        outputNanos = System.nanoTime() - start;
+    }
+
+    long records()
+    {
+        return records;
+    }
+
+    long duplicates()
+    {
+        return duplicateCount;
+    }
+
+    /**
+     * Print the spill volume and time spent in each phase
+     */
+    void printStatistics()
+    {
+        System.out.format("External mode: %d records, %.1f MB spilled to %s, %d partitions split.%n",
+                records, spillBytes / (1024.0 * 1024), workDirectory, splitPartitions);
+        System.out.format("  Partition   %8.1f s%n", partitionNanos / 1_000_000_000.0);
+        System.out.format("  Deduplicate %8.1f s%n", deDupNanos / 1_000_000_000.0);
+        if (outputNanos > 0)
+        {
+            System.out.format("  Output      %8.1f s%n", outputNanos / 1_000_000_000.0);
+        }
+    }
+
+    /**
+     * Delete the temporary files
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(workDirectory))
+        {
+            Iterator<Path> it = files.sorted(Comparator.reverseOrder()).iterator();
+            while (it.hasNext())
+            {
+                Files.deleteIfExists(it.next());
+            }
+        }
+    }
+
+    /**
+     * Find duplicates in a partition and write the sequence numbers to the
+     * result file. If the partition is too large to process in memory,
+     * split it into smaller partitions using the next bits of the digest.
+     */
+    private void deDupPartition(Path partition, int level, Path result) throws IOException
+    {
+        long entries = Files.size(partition) / ENTRY_BYTES;
+        if (entries * DIGEST_SET_BYTES_PER_ENTRY <= memoryLimit || level >= MAX_LEVEL)
+        {
+            deDupInMemory(partition, entries, result);
+        }
+        else
+        {
+            splitPartitions++;
+            Path[] parts = new Path[PARTITIONS];
+            DataOutputStream[] outputs = new DataOutputStream[PARTITIONS];
+            try (DataInputStream in = openInput(partition))
+            {
+                for (int i = 0; i < PARTITIONS; i++)
+                {
+                    parts[i] = Paths.get(partition.toString() + "-" + i);
+                    outputs[i] = openOutput(parts[i]);
+                }
+                for (long i = 0; i < entries; i++)
+                {
+                    long digest0 = in.readLong();
+                    DataOutputStream out = outputs[partitionFor(digest0, level)];
+                    out.writeLong(digest0);
+                    out.writeLong(in.readLong());
+                    out.writeLong(in.readLong());
+                }
+            }
+            finally
+            {
+                closeAll(outputs);
+            }
+            spillBytes += entries * ENTRY_BYTES;
+
+            List<Path> results = new ArrayList<>();
+            for (int i = 0; i < PARTITIONS; i++)
+            {
+                Path partResult = Paths.get(result.toString() + "-" + i);
+                deDupPartition(parts[i], level + 1, partResult);
+                Files.delete(parts[i]);
+                results.add(partResult);
+            }
+            merge(results, result);
+        }
+    }
+
+    private void deDupInMemory(Path partition, long entries, Path result) throws IOException
+    {
+        DigestSet recordHashes = new DigestSet(SmfDeDup.DIGEST_WORDS, entries);
+        long[] digest = new long[SmfDeDup.DIGEST_WORDS];
+        try (DataInputStream in = openInput(partition);
+             DataOutputStream out = openOutput(result))
+        {
+            for (long i = 0; i < entries; i++)
+            {
+                digest[0] = in.readLong();
+                digest[1] = in.readLong();
+                long entry = in.readLong();
+                if (!recordHashes.add(digest, 0))
+                {
+                    out.writeLong(entry);
+                    spillBytes += Long.BYTES;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge lists of duplicates, each in ascending sequence order,
+     * into a single list. The input files are deleted.
+     */
+    private void merge(List<Path> inputs, Path output) throws IOException
+    {
+        List<DataInputStream> streams = new ArrayList<>();
+        PriorityQueue<MergeEntry> queue = new PriorityQueue<>(
+                Comparator.comparingLong(entry -> sequence(entry.value)));
+        try (DataOutputStream out = openOutput(output))
+        {
+            for (Path input : inputs)
+            {
+                DataInputStream in = openInput(input);
+                streams.add(in);
+                long value = readEntry(in);
+                if (value != -1)
+                {
+                    queue.add(new MergeEntry(value, in));
+                }
+            }
+            while (!queue.isEmpty())
+            {
+                MergeEntry next = queue.poll();
+                out.writeLong(next.value);
+                spillBytes += Long.BYTES;
+                next.value = readEntry(next.in);
+                if (next.value != -1)
+                {
+                    queue.add(next);
+                }
+            }
+        }
+        finally
+        {
+            for (DataInputStream in : streams)
+            {
+                in.close();
+            }
+        }
+        for (Path input : inputs)
+        {
+            Files.delete(input);
+        }
+    }
+
+    /**
+     * Select a partition using the bits of the first digest word for this level
+     */
+    private static int partitionFor(long digest0, int level)
+    {
+        return (int) (digest0 >>> (64 - PARTITION_BITS * (level + 1))) & (PARTITIONS - 1);
+    }
+
+    /**
+     * Get the sequence number from an entry, or Long.MAX_VALUE for
+     * the end of the list.
+     */
+    private static long sequence(long entry)
+    {
+        return entry == -1 ? Long.MAX_VALUE : entry & SEQUENCE_MASK;
+    }
+
+    /**
+     * Read the next duplicate list entry, or -1 at the end of the file.
+     * -1 can't be a valid entry because the record type is at most 255.
+     */
+    private static long readEntry(DataInputStream in) throws IOException
+    {
+        try
+        {
+            return in.readLong();
+        }
+        catch (EOFException e)
+        {
+            return -1;
+        }
+    }
+
+    private static DataOutputStream openOutput(Path path) throws IOException
+    {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+    }
+
+    private static DataInputStream openInput(Path path) throws IOException
+    {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+    }
+
+    private static void closeAll(Closeable[] streams) throws IOException
+    {
+        IOException exception = null;
+        for (Closeable stream : streams)
+        {
+            if (stream == null) continue;
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                if (exception == null) exception = e;
+            }
+        }
+        if (exception != null)
+        {
+            throw exception;
+        }
+    }
+
+    private static class MergeEntry
+    {
+        MergeEntry(long value, DataInputStream in)
+        {
+            this.value = value;
+            this.in = in;
+        }
+
+        private long value;
+        private final DataInputStream in;
+    }
+}
@@ -0,0 +1,156 @@
+package com.smfreports;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf.SmfRecordReader;
+
+/**
+ * Compare the speed of the record hash algorithms.
+ * <p>
+ * By default random data is hashed using typical record lengths for
+ * SMF type 30 (around 1.5KB) and type 110 (up to 32KB) records.
+ * If an input file is specified, the records from the file are used.
+ * <p>
+ * "sha1 copy" is the original SmfDeDup method, which hashes the array
+ * returned by getBytes() and allocates a new digest array for each record.
+ */
+public class HashBenchmark
+{
+    private static void printUsage() {
+        System.out.println("Usage: HashBenchmark [ --input=file ] [ repeat ]");
+        System.out.println("");
+        System.out.println("Report hashing throughput for each hash algorithm.");
+        System.out.println("");
+        System.out.println("  --input=file Hash the records from a SMF file instead of");
+        System.out.println("               random data.");
+        System.out.println("  repeat       Number of times to repeat each measurement. The best");
+        System.out.println("               result is reported. Default 5.");
+    }
+
+    // about 100MB of data for each record size
+    private static final int DATA_BYTES = 100 * 1024 * 1024;
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException
+    {
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h")))
+        {
+            printUsage();
+            System.exit(0);
+        }
+
+        String inputFile = null;
+        int repeat = 5;
+        for (String arg : args)
+        {
+            if (arg.startsWith("--input="))
+            {
+                inputFile = arg.substring("--input=".length());
+            }
+            else
+            {
+                repeat = Integer.parseInt(arg);
+            }
+        }
+
+        System.out.format("%-24s %-10s %12s %10s%n", "Data", "Hash", "Records/sec", "MB/sec");
+        if (inputFile != null)
+        {
+            List<byte[]> records = new ArrayList<>();
+            try (SmfRecordReader reader = SmfRecordReader.fromName(inputFile))
+            {
+                for (SmfRecord record : reader)
+                {
+                    records.add(record.getBytes());
+                }
+            }
+            run(inputFile, records.toArray(new byte[0][]), repeat);
+        }
+        else
+        {
+            Random random = new Random(0);
+            run("SMF 30 (1.5KB)", randomRecords(random, 1000, 2000), repeat);
+            run("SMF 110 (32KB)", randomRecords(random, 28000, 32756), repeat);
+        }
+    }
+
+    private static byte[][] randomRecords(Random random, int minLength, int maxLength)
+    {
+        List<byte[]> records = new ArrayList<>();
+        long total = 0;
+        while (total < DATA_BYTES)
+        {
+            byte[] record = new byte[minLength + random.nextInt(maxLength - minLength + 1)];
+            random.nextBytes(record);
+            records.add(record);
+            total += record.length;
+        }
+        return records.toArray(new byte[0][]);
+    }
+
+    private static void run(String name, byte[][] records, int repeat) throws NoSuchAlgorithmException
+    {
+        long bytes = 0;
+        for (byte[] record : records)
+        {
+            bytes += record.length;
+        }
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        measure(name, "sha1 copy", records, bytes, repeat, data ->
+        {
+            byte[] hash = sha1.digest(data.clone());
+            return hash[0];
+        });
+        for (String hash : RecordHasher.NAMES.split(", "))
+        {
+            RecordHasher hasher = RecordHasher.create(hash);
+            long[] digest = new long[SmfDeDup.DIGEST_WORDS];
+            measure(name, hash, records, bytes, repeat, data ->
+            {
+                hasher.hash(data, 0, data.length, digest, 0);
+                return digest[0];
+            });
+        }
+    }
+
+    private static void measure(String name, String hash, byte[][] records, long bytes, int repeat, Hash function)
+    {
+        long result = 0;
+        // warm up
+        for (byte[] record : records)
+        {
+            result += function.hash(record);
+        }
+
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < repeat; i++)
+        {
+            long start = System.nanoTime();
+            for (byte[] record : records)
+            {
+                result += function.hash(record);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        double seconds = bestNanos / 1_000_000_000.0;
+        System.out.format("%-24s %-10s %12.0f %10.1f%n",
+                name,
+                hash,
+                records.length / seconds,
+                bytes / (1024.0 * 1024) / seconds);
+        // use the result so the hashing can't be optimized away
+        if (result == 42)
+        {
+            System.out.println();
+        }
+    }
+
+    private interface Hash
+    {
+        long hash(byte[] data);
+    }
+}
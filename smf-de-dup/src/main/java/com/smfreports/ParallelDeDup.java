@@ -0,0 +1,293 @@
+package com.smfreports;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.blackhillsoftware.smf.SmfRecord;
+
+/**
+ * Search for duplicate records using multiple threads.
+ * <p>
+ * A reader thread reads the records and divides them into batches.
+ * The batches are hashed by a pool of worker threads, and the digests
+ * are added to a ShardedDigestSet.
+ * <p>
+ * Each batch visits the shards in order, and waits until the previous
+ * batch has finished with a shard before updating it. This means the
+ * digests are added to each shard in the same order as they would be
+ * added by a single thread, so the first occurrence of a record is
+ * always the one reported as unique. Different workers can update
+ * different shards at the same time.
+ * <p>
+ * Results are passed to the RecordListener on the calling thread in
+ * the same order as the input records. If a DigestIndex is used, records
+ * are checked against the index on the calling thread before they are
+ * passed to the listener.
+ */
+class ParallelDeDup
+{
+    private static final int BATCH_SIZE = 1000;
+
+    /** Marks the end of the input in the queue of pending batches */
+    private static final Batch END = new Batch(-1, Collections.emptyList());
+
+    private final int workers;
+    private final RecordHashing hashing;
+
+    /**
+     * Create a ParallelDeDup instance
+     * @param workers the number of worker threads used to hash records
+     * @param hashing how records are hashed
+     */
+    ParallelDeDup(int workers, RecordHashing hashing)
+    {
+        if (workers < 1)
+        {
+            throw new IllegalArgumentException("Worker count must be at least 1: " + workers);
+        }
+        this.workers = workers;
+        this.hashing = hashing;
+    }
+
+    /**
+     * Read the records and pass each one to the listener in input order,
+     * indicating whether it was the first occurrence of the record.
+     * @param records the input records
+     * @param recordHashes the set of digests
+     * @param index a persistent index of digests from previous runs, or null
+     * @param listener receives the records and results
+     * @throws IOException if an error occurs reading the records or in the listener
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void run(Iterable<SmfRecord> records, ShardedDigestSet recordHashes, DigestIndex index, 
+            SmfDeDup.RecordListener listener)
+            throws IOException, InterruptedException
+    {
+        ShardTurns turns = new ShardTurns(recordHashes.shardCount());
+
+        ExecutorService workerPool = Executors.newFixedThreadPool(workers, daemonThreads("SmfDeDup-worker"));
+        ExecutorService readerThread = Executors.newSingleThreadExecutor(daemonThreads("SmfDeDup-reader"));
+
+        // Limit the number of batches in progress, otherwise the reader
+        // could read the entire input into memory if the workers or
+        // the listener can't keep up.
+        BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<>(workers * 4);
+
+        try
+        {
+            Future<?> reader = readerThread.submit(() ->
+            {
+                read(records, workerPool, pending, recordHashes, turns, hashing);
+                return null;
+            });
+
+            for (Batch batch = getResult(pending.take());
+                    batch != END;
+                    batch = getResult(pending.take()))
+            {
+                for (int i = 0; i < batch.records.size(); i++)
+                {
+                    SmfRecord record = batch.records.get(i);
+                    boolean unique = batch.unique[i];
+                    if (unique && index != null)
+                    {
+                        unique = index.add(batch.digests, i * SmfDeDup.DIGEST_WORDS, SmfDeDup.smfDay(record));
+                    }
+                    listener.record(record, unique);
+                }
+            }
+            // check for exceptions in the reader
+            getResult(reader);
+        }
+        finally
+        {
+            readerThread.shutdownNow();
+            workerPool.shutdownNow();
+        }
+    }
+
+    private static void read(Iterable<SmfRecord> records,
+            ExecutorService workerPool,
+            BlockingQueue<Future<Batch>> pending,
+            ShardedDigestSet recordHashes,
+            ShardTurns turns,
+            RecordHashing hashing)
+                    throws InterruptedException
+    {
+        try
+        {
+            long batchNumber = 0;
+            List<SmfRecord> batchRecords = new ArrayList<>(BATCH_SIZE);
+            for (SmfRecord record : records)
+            {
+                batchRecords.add(record);
+                if (batchRecords.size() == BATCH_SIZE)
+                {
+                    Batch batch = new Batch(batchNumber++, batchRecords);
+                    pending.put(workerPool.submit(() -> hash(batch, recordHashes, turns, hashing)));
+                    batchRecords = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batchRecords.isEmpty())
+            {
+                Batch batch = new Batch(batchNumber, batchRecords);
+                pending.put(workerPool.submit(() -> hash(batch, recordHashes, turns, hashing)));
+            }
+        }
+        finally
+        {
+            // Always queue the end marker so the listener thread finishes,
+            // exceptions are reported through the reader Future
+            pending.put(CompletableFuture.completedFuture(END));
+        }
+    }
+
+    /**
+     * Hash the records in a batch and add the digests to the set.
+     * @param batch the batch of records
+     * @param recordHashes the set of digests
+     * @param turns controls the order batches update each shard
+     * @param hashing how records are hashed
+     * @return the batch, with the unique flag set for each record
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     * @throws InterruptedException if the worker is interrupted
+     */
+    private static Batch hash(Batch batch, ShardedDigestSet recordHashes, ShardTurns turns, RecordHashing hashing)
+            throws NoSuchAlgorithmException, InterruptedException
+    {
+        RecordHasher hasher = hashing.create();
+
+        int count = batch.records.size();
+        int words = SmfDeDup.DIGEST_WORDS;
+        long[] digests = batch.digests;
+
+        // Count the digests for each shard, then arrange the record
+        // indexes by shard keeping input order within each shard.
+        int[] shardStart = new int[recordHashes.shardCount() + 1];
+        for (int i = 0; i < count; i++)
+        {
+            SmfDeDup.digest(hasher, batch.records.get(i), digests, i * words);
+            shardStart[recordHashes.shardFor(digests, i * words) + 1]++;
+        }
+        for (int shard = 0; shard < recordHashes.shardCount(); shard++)
+        {
+            shardStart[shard + 1] += shardStart[shard];
+        }
+        int[] next = Arrays.copyOf(shardStart, recordHashes.shardCount());
+        int[] byShard = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            byShard[next[recordHashes.shardFor(digests, i * words)]++] = i;
+        }
+
+        // Every batch takes its turn on every shard, even if it has
+        // no digests for that shard, so the next batch can proceed.
+        for (int shard = 0; shard < recordHashes.shardCount(); shard++)
+        {
+            turns.await(shard, batch.number);
+            try
+            {
+                for (int i = shardStart[shard]; i < shardStart[shard + 1]; i++)
+                {
+                    int index = byShard[i];
+                    batch.unique[index] = recordHashes.add(shard, digests, index * words);
+                }
+            }
+            finally
+            {
+                turns.release(shard);
+            }
+        }
+        return batch;
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name)
+    {
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A batch of records and the results for each record
+     */
+    private static class Batch
+    {
+        Batch(long number, List<SmfRecord> records)
+        {
+            this.number = number;
+            this.records = records;
+            this.unique = new boolean[records.size()];
+            this.digests = new long[records.size() * SmfDeDup.DIGEST_WORDS];
+        }
+
+        private final long number;
+        private final List<SmfRecord> records;
+        private final boolean[] unique;
+        private final long[] digests;
+    }
+
+    /**
+     * Keep track of the next batch allowed to update each shard.
+     * <p>
+     * Batches are started by the worker pool in the order they
+     * were submitted, so the earliest unfinished batch never waits
+     * and the workers cannot deadlock.
+     */
+    private static class ShardTurns
+    {
+        ShardTurns(int shards)
+        {
+            nextBatch = new long[shards];
+            locks = new Object[shards];
+            for (int i = 0; i < shards; i++)
+            {
+                locks[i] = new Object();
+            }
+        }
+
+        private final long[] nextBatch;
+        private final Object[] locks;
+
+        void await(int shard, long batch) throws InterruptedException
+        {
+            synchronized (locks[shard])
+            {
+                while (nextBatch[shard] != batch)
+                {
+                    locks[shard].wait();
+                }
+            }
+        }
+
+        void release(int shard)
+        {
+            synchronized (locks[shard])
+            {
+                nextBatch[shard]++;
+                locks[shard].notifyAll();
+            }
+        }
+    }
+}
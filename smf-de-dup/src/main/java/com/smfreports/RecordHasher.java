@@ -0,0 +1,196 @@
+package com.smfreports;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculate a 128 bit digest of record data.
+ * <p>
+ * The data is hashed where it is, and the result is stored in a long
+ * array supplied by the caller, so no objects are created for each record.
+ * <p>
+ * Implementations are not thread safe, each thread needs its own instance.
+ */
+interface RecordHasher
+{
+    /** Names accepted by create() */
+    String NAMES = "sha1, murmur3";
+
+    /**
+     * Calculate the digest
+     * @param data the array containing the data to hash
+     * @param offset the start of the data in the array
+     * @param length the length of the data
+     * @param digest an array to receive the digest, as 2 longs
+     * @param digestOffset the index in the digest array for the first word
+     */
+    void hash(byte[] data, int offset, int length, long[] digest, int digestOffset);
+
+    /**
+     * Create a RecordHasher
+     * @param name the hash algorithm, "sha1" or "murmur3"
+     * @return a new RecordHasher
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    static RecordHasher create(String name) throws NoSuchAlgorithmException
+    {
+        switch (name)
+        {
+        case "sha1":
+            return new Sha1();
+        case "murmur3":
+            return new Murmur3();
+        default:
+            throw new IllegalArgumentException("Unknown hash: " + name + ", expected one of: " + NAMES);
+        }
+    }
+
+    /**
+     * SHA-1, using the first 128 bits of the hash.
+     * <p>
+     * We don't need a cryptographically secure hash, but SHA-1 is always
+     * available and collisions are practically impossible.
+     */
+    class Sha1 implements RecordHasher
+    {
+        private static final VarHandle LONG_BE =
+                MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+        private final MessageDigest sha1;
+        private final byte[] buffer;
+
+        Sha1() throws NoSuchAlgorithmException
+        {
+            sha1 = MessageDigest.getInstance("SHA-1");
+            buffer = new byte[sha1.getDigestLength()];
+        }
+
+        @Override
+        public void hash(byte[] data, int offset, int length, long[] digest, int digestOffset)
+        {
+            sha1.update(data, offset, length);
+            try
+            {
+                // digest into our own buffer to avoid allocating a new array
+                sha1.digest(buffer, 0, buffer.length);
+            }
+            catch (DigestException e)
+            {
+                // can only happen if the buffer is too small
+                throw new IllegalStateException(e);
+            }
+            digest[digestOffset] = (long) LONG_BE.get(buffer, 0);
+            digest[digestOffset + 1] = (long) LONG_BE.get(buffer, 8);
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128 bit variant, seed 0.
+     * <p>
+     * Murmur3 is not a cryptographic hash, but it is much faster than SHA-1
+     * and the output is well distributed, which is all we need to detect
+     * duplicate records. It reads the data 16 bytes at a time.
+     */
+    class Murmur3 implements RecordHasher
+    {
+        private static final VarHandle LONG_LE =
+                MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        @Override
+        public void hash(byte[] data, int offset, int length, long[] digest, int digestOffset)
+        {
+            long h1 = 0;
+            long h2 = 0;
+
+            int blockEnd = offset + (length & ~15);
+            for (int i = offset; i < blockEnd; i += 16)
+            {
+                long k1 = (long) LONG_LE.get(data, i);
+                long k2 = (long) LONG_LE.get(data, i + 8);
+
+                h1 ^= mixK1(k1);
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                h2 ^= mixK2(k2);
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            // remaining 0-15 bytes, each case falls through to the next
+            long k1 = 0;
+            long k2 = 0;
+            int tail = blockEnd;
+            switch (length & 15)
+            {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9:  k2 ^= (long) (data[tail + 8] & 0xff);
+                     h2 ^= mixK2(k2);
+            case 8:  k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7:  k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6:  k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5:  k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4:  k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3:  k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2:  k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1:  k1 ^= (long) (data[tail] & 0xff);
+                     h1 ^= mixK1(k1);
+            default:
+                break;
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+
+            digest[digestOffset] = h1;
+            digest[digestOffset + 1] = h2;
+        }
+
+        private static long mixK1(long k1)
+        {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            return k1;
+        }
+
+        private static long mixK2(long k2)
+        {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            return k2;
+        }
+
+        private static long fmix64(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.smfreports;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Controls how records are hashed: the hash algorithm, and optionally a
+ * key extractor for selected record types.
+ * <p>
+ * Some record types are identified by a few header and section fields,
+ * and hashing the whole record is unnecessary. A KeyExtractor copies the
+ * identifying bytes from the record, and only those bytes are hashed.
+ * Records of other types, or records the extractor doesn't recognize,
+ * are hashed in full.
+ * <p>
+ * Keys are extracted from the raw record bytes so no EasySMF objects are
+ * created for each record. Offsets are from the start of the RDW.
+ * <p>
+ * Records with the same key are treated as duplicates even if other data
+ * in the record is different. RecordKeyCheck can be used to check how
+ * often that happens for a sample of data.
+ * <p>
+ * Instances are thread safe. Each thread needs its own RecordHasher
+ * from create().
+ */
+class RecordHashing
+{
+    /**
+     * Copy the bytes that identify a record into a buffer
+     */
+    interface KeyExtractor
+    {
+        /**
+         * Extract the key
+         * @param record the record data including the RDW
+         * @param key the buffer to receive the key
+         * @return the length of the key, or -1 if the whole record should be hashed
+         */
+        int extract(byte[] record, byte[] key);
+    }
+
+    /** Offset of the self-defining section for most record types */
+    private static final int SELF_DEFINING = 24;
+
+    /** The header from the record type to the subtype: type, time, date, system, subsystem, subtype */
+    private static final int HEADER_START = 5;
+
+    /** Large enough for any SMF record */
+    private static final int KEY_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * SMF 30: the header, the self-defining section and the
+     * identification section. The self-defining section ends at the
+     * subsystem section, and contains the offsets and counts of all the
+     * sections in the record.
+     */
+    static final KeyExtractor SMF30 = (record, key) ->
+    {
+        if (record.length < SELF_DEFINING + 16)
+        {
+            return -1;
+        }
+        int length = copyHeader(record, readInt(record, SELF_DEFINING), key);
+        return length < 0 ? -1 : copySection(record, 32, key, length);
+    };
+
+    /** SMF 110: the subtype (SMFMNSTY) */
+    private static final int SMF110_SUBTYPE = 22;
+    /** SMF 110: the number of triplets (SMFMNTRN), followed by 2 reserved bytes */
+    private static final int SMF110_TRIPLET_COUNT = 24;
+    /** SMF 110: the product section triplet, the first triplet */
+    private static final int SMF110_PRODUCT_TRIPLET = 28;
+
+    /**
+     * SMF 110 subtype 1 (CICS monitoring): the header, the triplets and
+     * the product section. The product section identifies the CICS
+     * region and includes the record sequence information, and the data
+     * section triplet has the number of monitoring records.
+     */
+    static final KeyExtractor SMF110 = (record, key) ->
+    {
+        if (record.length < SMF110_PRODUCT_TRIPLET + 8
+                || readUnsignedShort(record, SMF110_SUBTYPE) != 1)
+        {
+            return -1;
+        }
+        int triplets = readUnsignedShort(record, SMF110_TRIPLET_COUNT);
+        if (triplets < 1)
+        {
+            return -1;
+        }
+        // header and all the triplets, at least up to 44 for the
+        // product and data section triplets
+        int length = copyHeader(record, SMF110_PRODUCT_TRIPLET + 8 * triplets, key);
+        return length < 0 ? -1 : copySection(record, SMF110_PRODUCT_TRIPLET, key, length);
+    };
+
+    /** Record types with a built in key extractor */
+    static final Map<Integer, KeyExtractor> BUILT_IN = Map.of(
+            30, SMF30,
+            110, SMF110);
+
+    private final String algorithm;
+    private final KeyExtractor[] extractors = new KeyExtractor[256];
+    private final SortedSet<Integer> keyTypes;
+
+    private final LongAdder recordBytes = new LongAdder();
+    private final LongAdder hashedBytes = new LongAdder();
+    private final LongAdder keyedRecords = new LongAdder();
+
+    /**
+     * Hash whole records using an algorithm
+     * @param algorithm the hash algorithm, see RecordHasher.create
+     */
+    RecordHashing(String algorithm)
+    {
+        this(algorithm, Collections.emptySet());
+    }
+
+    /**
+     * Hash records using an algorithm, using the built in key extractors
+     * for some record types.
+     * @param algorithm the hash algorithm, see RecordHasher.create
+     * @param keyTypes the record types to hash using key extractors
+     * @throws IllegalArgumentException if there is no key extractor for a type
+     */
+    RecordHashing(String algorithm, Set<Integer> keyTypes)
+    {
+        this.algorithm = algorithm;
+        this.keyTypes = Collections.unmodifiableSortedSet(new TreeSet<>(keyTypes));
+        for (int recordType : keyTypes)
+        {
+            KeyExtractor extractor = BUILT_IN.get(recordType);
+            if (extractor == null)
+            {
+                throw new IllegalArgumentException("No key extractor for record type " + recordType);
+            }
+            extractors[recordType] = extractor;
+        }
+    }
+
+    /**
+     * Create a RecordHasher for a thread.
+     * @return a new RecordHasher
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    RecordHasher create() throws NoSuchAlgorithmException
+    {
+        RecordHasher hasher = RecordHasher.create(algorithm);
+        return keyTypes.isEmpty() ? hasher : new KeyedHasher(hasher);
+    }
+
+    String algorithm()
+    {
+        return algorithm;
+    }
+
+    SortedSet<Integer> keyTypes()
+    {
+        return keyTypes;
+    }
+
+    /**
+     * Extract the key for a record
+     * @param record the record data including the RDW
+     * @param key a buffer at least 32KB long
+     * @return the length of the key, or -1 if the whole record should be hashed
+     */
+    int extract(byte[] record, byte[] key)
+    {
+        if (record.length > HEADER_START)
+        {
+            KeyExtractor extractor = extractors[record[HEADER_START] & 0xff];
+            if (extractor != null)
+            {
+                return extractor.extract(record, key);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Print the number of records hashed using keys and the
+     * proportion of data hashed.
+     */
+    void printStatistics()
+    {
+        if (!keyTypes.isEmpty())
+        {
+            long total = recordBytes.sum();
+            long hashed = hashedBytes.sum();
+            System.out.format("Keyed hashing for types %s: %d records, hashed %.1f MB of %.1f MB (%.1f%% saved).%n",
+                    keyTypes,
+                    keyedRecords.sum(),
+                    hashed / (1024.0 * 1024),
+                    total / (1024.0 * 1024),
+                    total > 0 ? (double) (total - hashed) / total * 100 : 0);
+        }
+    }
+
+    /**
+     * Copy the header and the self-defining section to the key
+     * @return the length copied, or -1 if the end is not valid
+     */
+    private static int copyHeader(byte[] record, int end, byte[] key)
+    {
+        if (end < SELF_DEFINING || end > record.length || end - HEADER_START > key.length)
+        {
+            return -1;
+        }
+        System.arraycopy(record, HEADER_START, key, 0, end - HEADER_START);
+        return end - HEADER_START;
+    }
+
+    /**
+     * Append the sections described by a triplet to the key
+     * @param record the record
+     * @param triplet the offset of the triplet (offset, length, count)
+     * @param key the key buffer
+     * @param position the current length of the key
+     * @return the new length of the key, or -1 if the triplet is not valid
+     */
+    private static int copySection(byte[] record, int triplet, byte[] key, int position)
+    {
+        if (triplet + 8 > record.length)
+        {
+            return -1;
+        }
+        long offset = readInt(record, triplet) & 0xffffffffL;
+        long length = (long) readUnsignedShort(record, triplet + 4) * readUnsignedShort(record, triplet + 6);
+        if (length == 0
+                || offset < SELF_DEFINING
+                || offset + length > record.length
+                || position + length > key.length)
+        {
+            return -1;
+        }
+        System.arraycopy(record, (int) offset, key, position, (int) length);
+        return position + (int) length;
+    }
+
+    private static int readInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) << 24
+                | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+
+    /**
+     * A RecordHasher that hashes the key for selected record types
+     */
+    private class KeyedHasher implements RecordHasher
+    {
+        KeyedHasher(RecordHasher hasher)
+        {
+            this.hasher = hasher;
+        }
+
+        private final RecordHasher hasher;
+        private final byte[] key = new byte[KEY_BUFFER_SIZE];
+
+        @Override
+        public void hash(byte[] data, int offset, int length, long[] digest, int digestOffset)
+        {
+            // keys are only extracted from a complete record
+            int keyLength = offset == 0 && length == data.length ? extract(data, key) : -1;
+            recordBytes.add(length);
+            if (keyLength >= 0)
+            {
+                keyedRecords.increment();
+                hashedBytes.add(keyLength);
+                hasher.hash(key, 0, keyLength, digest, digestOffset);
+            }
+            else
+            {
+                hashedBytes.add(length);
+                hasher.hash(data, offset, length, digest, digestOffset);
+            }
+        }
+    }
+}
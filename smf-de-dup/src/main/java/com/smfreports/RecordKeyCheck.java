@@ -0,0 +1,140 @@
+package com.smfreports;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf.SmfRecordReader;
+
+/**
+ * Check the record keys used by SmfDeDup --keys against a sample of data.
+ * <p>
+ * Each record is hashed in full and using its key. A collision is a
+ * record where the key matches an earlier record but the full record
+ * does not, i.e. a record that --keys would discard but the full hash
+ * would keep. Collisions should be zero; if not, the key for the record
+ * type is missing something that distinguishes records.
+ * <p>
+ * The time to hash the sample in full and using keys is also reported.
+ */
+public class RecordKeyCheck
+{
+    private static void printUsage() {
+        System.out.println("Usage: RecordKeyCheck <input-file> [ types ]");
+        System.out.println("");
+        System.out.println("Compare full record hashes with key hashes for a sample of SMF data.");
+        System.out.println("");
+        System.out.println("  input-file   SMF data to check. Records are kept in memory.");
+        System.out.println("  types        Comma separated record types to check, default 30,110");
+    }
+
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException
+    {
+        if (args.length < 1 || args[0].equals("--help") || args[0].equals("-h"))
+        {
+            printUsage();
+            System.exit(0);
+        }
+
+        Set<Integer> types = new HashSet<>();
+        if (args.length > 1)
+        {
+            for (String type : args[1].split(","))
+            {
+                types.add(Integer.parseInt(type.trim()));
+            }
+        }
+        else
+        {
+            types.addAll(RecordHashing.BUILT_IN.keySet());
+        }
+        RecordHashing hashing = new RecordHashing("sha1", types);
+
+        List<byte[]> records = new ArrayList<>();
+        try (SmfRecordReader reader = SmfRecordReader.fromName(args[0]))
+        {
+            for (SmfRecord record : reader)
+            {
+                records.add(record.getBytes());
+            }
+        }
+
+        RecordHasher hasher = RecordHasher.create(hashing.algorithm());
+        byte[] key = new byte[32 * 1024];
+        long[] digest = new long[SmfDeDup.DIGEST_WORDS];
+        DigestSet fullHashes = new DigestSet(SmfDeDup.DIGEST_WORDS, records.size());
+        DigestSet keyHashes = new DigestSet(SmfDeDup.DIGEST_WORDS, records.size());
+
+        long[] keyed = new long[256];
+        long[] recordBytes = new long[256];
+        long[] keyBytes = new long[256];
+        long[] fullDuplicates = new long[256];
+        long[] keyDuplicates = new long[256];
+        long[] collisions = new long[256];
+
+        for (byte[] record : records)
+        {
+            int keyLength = hashing.extract(record, key);
+            if (keyLength < 0)
+            {
+                continue;
+            }
+            int recordType = record[5] & 0xff; // after the RDW and flag byte
+            keyed[recordType]++;
+            recordBytes[recordType] += record.length;
+            keyBytes[recordType] += keyLength;
+
+            hasher.hash(record, 0, record.length, digest, 0);
+            boolean fullUnique = fullHashes.add(digest, 0);
+            hasher.hash(key, 0, keyLength, digest, 0);
+            boolean keyUnique = keyHashes.add(digest, 0);
+
+            if (!fullUnique) fullDuplicates[recordType]++;
+            if (!keyUnique) keyDuplicates[recordType]++;
+            if (fullUnique && !keyUnique) collisions[recordType]++;
+        }
+
+        System.out.format("%d records read.%n%n", records.size());
+        System.out.format("%-6s %10s %12s %12s %8s %10s %10s %10s%n",
+                "Type", "Keyed", "Record MB", "Key MB", "Saved", "Dups", "Key Dups", "Collisions");
+        for (int recordType : hashing.keyTypes())
+        {
+            System.out.format("%-6d %10d %12.1f %12.1f %7.1f%% %10d %10d %10d%n",
+                    recordType,
+                    keyed[recordType],
+                    recordBytes[recordType] / (1024.0 * 1024),
+                    keyBytes[recordType] / (1024.0 * 1024),
+                    recordBytes[recordType] > 0
+                        ? (double) (recordBytes[recordType] - keyBytes[recordType])
+                                / recordBytes[recordType] * 100
+                        : 0,
+                    fullDuplicates[recordType],
+                    keyDuplicates[recordType],
+                    collisions[recordType]);
+        }
+        System.out.println();
+
+        RecordHasher keyedHasher = hashing.create();
+        System.out.format("Full hash: %6d ms%n", time(hasher, records, digest));
+        System.out.format("Key hash:  %6d ms%n", time(keyedHasher, records, digest));
+    }
+
+    /**
+     * Hash all records 5 times and return the best time
+     */
+    private static long time(RecordHasher hasher, List<byte[]> records, long[] digest)
+    {
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            long start = System.nanoTime();
+            for (byte[] record : records)
+            {
+                hasher.hash(record, 0, record.length, digest, 0);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        return bestNanos / 1_000_000;
+    }
+}
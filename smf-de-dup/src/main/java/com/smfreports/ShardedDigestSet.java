@@ -0,0 +1,190 @@
+package com.smfreports;
+
+/**
+ * A set of record digests divided into shards by the digest prefix.
+ * <p>
+ * Each shard is an independent DigestSet, so different threads can update
+ * different shards at the same time. A digest always maps to the same
+ * shard, so a duplicate is always found in the shard where the
+ * original was added. Sharding also allows the set to hold more digests
+ * than fit in a single Java array.
+ * <p>
+ * Optionally, each shard can have a Bloom filter. Digests the filter
+ * reports as definitely new are added to the shard without searching
+ * for an existing entry.
+ * <p>
+ * The shards themselves are not synchronized. Callers are responsible
+ * for making sure only one thread updates a shard at a time.
+ */
+class ShardedDigestSet
+{
+    /**
+     * Create a set with the specified number of shards.
+     * @param shardCount the number of shards, a power of 2 from 1 to 256
+     * @param words the width of the digests as a number of 64 bit words
+     */
+    ShardedDigestSet(int shardCount, int words)
+    {
+        this(shardCount, words, 0);
+    }
+    
+    /**
+     * Create a set with the specified number of shards and Bloom filters.
+     * @param shardCount the number of shards, a power of 2 from 1 to 256
+     * @param words the width of the digests as a number of 64 bit words
+     * @param filterBytes the total memory for Bloom filters, divided between 
+     * the shards, or 0 for no filters
+     */
+    ShardedDigestSet(int shardCount, int words, long filterBytes)
+    {
+        if (shardCount < 1 || shardCount > 256 || Integer.bitCount(shardCount) != 1)
+        {
+            throw new IllegalArgumentException("Shard count must be a power of 2 from 1 to 256: " + shardCount);
+        }
+        shards = new DigestSet[shardCount];
+        for (int i = 0; i < shardCount; i++)
+        {
+            shards[i] = new DigestSet(words);
+        }
+        shardBits = Integer.numberOfTrailingZeros(shardCount);
+        
+        if (filterBytes > 0)
+        {
+            filters = new BloomFilter[shardCount];
+            filterNew = new long[shardCount];
+            for (int i = 0; i < shardCount; i++)
+            {
+                filters[i] = new BloomFilter(filterBytes / shardCount, FILTER_HASHES);
+            }
+        }
+    }
+
+    private static final int FILTER_HASHES = 5;
+    
+    private DigestSet[] shards;
+    private int shardBits;
+    private BloomFilter[] filters = null;
+    private long[] filterNew = null;
+
+    int shardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Get the shard number for a digest, using the high order
+     * bits of the first word.
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     * @return the shard number, from 0 to shardCount() - 1
+     */
+    int shardFor(long[] digest, int offset)
+    {
+        // a shift of 64 bits would do nothing, so check for a single shard
+        return shardBits == 0 ? 0 : (int) (digest[offset] >>> (64 - shardBits));
+    }
+
+    /**
+     * Add a digest to its shard.
+     * @param shard the shard number returned by shardFor(digest, offset)
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     * @return true if the digest was not already present
+     */
+    boolean add(int shard, long[] digest, int offset)
+    {
+        if (filters != null 
+                && filters[shard].put(digest[offset], digest[offset + shards[shard].words() - 1]))
+        {
+            // definitely new
+            filterNew[shard]++;
+            shards[shard].addNew(digest, offset);
+            return true;
+        }
+        return shards[shard].add(digest, offset);
+    }
+
+    /**
+     * Add a digest to the appropriate shard.
+     * @param digest an array containing the digest
+     * @param offset the index of the first word of the digest in the array
+     * @return true if the digest was not already present
+     */
+    boolean add(long[] digest, int offset)
+    {
+        return add(shardFor(digest, offset), digest, offset);
+    }
+
+    /**
+     * The total number of digests in all shards.
+     * @return the number of digests
+     */
+    long size()
+    {
+        long size = 0;
+        for (DigestSet shard : shards)
+        {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Check whether Bloom filters are in use
+     * @return true if the shards have Bloom filters
+     */
+    boolean hasFilters()
+    {
+        return filters != null;
+    }
+    
+    /**
+     * The number of digests the Bloom filters reported as definitely new,
+     * avoiding a search of the hash table.
+     * @return the number of digests
+     */
+    long filterNew()
+    {
+        long count = 0;
+        if (filterNew != null)
+        {
+            for (long shardCount : filterNew)
+            {
+                count += shardCount;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * The estimated Bloom filter false positive rate, averaged over the shards.
+     * @return the false positive rate from 0 to 1
+     */
+    double filterFalsePositiveRate()
+    {
+        double total = 0;
+        if (filters != null)
+        {
+            for (BloomFilter filter : filters)
+            {
+                total += filter.falsePositiveRate();
+            }
+            total /= filters.length;
+        }
+        return total;
+    }
+
+    /**
+     * The total memory used by the hash tables for all shards.
+     * @return the size of the tables in bytes
+     */
+    long memoryBytes()
+    {
+        long bytes = 0;
+        for (DigestSet shard : shards)
+        {
+            bytes += shard.memoryBytes();
+        }
+        return bytes;
+    }
+}
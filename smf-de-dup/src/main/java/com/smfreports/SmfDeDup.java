@@ -1,8 +1,7 @@
 package com.smfreports;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
+import java.nio.file.*;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
@@ -12,8 +11,17 @@ import com.blackhillsoftware.smf.SmfRecordWriter;
 
 public class SmfDeDup
 {
+    /** 
+     * Digests are 128 bit hashes, stored as 2 longs. The chance of a 
+     * collision between different records is negligible.
+     */
+    static final int DIGEST_WORDS = 2;
+    
+    /** Number of shards in the digest set, allowing it to grow beyond the Java array size limit */
+    static final int SHARDS = 64;
+    
     private static void printUsage() {
-        System.out.println("Usage: SmfDeDup <input-file> [ output-file [ dup-file ] ]");
+        System.out.println("Usage: SmfDeDup [options] <input-file> [ output-file [ dup-file ] ]");
         System.out.println("");
         System.out.println("Search for duplicates in input-file, and report duplicate record counts");
         System.out.println("by record type.");
@@ -23,6 +31,29 @@ public class SmfDeDup
         System.out.println("  output-file  Copy data to output-file with duplicates removed.");
         System.out.println("  dup-file     Write duplicate records to dup-file to allow further");
         System.out.println("               investigation. Can only be specified with output-file.");
+        System.out.println("");
+        System.out.println("Options:");
+        System.out.println("  --threads=n  Hash records using n worker threads. Output order is");
+        System.out.println("               the same as the input order. Default 1.");
+        System.out.println("  --hash=h     Hash algorithm: sha1 (default) or murmur3. murmur3 is");
+        System.out.println("               faster but not cryptographically secure.");
+        System.out.println("  --keys[=t,t] Hash only the identifying fields of selected record types.");
+        System.out.println("               Types: 30, 110 (default both). Faster, but records with");
+        System.out.println("               the same key are duplicates even if other data differs.");
+        System.out.println("  --bloom=n    Use a Bloom filter of n MB to identify new records without");
+        System.out.println("               searching the hash table.");
+        System.out.println("  --external   Use temporary files for record hashes, for input too large");
+        System.out.println("               to process in memory. The input is read twice if");
+        System.out.println("               output-file or dup-file is specified. Can't be used with");
+        System.out.println("               --threads, --bloom or --index.");
+        System.out.println("  --memory=n   Memory limit in MB for hashes in external mode. Default 1024.");
+        System.out.println("  --temp-dir=d Directory for temporary files in external mode.");
+        System.out.println("  --index=f    Keep the record hashes in index file f, and report records");
+        System.out.println("               found in previous runs as duplicates. The file is created");
+        System.out.println("               if it doesn't exist. Can't be used with --external.");
+        System.out.println("               Not supported on Windows.");
+        System.out.println("  --index-days=n  Remove entries from the index more than n days older");
+        System.out.println("               than the newest SMF date in the index.");
     }
     
     private static void printWarning() {
@@ -35,65 +66,95 @@ public class SmfDeDup
         System.out.println("");
     }
     
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException
+    public static void main(String[] args) 
+            throws IOException, NoSuchAlgorithmException, InterruptedException
     {
         if (args.length == 0 || args[0].equals("--help") || args[0].equals("-h"))
         {
             printUsage();
             System.exit(0);
         }
-        printWarning();
         
-        // We don't need a cryptographically secure hash, SHA-1 might be 
-        // faster than SHA-256 hashes and should be adequate to find duplicates
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        
-        // Hashes will be stored as BigIntegers
-        Set<Digest> recordHashes = new HashSet<>();
+        Options options;
+        try
+        {
+            options = Options.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
         
-        Map<Integer, RecordStats> duplicatesByType = new HashMap<>(); 
+        printWarning();
         
-        // Open reader, and writer and dupwriter classes if provided.
+        // Open writer and dupwriter classes if provided.
         try (
-            SmfRecordReader reader = SmfRecordReader.fromName(args[0]);                
-            SmfRecordWriter writer = args.length > 1 ? SmfRecordWriter.fromName(args[1]) : null;
-            SmfRecordWriter dupwriter = args.length > 2 ? SmfRecordWriter.fromName(args[2]) : null;
+            SmfRecordWriter writer = options.outputFile != null ? SmfRecordWriter.fromName(options.outputFile) : null;
+            SmfRecordWriter dupwriter = options.dupFile != null ? SmfRecordWriter.fromName(options.dupFile) : null;
             )        
         {
-            int in = 0;
-            int out = 0;
-            int dups = 0;
-            for (SmfRecord record : reader)
+            DeDupWriter results = new DeDupWriter(writer, dupwriter);
+            RecordHashing hashing = new RecordHashing(options.hash, options.keyTypes);
+            
+            if (options.external)
+            {
+                externalDeDup(options, hashing, results);
+            }
+            else
             {
-                in++;
-                if (recordHashes.add(new Digest(sha1.digest(record.getBytes()))))
+                try (SmfRecordReader reader = SmfRecordReader.fromName(options.inputFile))
                 {
-                    // new hash, not a duplicate
-                    if (writer != null) // if we have an output file for deduplicated records
+                    ShardedDigestSet recordHashes = 
+                            new ShardedDigestSet(SHARDS, DIGEST_WORDS, options.filterBytes);
+                    
+                    try (DigestIndex index = options.indexFile != null 
+                            ? new DigestIndex(options.indexFile, hashing) : null)
                     {
-                        out++;
-                        writer.write(record);
+                        deDup(reader, recordHashes, index, hashing, options.threads, results);
+                        if (index != null)
+                        {
+                            if (options.indexDays > 0)
+                            {
+                                index.expire(options.indexDays);
+                            }
+                            System.out.format("Digest index: %d entries from %s to %s, %.1f MB, "
+                                    + "%d records found in previous runs, %d added, %d expired.%n", 
+                                    index.size(),
+                                    index.oldest(),
+                                    index.newest(),
+                                    index.fileBytes() / (1024.0 * 1024),
+                                    index.matched(),
+                                    index.added(),
+                                    index.expired());
+                        }
                     }
-                }
-                else
-                {
-                    // hash was already in Set i.e. duplicate record
-                    dups++;
-                    if (dupwriter != null) // if we have an output file for duplicate records
+                    
+                    System.out.format("Digest set: %d entries, %.1f MB, %.1f bytes per record.%n", 
+                            recordHashes.size(),
+                            recordHashes.memoryBytes() / (1024.0 * 1024),
+                            recordHashes.size() > 0 ? (double) recordHashes.memoryBytes() / recordHashes.size() : 0);
+                    if (recordHashes.hasFilters())
                     {
-                        dupwriter.write(record);
+                        System.out.format("Bloom filter: %.1f MB, %d records definitely new, "
+                                + "estimated false positive rate %.3f%%.%n", 
+                                options.filterBytes / (1024.0 * 1024),
+                                recordHashes.filterNew(),
+                                recordHashes.filterFalsePositiveRate() * 100);
                     }
-                    duplicatesByType
-                        .computeIfAbsent(record.recordType(), key -> new RecordStats(record.recordType()))
-                        .count(record);
                 }
             }
-            System.out.format("Finished, %d records in, %d records out, %d duplicates.%n", in, out, dups);
             
-            if (dups > 0)
+            hashing.printStatistics();
+            System.out.format("Finished, %d records in, %d records out, %d duplicates.%n", 
+                    results.in, results.out, results.dups);
+            
+            if (results.dups > 0)
             {
                 System.out.format("%nDuplicates by type:%n");
-                duplicatesByType.values().stream()
+                results.duplicatesByType.values().stream()
                     .sorted(Comparator.comparing(RecordStats::getRecordtype))
                     .forEachOrdered(entry -> System.out.format("%4d : %8d%n", entry.getRecordtype(), entry.getCount()));
             }
@@ -106,64 +167,373 @@ public class SmfDeDup
         }
     }
     
-    private static class RecordStats
+    /**
+     * Search for duplicates using temporary files, so the number of records
+     * is not limited by the available memory. 
+     * 
+     * @param options the command line options
+     * @param hashing how records are hashed
+     * @param results receives the records if they are being written, 
+     * and collects the counts
+     * @throws IOException if an I/O error occurs
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    private static void externalDeDup(Options options, RecordHashing hashing, DeDupWriter results) 
+            throws IOException, NoSuchAlgorithmException
     {
-        RecordStats(int recordtype)
+        try (ExternalDeDup external = 
+                new ExternalDeDup(options.memoryLimit, options.tempDirectory, hashing))
         {
-            this.recordtype = recordtype;
+            try (SmfRecordReader reader = SmfRecordReader.fromName(options.inputFile))
+            {
+                external.partition(reader);
+            }
+            
+            if (results.writer != null || results.dupwriter != null)
+            {
+                // we need to read the data again to write the output 
+                external.findDuplicates(recordType -> {});
+                try (SmfRecordReader reader = SmfRecordReader.fromName(options.inputFile))
+                {
+                    external.output(reader, results);
+                }
+            }
+            else
+            {
+                // counts only, we don't need to read the input again
+                external.findDuplicates(results::countDuplicate);
+                results.in = external.records();
+            }
+            external.printStatistics();
         }
-        
-        private int recordtype;
-        private int count = 0;
-
-        public void count(SmfRecord record)
+    }
+    
+    /**
+     * Search for duplicates in the records and pass each record to the 
+     * listener in input order, indicating whether it is the first occurrence.
+     * 
+     * @param records the input records
+     * @param recordHashes the set of digests, records already in the set are duplicates
+     * @param index a persistent index of digests from previous runs, or null.
+     * Records that are unique in this run are checked against the index
+     * and added to it.
+     * @param hashing how records are hashed
+     * @param threads the number of threads used to hash records
+     * @param listener receives each record and the result
+     * @throws IOException if an I/O error occurs
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     * @throws InterruptedException if the thread is interrupted while waiting for workers
+     */
+    static void deDup(Iterable<SmfRecord> records, ShardedDigestSet recordHashes, 
+            DigestIndex index, RecordHashing hashing, int threads, RecordListener listener) 
+            throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        if (threads > 1)
         {
-            count++;
+            new ParallelDeDup(threads, hashing).run(records, recordHashes, index, listener);
         }
-
-        private int getRecordtype() {
-            return recordtype;
-        }
-
-        private int getCount() {
-            return count;
+        else
+        {
+            RecordHasher hasher = hashing.create();
+            
+            long[] digest = new long[DIGEST_WORDS];
+            for (SmfRecord record : records)
+            {
+                digest(hasher, record, digest, 0);
+                // add returns true if this is a new hash i.e. not a duplicate
+                boolean unique = recordHashes.add(digest, 0);
+                if (unique && index != null)
+                {
+                    unique = index.add(digest, 0, smfDay(record));
+                }
+                listener.record(record, unique);
+            }
         }
     }
     
     /**
-     * A class to store hashes in the set, providing hashcode and equals implementations 
+     * Calculate the digest for a record. The record data is hashed 
+     * in place in the array returned by getBytes().
+     * @param hasher the RecordHasher
+     * @param record the record
+     * @param digests the array to receive the digest
+     * @param offset the index in the array to store the digest
      */
-    private static class Digest
+    static void digest(RecordHasher hasher, SmfRecord record, long[] digests, int offset)
     {
-        public Digest(byte[] digest)
+        byte[] data = record.getBytes();
+        hasher.hash(data, 0, data.length, digests, offset);
+    }
+    
+    /**
+     * The SMF date of a record, used to age out entries in the DigestIndex
+     * @param record the record
+     * @return the SMF date as an epoch day
+     */
+    static long smfDay(SmfRecord record)
+    {
+        return record.smfDateTime().toLocalDate().toEpochDay();
+    }
+    
+    /**
+     * Receives the records in input order with an indication of whether
+     * each record is unique.
+     */
+    interface RecordListener
+    {
+        /**
+         * Process a record
+         * @param record the SMF record
+         * @param unique true if this is the first occurrence of the record
+         * @throws IOException if an I/O error occurs processing the record
+         */
+        void record(SmfRecord record, boolean unique) throws IOException;
+    }
+    
+    /**
+     * Count records and write them to the output and duplicate files 
+     */
+    private static class DeDupWriter implements RecordListener
+    {
+        DeDupWriter(SmfRecordWriter writer, SmfRecordWriter dupwriter)
         {
-            this.digest = digest;
-            // for a SHA-1 hash, the first 4 bytes is probably an adequate 
-            // value to return for hashCode
-            hashCode = ByteBuffer.wrap(digest).getInt();
+            this.writer = writer;
+            this.dupwriter = dupwriter;
         }
         
+        private SmfRecordWriter writer;
+        private SmfRecordWriter dupwriter;
+        
+        private long in = 0;
+        private long out = 0;
+        private long dups = 0;
+        private Map<Integer, RecordStats> duplicatesByType = new HashMap<>(); 
+        
         @Override
-        public int hashCode() 
+        public void record(SmfRecord record, boolean unique) throws IOException
         {
-            return hashCode;
+            in++;
+            if (unique)
+            {
+                // new hash, not a duplicate
+                if (writer != null) // if we have an output file for deduplicated records
+                {
+                    out++;
+                    writer.write(record);
+                }
+            }
+            else
+            {
+                // hash was already in Set i.e. duplicate record
+                if (dupwriter != null) // if we have an output file for duplicate records
+                {
+                    dupwriter.write(record);
+                }
+                countDuplicate(record.recordType());
+            }
         }
         
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Digest other = (Digest) obj;
-            return Arrays.equals(this.digest, other.digest);    
+        private void countDuplicate(int recordType)
+        {
+            dups++;
+            duplicatesByType
+                .computeIfAbsent(recordType, key -> new RecordStats(recordType))
+                .count();
         }
+    }
+    
+    /**
+     * Command line options and file names
+     */
+    private static class Options
+    {
+        private String inputFile = null;
+        private String outputFile = null;
+        private String dupFile = null;
+        private int threads = 1;
+        private boolean external = false;
+        private long memoryLimit = 1024L * 1024 * 1024;
+        private Path tempDirectory = null;
+        private long filterBytes = 0;
+        private String hash = "sha1";
+        private Set<Integer> keyTypes = Collections.emptySet();
+        private Path indexFile = null;
+        private int indexDays = 0;
         
-        private byte[] digest;
-        private int hashCode;
+        /** Options that don't take a value */
+        private static final Set<String> FLAGS = new HashSet<>(Arrays.asList("--external", "--keys"));
         
+        /**
+         * Parse the command line. Options start with "--" and can be 
+         * specified as --option=value or --option value.
+         * @param args the command line arguments
+         * @return the Options
+         * @throws IllegalArgumentException if the arguments are not valid
+         */
+        static Options parse(String[] args)
+        {
+            Options options = new Options();
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.startsWith("--"))
+                {
+                    String name = arg;
+                    String value = null;
+                    int equals = arg.indexOf('=');
+                    if (equals > 0)
+                    {
+                        name = arg.substring(0, equals);
+                        value = arg.substring(equals + 1);
+                    }
+                    else if (!FLAGS.contains(name) && i + 1 < args.length)
+                    {
+                        value = args[++i];
+                    }
+                    
+                    switch (name)
+                    {
+                    case "--threads":
+                        options.threads = parseInt(name, value);
+                        if (options.threads < 1)
+                        {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    case "--hash":
+                        if (value == null || !Arrays.asList(RecordHasher.NAMES.split(", ")).contains(value))
+                        {
+                            throw new IllegalArgumentException("--hash requires one of: " + RecordHasher.NAMES);
+                        }
+                        options.hash = value;
+                        break;
+                    case "--keys":
+                        options.keyTypes = value == null 
+                            ? RecordHashing.BUILT_IN.keySet() 
+                            : parseTypes(name, value);
+                        break;
+                    case "--bloom":
+                        options.filterBytes = parseInt(name, value) * 1024L * 1024;
+                        break;
+                    case "--external":
+                        options.external = true;
+                        break;
+                    case "--memory":
+                        options.memoryLimit = parseInt(name, value) * 1024L * 1024;
+                        if (options.memoryLimit < 1)
+                        {
+                            throw new IllegalArgumentException("--memory must be at least 1");
+                        }
+                        break;
+                    case "--temp-dir":
+                        if (value == null)
+                        {
+                            throw new IllegalArgumentException("--temp-dir requires a directory name");
+                        }
+                        options.tempDirectory = Paths.get(value);
+                        break;
+                    case "--index":
+                        if (value == null)
+                        {
+                            throw new IllegalArgumentException("--index requires a file name");
+                        }
+                        options.indexFile = Paths.get(value);
+                        break;
+                    case "--index-days":
+                        options.indexDays = parseInt(name, value);
+                        if (options.indexDays < 1)
+                        {
+                            throw new IllegalArgumentException("--index-days must be at least 1");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + name);
+                    }
+                }
+                else
+                {
+                    files.add(arg);
+                }
+            }
+            
+            if (files.isEmpty() || files.size() > 3)
+            {
+                throw new IllegalArgumentException("Expected 1 to 3 file names");
+            }
+            if (options.external && options.indexFile != null)
+            {
+                throw new IllegalArgumentException("--index can't be used with --external");
+            }
+            if (options.external && options.threads > 1)
+            {
+                throw new IllegalArgumentException("--threads can't be used with --external");
+            }
+            if (options.external && options.filterBytes > 0)
+            {
+                throw new IllegalArgumentException("--bloom can't be used with --external");
+            }
+            if (options.indexDays > 0 && options.indexFile == null)
+            {
+                throw new IllegalArgumentException("--index-days requires --index");
+            }
+            options.inputFile = files.get(0);
+            options.outputFile = files.size() > 1 ? files.get(1) : null;
+            options.dupFile = files.size() > 2 ? files.get(2) : null;
+            return options;
+        }
+        
+        private static Set<Integer> parseTypes(String name, String value)
+        {
+            Set<Integer> types = new HashSet<>();
+            for (String type : value.split(","))
+            {
+                int recordType = parseInt(name, type.trim());
+                if (!RecordHashing.BUILT_IN.containsKey(recordType))
+                {
+                    throw new IllegalArgumentException("No key extractor for record type " + recordType 
+                            + ", expected " + new TreeSet<>(RecordHashing.BUILT_IN.keySet()));
+                }
+                types.add(recordType);
+            }
+            return types;
+        }
+        
+        private static int parseInt(String name, String value)
+        {
+            try
+            {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        }
+    }
+    
+    private static class RecordStats
+    {
+        RecordStats(int recordtype)
+        {
+            this.recordtype = recordtype;
+        }
+        
+        private int recordtype;
+        private long count = 0;
+
+        public void count()
+        {
+            count++;
+        }
+
+        private int getRecordtype() {
+            return recordtype;
+        }
+
+        private long getCount() {
+            return count;
+        }
     }
     
 }
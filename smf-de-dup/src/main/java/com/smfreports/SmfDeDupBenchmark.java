@@ -0,0 +1,108 @@
+package com.smfreports;
+
+import java.io.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf.SmfRecordReader;
+
+/**
+ * Measure SmfDeDup throughput with different numbers of worker threads.
+ * <p>
+ * The records are read into memory first so the measurement is not
+ * limited by the speed of the input file. Output is not written, so
+ * the results show the hashing and duplicate search rate only.
+ * Use a sample of data that fits in the Java heap.
+ */
+public class SmfDeDupBenchmark
+{
+    private static void printUsage() {
+        System.out.println("Usage: SmfDeDupBenchmark <input-file> [ max-threads [ repeat [ hash ] ] ]");
+        System.out.println("");
+        System.out.println("Read input-file into memory and report records/sec searching for");
+        System.out.println("duplicates using 1, 2, 4 ... max-threads worker threads.");
+        System.out.println("");
+        System.out.println("  input-file   File containing SMF records. Binary data, RECFM=U or V[B]");
+        System.out.println("               including RDW.");
+        System.out.println("  max-threads  Maximum number of worker threads. Default is the number");
+        System.out.println("               of available processors.");
+        System.out.println("  repeat       Number of times to repeat each measurement. The best");
+        System.out.println("               result is reported. Default 3.");
+        System.out.println("  hash         Hash algorithm: sha1 (default) or murmur3.");
+    }
+
+    public static void main(String[] args)
+            throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        if (args.length == 0 || args[0].equals("--help") || args[0].equals("-h"))
+        {
+            printUsage();
+            System.exit(0);
+        }
+
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int repeat = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        String hash = args.length > 3 ? args[3] : "sha1";
+
+        List<SmfRecord> records = new ArrayList<>();
+        long bytes = 0;
+        try (SmfRecordReader reader = SmfRecordReader.fromName(args[0]))
+        {
+            for (SmfRecord record : reader)
+            {
+                records.add(record);
+                bytes += record.length();
+            }
+        }
+        System.out.format("%d records, %.1f MB%n%n", records.size(), bytes / (1024.0 * 1024));
+
+        // warm up so the JIT compiler has optimized the code before we measure
+        run(records, 1, hash);
+        run(records, maxThreads, hash);
+
+        System.out.format("%8s %12s %10s %8s%n", "Threads", "Records/sec", "MB/sec", "Speedup");
+        double singleThreadRate = 0;
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads, maxThreads))
+        {
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < repeat; i++)
+            {
+                bestNanos = Math.min(bestNanos, run(records, threads, hash));
+            }
+            double seconds = bestNanos / 1_000_000_000.0;
+            double rate = records.size() / seconds;
+            if (threads == 1)
+            {
+                singleThreadRate = rate;
+            }
+            System.out.format("%8d %12.0f %10.1f %8.2f%n",
+                    threads,
+                    rate,
+                    bytes / (1024.0 * 1024) / seconds,
+                    rate / singleThreadRate);
+        }
+    }
+
+    private static int nextThreadCount(int threads, int maxThreads)
+    {
+        // double each time, but make sure we measure maxThreads
+        return threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2;
+    }
+
+    private static long run(List<SmfRecord> records, int threads, String hash)
+            throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        int[] dups = new int[1];
+        long start = System.nanoTime();
+        SmfDeDup.deDup(records, new ShardedDigestSet(SmfDeDup.SHARDS, SmfDeDup.DIGEST_WORDS), null, new RecordHashing(hash), threads, 
+                (record, unique) ->
+        {
+            if (!unique) dups[0]++;
+        });
+        long elapsed = System.nanoTime() - start;
+        // print the duplicate count so every run can be checked for the same result
+        System.err.format("threads: %d duplicates: %d%n", threads, dups[0]);
+        return elapsed;
+    }
+}
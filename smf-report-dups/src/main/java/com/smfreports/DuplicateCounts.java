@@ -0,0 +1,243 @@
+package com.smfreports;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Count unique and duplicate records by system, minute and record type.
+ * <p>
+ * Counts are kept in int arrays for each system and day, indexed by the
+ * minute of the day and the record type, so counting a record doesn't
+ * create any objects. The array for a record type is allocated the first
+ * time the type is seen for a system and day.
+ * <p>
+ * This class is not thread safe. Each thread can keep its own counts,
+ * and the results combined using merge.
+ */
+class DuplicateCounts
+{
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int RECORD_TYPES = 256;
+
+    private final Map<String, SystemCounts> systems = new HashMap<>();
+    private long records = 0;
+    private long duplicates = 0;
+
+    // Records usually come in runs from the same system and day,
+    // so remember the last one and avoid the map lookups.
+    private String lastSystem = null;
+    private SystemCounts lastSystemCounts = null;
+
+    /**
+     * Count a record
+     * @param system the SMF system id
+     * @param time the SMF date and time of the record
+     * @param recordType the record type, 0-255
+     * @param duplicate true if the record is a duplicate
+     */
+    void count(String system, LocalDateTime time, int recordType, boolean duplicate)
+    {
+        records++;
+        if (duplicate)
+        {
+            duplicates++;
+        }
+        if (!system.equals(lastSystem))
+        {
+            lastSystemCounts = systems.computeIfAbsent(system, key -> new SystemCounts());
+            lastSystem = system;
+        }
+        lastSystemCounts.day(time.toLocalDate().toEpochDay())
+            .count(time.getHour() * 60 + time.getMinute(), recordType, duplicate);
+    }
+
+    /**
+     * Add the counts from another instance to this one
+     * @param other the counts to add
+     */
+    void merge(DuplicateCounts other)
+    {
+        records += other.records;
+        duplicates += other.duplicates;
+        for (Map.Entry<String, SystemCounts> system : other.systems.entrySet())
+        {
+            SystemCounts systemCounts = systems.computeIfAbsent(system.getKey(), key -> new SystemCounts());
+            for (DayCounts day : system.getValue().days.values())
+            {
+                systemCounts.day(day.epochDay).add(day);
+            }
+        }
+    }
+
+    /** The total number of records counted */
+    long records()
+    {
+        return records;
+    }
+
+    /** The total number of duplicate records counted */
+    long duplicates()
+    {
+        return duplicates;
+    }
+
+    /**
+     * Get the systems that have been counted
+     * @return the system ids, sorted
+     */
+    List<String> systems()
+    {
+        return systems.keySet().stream()
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the counts for each day for a system
+     * @param system the system id
+     * @return the counts for each day, sorted by date
+     */
+    List<DayCounts> days(String system)
+    {
+        return systems.get(system).days.values().stream()
+                .sorted(Comparator.comparingLong(day -> day.epochDay))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The approximate memory used by the count arrays
+     * @return the size in bytes
+     */
+    long memoryBytes()
+    {
+        long bytes = 0;
+        for (SystemCounts system : systems.values())
+        {
+            for (DayCounts day : system.days.values())
+            {
+                bytes += day.memoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private static class SystemCounts
+    {
+        private final Map<Long, DayCounts> days = new HashMap<>();
+        private long lastDay = Long.MIN_VALUE;
+        private DayCounts lastDayCounts = null;
+
+        DayCounts day(long epochDay)
+        {
+            if (epochDay != lastDay)
+            {
+                lastDayCounts = days.computeIfAbsent(epochDay, DayCounts::new);
+                lastDay = epochDay;
+            }
+            return lastDayCounts;
+        }
+    }
+
+    /**
+     * Counts for a system and day. Each array holds the unique
+     * and duplicate counts for each minute, in adjacent entries.
+     */
+    static class DayCounts
+    {
+        private final long epochDay;
+        private final int[] total = new int[MINUTES_PER_DAY * 2];
+        private final int[][] byType = new int[RECORD_TYPES][];
+
+        private DayCounts(long epochDay)
+        {
+            this.epochDay = epochDay;
+        }
+
+        private void count(int minute, int recordType, boolean duplicate)
+        {
+            int index = minute * 2 + (duplicate ? 1 : 0);
+            total[index]++;
+            int[] typeCounts = byType[recordType];
+            if (typeCounts == null)
+            {
+                typeCounts = new int[MINUTES_PER_DAY * 2];
+                byType[recordType] = typeCounts;
+            }
+            typeCounts[index]++;
+        }
+
+        private void add(DayCounts other)
+        {
+            addArray(total, other.total);
+            for (int recordType = 0; recordType < RECORD_TYPES; recordType++)
+            {
+                if (other.byType[recordType] != null)
+                {
+                    if (byType[recordType] == null)
+                    {
+                        byType[recordType] = new int[MINUTES_PER_DAY * 2];
+                    }
+                    addArray(byType[recordType], other.byType[recordType]);
+                }
+            }
+        }
+
+        private static void addArray(int[] counts, int[] other)
+        {
+            for (int i = 0; i < counts.length; i++)
+            {
+                counts[i] += other[i];
+            }
+        }
+
+        LocalDate date()
+        {
+            return LocalDate.ofEpochDay(epochDay);
+        }
+
+        int unique(int minute)
+        {
+            return total[minute * 2];
+        }
+
+        int duplicates(int minute)
+        {
+            return total[minute * 2 + 1];
+        }
+
+        /**
+         * Check whether a record type was seen on this day
+         * @param recordType the record type
+         * @return true if there are counts for the record type
+         */
+        boolean hasType(int recordType)
+        {
+            return byType[recordType] != null;
+        }
+
+        int unique(int minute, int recordType)
+        {
+            return byType[recordType][minute * 2];
+        }
+
+        int duplicates(int minute, int recordType)
+        {
+            return byType[recordType][minute * 2 + 1];
+        }
+
+        private long memoryBytes()
+        {
+            long bytes = (long) total.length * Integer.BYTES;
+            for (int[] typeCounts : byType)
+            {
+                if (typeCounts != null)
+                {
+                    bytes += (long) typeCounts.length * Integer.BYTES;
+                }
+            }
+            return bytes;
+        }
+    }
+}
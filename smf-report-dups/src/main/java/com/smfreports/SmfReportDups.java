@@ -1,13 +1,10 @@
 package com.smfreports;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
 
 import com.blackhillsoftware.smf.SmfRecord;
 import com.blackhillsoftware.smf.SmfRecordReader;
@@ -15,7 +12,7 @@ import com.blackhillsoftware.smf.SmfRecordReader;
 public class SmfReportDups
 {
     private static void printUsage() {
-        System.out.println("Usage: SmfReportDups <input-file> [input-file2 ...]");
+        System.out.println("Usage: SmfReportDups [options] <input-file> [input-file2 ...]");
         System.out.println("");
         System.out.println("Search for duplicated data in input-file.");
         System.out.println("");
@@ -24,6 +21,19 @@ public class SmfReportDups
         System.out.println("  input-file2 ...   Additional input file(s), to search for duplicates");
         System.out.println("                    across multiple files.");
         System.out.println("");
+        System.out.println("Options:");
+        System.out.println("  --threads=n       Read up to n input files at the same time. Default 1.");
+        System.out.println("  --hash=h          Hash algorithm: sha1 (default) or murmur3. murmur3 is");
+        System.out.println("                    faster but not cryptographically secure.");
+        System.out.println("  --bloom=n         Use a Bloom filter of n MB to identify new records");
+        System.out.println("                    without searching the hash table.");
+        System.out.println("  --estimate[=n]    Estimate duplicate counts using only a Bloom filter");
+        System.out.println("                    of n MB (default 256). Memory for duplicate detection");
+        System.out.println("                    does not depend on the number of records. The report");
+        System.out.println("                    counts still grow with systems x days x record types,");
+        System.out.println("                    about 11KB for each. A small proportion of unique");
+        System.out.println("                    records will be counted as duplicates.");
+        System.out.println("");
         System.out.println("Records and duplicate records are grouped and counted by system and minute.");
         System.out.println("If the number of duplicate records in a minute is greater than or equal");
         System.out.println("to the number of unique records in that minute, data for that minute is");
@@ -46,62 +56,35 @@ public class SmfReportDups
             System.exit(0);
         }
         
-        // We don't need a cryptographically secure hash, SHA-1 might be 
-        // faster than SHA-256 hashes and should be adequate to find duplicates
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        Set<Digest> recordHashes = new HashSet<>();
+        Options options;
+        try
+        {
+            options = Options.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
         
-        // Map to count by SystemID->Minute
-        Map< String, Map<LocalDateTime, RecordStats>> bySystemByMinute = new HashMap<>();
+        RecordHashes recordHashes = new RecordHashes(options);
+        DuplicateCounts counts = new DuplicateCounts();
         
-        // Map to count by SystemID->Record Type->Minute 
-        Map< String, Map<LocalDateTime, Map<Integer, RecordStats>>> bySystemByMinuteByType = new HashMap<>();
-               
-        int in = 0;
-        int dups = 0;
         try
         {
             // Multiple input file/datasets can be specified to find duplicates
             // across files.
-            for (int i = 0; i < args.length; i++)
+            if (options.threads > 1 && options.inputFiles.size() > 1)
             {
-                try (SmfRecordReader reader = SmfRecordReader.fromName(args[i]))                
+                scanParallel(options, recordHashes, counts);
+            }
+            else
+            {
+                for (String inputFile : options.inputFiles)
                 {
-                    for (SmfRecord record : reader)
-                    {
-                        in++;
-                        String system = record.system();
-                        LocalDateTime minute = record.smfDateTime()
-                                .truncatedTo(ChronoUnit.MINUTES);
-                        Integer recordtype = record.recordType();
-                        
-                        // get a stats entry for this system and minute
-                        RecordStats minuteStats = bySystemByMinute
-                                .computeIfAbsent(system, key -> new HashMap<>())
-                                .computeIfAbsent(minute, key -> new RecordStats(null, minute));
-                        
-                        
-                        // get a stats entry for this system, minute and record type
-                        RecordStats minuteRecordTypeStats = bySystemByMinuteByType
-                                .computeIfAbsent(system, key -> new HashMap<>())
-                                .computeIfAbsent(minute, key -> new HashMap<>())
-                                .computeIfAbsent(recordtype, key -> new RecordStats(recordtype, minute));
-                        
-                        // Is is a duplicate of one already seen?
-                        if (recordHashes.add(new Digest(sha1.digest(record.getBytes()))))
-                        {
-                            // no
-                            minuteStats.countUnique();
-                            minuteRecordTypeStats.countUnique();
-                        }
-                        else
-                        {
-                            // yes
-                            dups++;
-                            minuteStats.countDuplicate();
-                            minuteRecordTypeStats.countDuplicate();
-                        }
-                    }
+                    scan(inputFile, options.hash, recordHashes, counts);
                 }
             }
         }
@@ -111,56 +94,145 @@ public class SmfReportDups
             throw e;
         }
         
-        System.out.format("Finished, %d records in, %d duplicates.%n", in, dups);
+        long in = counts.records();
+        System.out.format("Finished, %d records in, %d duplicates.%n", in, counts.duplicates());
+        recordHashes.printStatistics(in);
+        System.out.format("Counters: %.1f MB.%n", counts.memoryBytes() / (1024.0 * 1024));
         
-        writeReport(bySystemByMinute, bySystemByMinuteByType);
+        writeReport(counts);
 
     }
 
-    private static void writeReport(
-            Map<String, Map<LocalDateTime, RecordStats>> bySystemByMinute,
-            Map<String, Map<LocalDateTime, Map<Integer, RecordStats>>> bySystemByMinuteByType) 
+    /**
+     * Read a file and count the unique and duplicate records
+     * @param inputFile the file name
+     * @param hash the hash algorithm
+     * @param recordHashes the hashes of records already seen, shared 
+     * between all files
+     * @param counts receives the counts for the file
+     * @throws IOException if an I/O error occurs
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    private static void scan(String inputFile, String hash, RecordHashes recordHashes, DuplicateCounts counts) 
+            throws IOException, NoSuchAlgorithmException
     {
-        // get a list of all systems
-        List<String> systems = bySystemByMinute.keySet().stream()
-                .sorted()
-                .collect(Collectors.toList());
+        RecordHasher hasher = RecordHasher.create(hash);
+        long[] digest = new long[2];
         
-        for (String system : systems)
+        try (SmfRecordReader reader = SmfRecordReader.fromName(inputFile))                
         {
-            // get entries by minute and by minute/recordtype for this system
-            
-            Map<LocalDateTime, RecordStats> byMinute = 
-                    bySystemByMinute.get(system);
-            
-            Map<LocalDateTime, Map<Integer, RecordStats>> byMinuteByType = 
-                    bySystemByMinuteByType.get(system);
-            
-            // Find minutes where duplicate count is greater than or equal to unique record count
-            List<RecordStats> duplicateMinutesBySystem = 
-                byMinute.values().stream()
-                    .filter(entry -> entry.dupPercent() >= 100)
-                    .sorted(Comparator.comparing(RecordStats::getMinute))
-                    .collect(Collectors.toList());
-                        
-            // We don't want to report duplicates for every record type when 
-            // we report duplicates by system
-            // Remove entries for those minutes from the map by record type.   
-
-            for (RecordStats entry : duplicateMinutesBySystem)
+            for (SmfRecord record : reader)
             {
-                byMinuteByType.remove(entry.getMinute());
+                // 128 bit hash of the record
+                byte[] data = record.getBytes();
+                hasher.hash(data, 0, data.length, digest, 0);
+                
+                // Is is a duplicate of one already seen?
+                boolean duplicate = !recordHashes.add(digest);
+                counts.count(record.system(), record.smfDateTime(), record.recordType(), duplicate);
             }
-            
-            // Flatmap into one list and select entries with duplicates.
-            // Sort by minute and record type
+        }
+    }
+    
+    /**
+     * Scan multiple files at the same time. Each file is counted separately
+     * and the counts merged at the end. 
+     * <p>
+     * The record hashes are shared, so duplicates are found across files.
+     * Which copy of a record is seen first depends on the timing of the 
+     * threads, but duplicate records have the same system, time and record
+     * type so the counts are the same as a sequential scan.
+     * @param options the command line options
+     * @param recordHashes the shared hashes of records already seen
+     * @param counts receives the merged counts
+     * @throws IOException if an I/O error occurs
+     */
+    private static void scanParallel(Options options, RecordHashes recordHashes, DuplicateCounts counts) 
+            throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(options.threads, options.inputFiles.size()));
+        try
+        {
+            List<Future<DuplicateCounts>> results = new ArrayList<>();
+            for (String inputFile : options.inputFiles)
+            {
+                results.add(pool.submit(() -> 
+                {
+                    DuplicateCounts fileCounts = new DuplicateCounts();
+                    scan(inputFile, options.hash, recordHashes, fileCounts);
+                    return fileCounts;
+                }));
+            }
+            for (Future<DuplicateCounts> result : results)
+            {
+                counts.merge(getResult(result));
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
     
-            List<RecordStats> duplicatesByMinuteByType = byMinuteByType.values().stream()
-                    .flatMap(entry -> entry.values().stream())
-                    .filter(entry -> entry.dupPercent() >= 100)
-                    .sorted(Comparator.comparing(RecordStats::getMinute)
-                            .thenComparing(RecordStats::getRecordtype))
-                    .collect(Collectors.toList());
+    private static <T> T getResult(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void writeReport(DuplicateCounts counts) 
+    {
+        for (String system : counts.systems())
+        {
+            List<RecordStats> duplicateMinutesBySystem = new ArrayList<>();
+            List<RecordStats> duplicatesByMinuteByType = new ArrayList<>();
+            
+            // Days and minutes are visited in order, and record types
+            // in order within each minute, so the lists are already sorted.
+            for (DuplicateCounts.DayCounts day : counts.days(system))
+            {
+                for (int minute = 0; minute < DuplicateCounts.MINUTES_PER_DAY; minute++)
+                {
+                    LocalDateTime minuteTime = day.date().atStartOfDay().plusMinutes(minute);
+                    
+                    // Find minutes where duplicate count is greater than or equal to unique record count
+                    if (isDuplicated(day.unique(minute), day.duplicates(minute)))
+                    {
+                        duplicateMinutesBySystem.add(
+                                new RecordStats(null, minuteTime, day.unique(minute), day.duplicates(minute)));
+                        
+                        // We don't want to report duplicates for every record type when 
+                        // we report duplicates by system
+                        continue;
+                    }
+                    
+                    for (int recordType = 0; recordType < DuplicateCounts.RECORD_TYPES; recordType++)
+                    {
+                        if (day.hasType(recordType) 
+                                && isDuplicated(day.unique(minute, recordType), day.duplicates(minute, recordType)))
+                        {
+                            duplicatesByMinuteByType.add(new RecordStats(recordType, minuteTime, 
+                                    day.unique(minute, recordType), day.duplicates(minute, recordType)));
+                        }
+                    }
+                }
+            }
             
             // Write reports.
             
@@ -169,6 +241,15 @@ public class SmfReportDups
         }
     }
     
+    /**
+     * Data might be duplicated if the number of duplicates is greater 
+     * than or equal to the number of unique records.
+     */
+    private static boolean isDuplicated(int unique, int duplicates)
+    {
+        return duplicates > 0 && duplicates >= unique;
+    }
+    
     private static void reportBySystem(String system, List<RecordStats> duplicateMinutesBySystem) 
     {
         if (!duplicateMinutesBySystem.isEmpty())
@@ -218,70 +299,252 @@ public class SmfReportDups
         }
     }
     
-    private static class RecordStats
+    /**
+     * Command line options and file names
+     */
+    private static class Options
     {
-        RecordStats(Integer recordtype, LocalDateTime minute)
-        {
-            this.recordtype = recordtype;
-            this.minute = minute;
-        }
+        private List<String> inputFiles = new ArrayList<>();
+        private long filterBytes = 0;
+        private boolean estimate = false;
+        private String hash = "sha1";
+        private int threads = 1;
         
-        private Integer recordtype;
-        private int unique = 0;
-        private int duplicates = 0;
-        private LocalDateTime minute;
-
-        public void countUnique()
+        /** Options that don't require a value */
+        private static final Set<String> FLAGS = new HashSet<>(Arrays.asList("--estimate"));
+        
+        /**
+         * Parse the command line. Options start with "--" and can be 
+         * specified as --option=value or --option value.
+         * @param args the command line arguments
+         * @return the Options
+         * @throws IllegalArgumentException if the arguments are not valid
+         */
+        static Options parse(String[] args)
         {
-            unique++;
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.startsWith("--"))
+                {
+                    String name = arg;
+                    String value = null;
+                    int equals = arg.indexOf('=');
+                    if (equals > 0)
+                    {
+                        name = arg.substring(0, equals);
+                        value = arg.substring(equals + 1);
+                    }
+                    else if (!FLAGS.contains(name) && i + 1 < args.length)
+                    {
+                        value = args[++i];
+                    }
+                    
+                    switch (name)
+                    {
+                    case "--threads":
+                        options.threads = parseInt(name, value);
+                        if (options.threads < 1)
+                        {
+                            throw new IllegalArgumentException("--threads must be at least 1");
+                        }
+                        break;
+                    case "--hash":
+                        if (value == null || !Arrays.asList(RecordHasher.NAMES.split(", ")).contains(value))
+                        {
+                            throw new IllegalArgumentException("--hash requires one of: " + RecordHasher.NAMES);
+                        }
+                        options.hash = value;
+                        break;
+                    case "--bloom":
+                        options.filterBytes = parseInt(name, value) * 1024L * 1024;
+                        break;
+                    case "--estimate":
+                        options.estimate = true;
+                        options.filterBytes = (value != null ? parseInt(name, value) : 256) * 1024L * 1024;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + name);
+                    }
+                }
+                else
+                {
+                    options.inputFiles.add(arg);
+                }
+            }
+            if (options.inputFiles.isEmpty())
+            {
+                throw new IllegalArgumentException("No input files specified");
+            }
+            return options;
         }
         
-        public void countDuplicate()
+        private static int parseInt(String name, String value)
         {
-            duplicates++;
+            try
+            {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
         }
-
-        private Integer getRecordtype() { return recordtype; }    
-        private LocalDateTime getMinute() { return minute; }
-        private int getDuplicates() { return duplicates; }
-
-        private int getTotal() { return unique + duplicates; }    
-        private double dupPercent() { return (double)duplicates / unique * 100; }
     }
     
     /**
-     * A class to store hashes in the set, providing hashcode and equals implementations
-     * We need multiple matches before we report duplicate data, so we can use 
-     * a 64 bit integer for the hash code without significant danger of incorrect 
-     * reports. This allows more data to be processed in available memory.
+     * Keep track of the hashes of records already seen. 
+     * <p>
+     * Normally hashes are kept in a DigestSet. We need multiple matches before 
+     * we report duplicate data, so we can use a 64 bit value from the hash 
+     * without significant danger of incorrect reports. This allows more data 
+     * to be processed in available memory.
+     * <p>
+     * Optionally a Bloom filter is checked first, and records it reports as
+     * definitely new are added to the set without searching it.
+     * <p>
+     * In estimate mode only the Bloom filter is used, so the memory used to
+     * detect duplicates is fixed. The DuplicateCounts still grow with the
+     * number of systems, days and record types in the input.
+     * Some unique records will be counted as duplicates, at the false 
+     * positive rate of the filter.
+     * <p>
+     * The hashes are divided into shards by the first bits of the digest,
+     * each with its own lock, so multiple threads can add hashes with 
+     * little contention.
      */
-    private static class Digest
+    private static class RecordHashes
     {
-        public Digest(byte[] digest)
+        private static final int FILTER_HASHES = 5;
+        private static final int SHARD_BITS = 6;
+        
+        RecordHashes(Options options)
+        {
+            shards = new Shard[1 << SHARD_BITS];
+            for (int i = 0; i < shards.length; i++)
+            {
+                shards[i] = new Shard(options);
+            }
+        }
+        
+        private final Shard[] shards;
+        
+        /**
+         * Add a record hash
+         * @param digest the 128 bit digest of the record. Only the first
+         * 64 bits are kept in the DigestSet.
+         * @return true if the hash has not been seen before
+         */
+        boolean add(long[] digest)
         {
-            // Use the first 8 bytes of the SHA-1 hash 
-            hashCode = ByteBuffer.wrap(digest).getLong();
+            Shard shard = shards[(int) (digest[0] >>> (Long.SIZE - SHARD_BITS))];
+            synchronized (shard)
+            {
+                return shard.add(digest);
+            }
         }
         
-        @Override
-        public int hashCode() 
+        void printStatistics(long records)
         {
-            // simply truncate the 64 bit value
-            return (int) hashCode;
+            long entries = 0;
+            long digestBytes = 0;
+            long filterBytes = 0;
+            long filterNew = 0;
+            double falsePositives = 0;
+            for (Shard shard : shards)
+            {
+                if (shard.digests != null)
+                {
+                    entries += shard.digests.size();
+                    digestBytes += shard.digests.memoryBytes();
+                }
+                if (shard.filter != null)
+                {
+                    filterBytes += shard.filter.memoryBytes();
+                    filterNew += shard.filterNew;
+                    falsePositives += shard.filterNew * shard.filter.falsePositiveRate();
+                }
+            }
+            
+            if (shards[0].digests != null)
+            {
+                System.out.format("Digest set: %d entries, %.1f MB, %.1f bytes per record.%n", 
+                        entries,
+                        digestBytes / (1024.0 * 1024),
+                        entries > 0 ? (double) digestBytes / entries : 0);
+            }
+            if (shards[0].filter != null)
+            {
+                System.out.format("Bloom filter: %.1f MB, %d records definitely new, "
+                        + "estimated false positive rate %.3f%%.%n", 
+                        filterBytes / (1024.0 * 1024),
+                        filterNew,
+                        filterNew > 0 ? falsePositives / filterNew * 100 : 0);
+            }
+            if (shards[0].digests == null)
+            {
+                System.out.format("Estimate only: approximately %.0f unique records may be counted as duplicates.%n",
+                        falsePositives);
+            }
         }
         
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Digest other = (Digest) obj;
-            return this.hashCode == other.hashCode;    
+        private static class Shard
+        {
+            Shard(Options options)
+            {
+                filter = options.filterBytes > 0 
+                        ? new BloomFilter(options.filterBytes >> SHARD_BITS, FILTER_HASHES) 
+                        : null;
+                digests = options.estimate ? null : new DigestSet(1);
+            }
+            
+            private final BloomFilter filter;
+            private final DigestSet digests;
+            private long filterNew = 0;
+            
+            boolean add(long[] digest)
+            {
+                if (filter != null && filter.put(digest[0], digest[1]))
+                {
+                    // definitely new
+                    filterNew++;
+                    if (digests != null)
+                    {
+                        digests.addNew(digest, 0);
+                    }
+                    return true;
+                }
+                if (digests == null)
+                {
+                    // estimate mode, possibly seen before
+                    return false;
+                }
+                return digests.add(digest, 0);
+            }
+        }
+    }
+    
+    private static class RecordStats
+    {
+        RecordStats(Integer recordtype, LocalDateTime minute, int unique, int duplicates)
+        {
+            this.recordtype = recordtype;
+            this.minute = minute;
+            this.unique = unique;
+            this.duplicates = duplicates;
         }
         
-        private long hashCode;    
+        private Integer recordtype;
+        private int unique;
+        private int duplicates;
+        private LocalDateTime minute;
+
+        private Integer getRecordtype() { return recordtype; }    
+        private LocalDateTime getMinute() { return minute; }
+        private int getDuplicates() { return duplicates; }
+
+        private int getTotal() { return unique + duplicates; }    
+        private double dupPercent() { return (double)duplicates / unique * 100; }
     }
 }
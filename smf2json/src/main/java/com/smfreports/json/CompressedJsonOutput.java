@@ -0,0 +1,235 @@
+package com.smfreports.json;
+
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+import org.apache.commons.cli.*;
+
+import com.google.gson.Gson;
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+
+/**
+ * A Smf2JsonCLI.Client that writes the JSON from another client to
+ * gzip compressed newline delimited JSON files, instead of returning
+ * it to Smf2JsonCLI to write.
+ * <p>
+ * The output rolls to a new file when the uncompressed size reaches a
+ * limit, and/or when the SMF time of the input records moves to a new
+ * time window. Files are named prefix-0001.json.gz, or
+ * prefix-20240101T1200-0001.json.gz when rolling by time.
+ * <p>
+ * The files are written by a JsonFileSink, which compresses and writes
+ * the JSON on a separate thread so compression overlaps with reading
+ * and converting the SMF data.
+ * <p>
+ * When rolling by time, a new file is started when a record arrives for
+ * a later window. Records for earlier windows, e.g. from a system with
+ * a delayed SMF dump, are written to the current file, so out of order
+ * data doesn't create many small files. With --threads the output lags
+ * the input by a few records, so a few records may be written to the
+ * previous file.
+ * <p>
+ * Programs add the options using addOptions, and wrap their client
+ * using create. Without --gzip-output the original client is used.
+ */
+public class CompressedJsonOutput implements Smf2JsonCLI.Client
+{
+    private static final DateTimeFormatter WINDOW_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmm");
+
+    /**
+     * Add the compressed output options to the command line options.
+     * @param cli the Smf2JsonCLI instance
+     */
+    public static void addOptions(Smf2JsonCLI cli)
+    {
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("gzip-output")
+                    .hasArg(true)
+                    .desc("write gzip compressed JSON to files starting with this prefix")
+                    .build());
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("gzip-level")
+                    .hasArg(true)
+                    .desc("gzip compression level 1-9, default 6")
+                    .build());
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("roll-mb")
+                    .hasArg(true)
+                    .desc("start a new file after this many MB of uncompressed JSON (UTF-8 bytes)")
+                    .build());
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("roll-minutes")
+                    .hasArg(true)
+                    .desc("start a new file for each window of this many minutes of SMF time")
+                    .build());
+    }
+
+    /**
+     * Wrap a client if the --gzip-output option was specified.
+     *
+     * @param cli the Smf2JsonCLI instance
+     * @param args the command line arguments
+     * @param client the client
+     * @return a client writing compressed output, or the original client
+     */
+    public static Smf2JsonCLI.Client create(Smf2JsonCLI cli, String[] args, Smf2JsonCLI.Client client)
+    {
+        CommandLine commandLine = cli.commandLine(args);
+        if (!commandLine.hasOption("gzip-output"))
+        {
+            return client;
+        }
+        try
+        {
+            int level = commandLine.hasOption("gzip-level")
+                    ? Integer.parseInt(commandLine.getOptionValue("gzip-level"))
+                    : 6;
+            long rollBytes = commandLine.hasOption("roll-mb")
+                    ? Long.parseLong(commandLine.getOptionValue("roll-mb")) * 1024 * 1024
+                    : Long.MAX_VALUE;
+            int rollMinutes = commandLine.hasOption("roll-minutes")
+                    ? Integer.parseInt(commandLine.getOptionValue("roll-minutes"))
+                    : 0;
+            if (level < 1 || level > 9)
+            {
+                throw new IllegalArgumentException("--gzip-level must be 1 to 9: " + level);
+            }
+            if (rollBytes <= 0 || rollMinutes < 0)
+            {
+                throw new IllegalArgumentException("--roll-mb and --roll-minutes must be greater than zero");
+            }
+            return new CompressedJsonOutput(cli, client,
+                    commandLine.getOptionValue("gzip-output"), level, rollBytes, rollMinutes);
+        }
+        catch (IllegalArgumentException ex) // includes NumberFormatException
+        {
+            System.err.println("Failed to parse option: " + ex.toString());
+            System.exit(0);
+            return null;
+        }
+    }
+
+    private final Smf2JsonCLI cli;
+    private final Smf2JsonCLI.Client client;
+    private final String prefix;
+    private final int level;
+    private final long rollBytes;
+    private final int rollMinutes;
+
+    private Gson gson = null;
+    private JsonFileSink sink = null;
+    private long window = Long.MIN_VALUE;
+    private int fileNumber = 0;
+    private boolean fileOpen = false;
+
+    private long records = 0;
+    private long startNanos = 0;
+
+    private CompressedJsonOutput(Smf2JsonCLI cli, Smf2JsonCLI.Client client,
+            String prefix, int level, long rollBytes, int rollMinutes)
+    {
+        this.cli = cli;
+        this.client = client;
+        this.prefix = prefix;
+        this.level = level;
+        this.rollBytes = rollBytes;
+        this.rollMinutes = rollMinutes;
+    }
+
+    @Override
+    public List<Object> processRecord(SmfRecord record)
+    {
+        if (gson == null)
+        {
+            gson = cli.easySmfGsonBuilder().createGson();
+            startNanos = System.nanoTime();
+        }
+        records++;
+        if (rollMinutes > 0)
+        {
+            long recordWindow = record.smfDateTime().toEpochSecond(ZoneOffset.UTC) / 60 / rollMinutes;
+            if (recordWindow > window)
+            {
+                window = recordWindow;
+                // the next JSON starts a new file
+                fileOpen = false;
+            }
+        }
+        write(client.processRecord(record));
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Object> onEndOfData()
+    {
+        write(client.onEndOfData());
+        long jsonBytes = 0;
+        long compressedBytes = 0;
+        if (sink != null)
+        {
+            sink.close();
+            jsonBytes = sink.bytes();
+            compressedBytes = sink.writtenBytes();
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        System.err.format("%d records, %.1f MB JSON, %.1f MB compressed (%.1f:1), %.1f seconds, %.1f MB/sec JSON%n",
+                records,
+                jsonBytes / (1024.0 * 1024),
+                compressedBytes / (1024.0 * 1024),
+                compressedBytes > 0 ? (double) jsonBytes / compressedBytes : 0,
+                seconds,
+                seconds > 0 ? jsonBytes / (1024.0 * 1024) / seconds : 0);
+        return Collections.emptyList();
+    }
+
+    private void write(List<?> objects)
+    {
+        if (objects == null)
+        {
+            return;
+        }
+        for (Object object : objects)
+        {
+            if (!fileOpen)
+            {
+                openFile();
+            }
+            sink.write(gson, object);
+            if (sink.fileBytes() >= rollBytes)
+            {
+                fileOpen = false;
+            }
+        }
+    }
+
+    private void openFile()
+    {
+        fileNumber++;
+        String name = rollMinutes > 0
+                ? String.format("%s-%s-%04d.json.gz", prefix,
+                        LocalDateTime.ofEpochSecond(window * rollMinutes * 60, 0, ZoneOffset.UTC)
+                            .format(WINDOW_FORMAT),
+                        fileNumber)
+                : String.format("%s-%04d.json.gz", prefix, fileNumber);
+        Path path = Paths.get(name);
+        if (sink == null)
+        {
+            sink = new JsonFileSink(path, true, level);
+        }
+        else
+        {
+            // the previous file is finished by the sink's writer thread
+            sink.roll(path);
+        }
+        fileOpen = true;
+    }
+}
@@ -0,0 +1,654 @@
+package com.smfreports.json;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * A filter expression, compiled once into a tree of predicates which
+ * can be tested against many items e.g. CICS transactions.
+ * <p>
+ * Syntax:
+ * <pre>
+ * expression := term { OR term }
+ * term       := factor { AND factor }
+ * factor     := NOT factor | ( expression ) | comparison
+ * comparison := field operator value
+ *             | field [NOT] IN ( value { , value } )
+ * operator   := = | == | != | &lt;&gt; | &lt; | &lt;= | &gt; | &gt;=
+ * value      := number | 'quoted string' | "quoted string" | word
+ * </pre>
+ * Keywords are not case sensitive. Field names are resolved by a
+ * FieldResolver when the expression is compiled, so unknown fields are
+ * reported before any data is read.
+ * <p>
+ * If a field value is a Number and the comparison value is numeric,
+ * the values are compared as numbers. Otherwise the values are compared
+ * as strings, with leading and trailing blanks removed from the field
+ * value. A comparison with a field that has no value (null) is false,
+ * except for != and NOT IN.
+ * <p>
+ * Operands of AND and OR are reordered so the cheapest, according to
+ * the cost from the FieldResolver, are tested first. Evaluation stops
+ * as soon as the result is known, so expensive fields are not
+ * retrieved when a cheaper test has already decided the result.
+ * Expressions must not have side effects for this to be valid, which
+ * is true for field comparisons.
+ * <p>
+ * A compiled expression is thread safe if the field accessors are
+ * thread safe.
+ *
+ * @param <T> the type of the items tested
+ */
+public final class FilterExpression<T> implements Predicate<T>
+{
+    /**
+     * Resolve field names used in an expression to functions that
+     * get the field value from an item.
+     *
+     * @param <T> the type of the items tested
+     */
+    public interface FieldResolver<T>
+    {
+        /**
+         * Get a function to return the value of a field.
+         * @param name the field name from the expression
+         * @return the function, or null if the field is not known
+         */
+        Function<T, Object> resolve(String name);
+
+        /**
+         * The relative cost of getting the field value. Cheaper fields
+         * are tested first.
+         * @param name the field name from the expression
+         * @return the cost, default 1
+         */
+        default int cost(String name)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Compile an expression.
+     * @param <T> the type of the items tested
+     * @param expression the expression text
+     * @param resolver the resolver for field names
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static <T> FilterExpression<T> compile(String expression, FieldResolver<T> resolver)
+    {
+        Parser<T> parser = new Parser<>(expression, resolver);
+        Node<T> root = parser.parseExpression();
+        if (parser.peek() != null)
+        {
+            throw parser.error("Unexpected '" + parser.peek().text + "'");
+        }
+        return new FilterExpression<>(expression, root);
+    }
+
+    private final String text;
+    private final Node<T> root;
+
+    private FilterExpression(String text, Node<T> root)
+    {
+        this.text = text;
+        this.root = root;
+    }
+
+    @Override
+    public boolean test(T item)
+    {
+        return root.test(item);
+    }
+
+    /**
+     * The expression as compiled, showing the order the tests are
+     * evaluated.
+     * @return a description of the compiled expression
+     */
+    public String compiled()
+    {
+        return root.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    // Compiled nodes
+
+    private interface Node<T>
+    {
+        boolean test(T item);
+        int cost();
+    }
+
+    private static final class And<T> implements Node<T>
+    {
+        private final Node<T>[] operands;
+        private final int cost;
+
+        And(List<Node<T>> operands)
+        {
+            this.operands = sortedByCost(operands);
+            cost = totalCost(operands);
+        }
+
+        @Override
+        public boolean test(T item)
+        {
+            for (Node<T> operand : operands)
+            {
+                if (!operand.test(item))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int cost()
+        {
+            return cost;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(operands, " and ");
+        }
+    }
+
+    private static final class Or<T> implements Node<T>
+    {
+        private final Node<T>[] operands;
+        private final int cost;
+
+        Or(List<Node<T>> operands)
+        {
+            this.operands = sortedByCost(operands);
+            cost = totalCost(operands);
+        }
+
+        @Override
+        public boolean test(T item)
+        {
+            for (Node<T> operand : operands)
+            {
+                if (operand.test(item))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int cost()
+        {
+            return cost;
+        }
+
+        @Override
+        public String toString()
+        {
+            return join(operands, " or ");
+        }
+    }
+
+    private static final class Not<T> implements Node<T>
+    {
+        private final Node<T> operand;
+
+        Not(Node<T> operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean test(T item)
+        {
+            return !operand.test(item);
+        }
+
+        @Override
+        public int cost()
+        {
+            return operand.cost();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "not " + operand;
+        }
+    }
+
+    private enum Operator
+    {
+        EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+        private final String symbol;
+
+        Operator(String symbol)
+        {
+            this.symbol = symbol;
+        }
+
+        boolean test(int comparison)
+        {
+            switch (this)
+            {
+            case EQ: return comparison == 0;
+            case NE: return comparison != 0;
+            case LT: return comparison < 0;
+            case LE: return comparison <= 0;
+            case GT: return comparison > 0;
+            default: return comparison >= 0;
+            }
+        }
+    }
+
+    private static final class Comparison<T> implements Node<T>
+    {
+        private final String field;
+        private final Function<T, Object> accessor;
+        private final int cost;
+        private final Operator operator;
+        private final String value;
+        private final Double number;
+
+        Comparison(String field, Function<T, Object> accessor, int cost, Operator operator, String value)
+        {
+            this.field = field;
+            this.accessor = accessor;
+            this.cost = cost;
+            this.operator = operator;
+            this.value = value;
+            this.number = parseNumber(value);
+        }
+
+        @Override
+        public boolean test(T item)
+        {
+            Object fieldValue = accessor.apply(item);
+            if (fieldValue == null)
+            {
+                return operator == Operator.NE;
+            }
+            if (number != null && fieldValue instanceof Number)
+            {
+                return operator.test(Double.compare(((Number) fieldValue).doubleValue(), number));
+            }
+            return operator.test(fieldValue.toString().trim().compareTo(value));
+        }
+
+        @Override
+        public int cost()
+        {
+            return cost;
+        }
+
+        @Override
+        public String toString()
+        {
+            return field + " " + operator.symbol + " " + (number != null ? value : "'" + value + "'");
+        }
+    }
+
+    private static final class In<T> implements Node<T>
+    {
+        private final String field;
+        private final Function<T, Object> accessor;
+        private final int cost;
+        private final Set<String> values;
+        private final Set<Double> numbers = new HashSet<>();
+
+        In(String field, Function<T, Object> accessor, int cost, List<String> values)
+        {
+            this.field = field;
+            this.accessor = accessor;
+            this.cost = cost;
+            this.values = new HashSet<>(values);
+            for (String value : values)
+            {
+                Double number = parseNumber(value);
+                if (number != null)
+                {
+                    numbers.add(number);
+                }
+            }
+        }
+
+        @Override
+        public boolean test(T item)
+        {
+            Object fieldValue = accessor.apply(item);
+            if (fieldValue == null)
+            {
+                return false;
+            }
+            if (fieldValue instanceof Number && !numbers.isEmpty())
+            {
+                return numbers.contains(((Number) fieldValue).doubleValue());
+            }
+            return values.contains(fieldValue.toString().trim());
+        }
+
+        @Override
+        public int cost()
+        {
+            return cost;
+        }
+
+        @Override
+        public String toString()
+        {
+            return field + " in " + values;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T> Node<T>[] sortedByCost(List<Node<T>> operands)
+    {
+        Node<T>[] result = operands.toArray(new Node[0]);
+        // stable sort, so operands with the same cost keep their order
+        Arrays.sort(result, Comparator.comparingInt(Node::cost));
+        return result;
+    }
+
+    private static <T> int totalCost(List<Node<T>> operands)
+    {
+        int cost = 0;
+        for (Node<T> operand : operands)
+        {
+            cost += operand.cost();
+        }
+        return cost;
+    }
+
+    private static <T> String join(Node<T>[] operands, String separator)
+    {
+        StringJoiner result = new StringJoiner(separator, "(", ")");
+        for (Node<T> operand : operands)
+        {
+            result.add(operand.toString());
+        }
+        return result.toString();
+    }
+
+    private static Double parseNumber(String value)
+    {
+        try
+        {
+            return Double.valueOf(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    // Parsing
+
+    private static final class Token
+    {
+        Token(String text, boolean quoted, int position)
+        {
+            this.text = text;
+            this.quoted = quoted;
+            this.position = position;
+        }
+
+        final String text;
+        final boolean quoted;
+        final int position;
+
+        boolean is(String keyword)
+        {
+            return !quoted && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    private static final class Parser<T>
+    {
+        private final String expression;
+        private final FieldResolver<T> resolver;
+        private final List<Token> tokens;
+        private int next = 0;
+
+        Parser(String expression, FieldResolver<T> resolver)
+        {
+            this.expression = expression;
+            this.resolver = resolver;
+            this.tokens = tokenize(expression);
+        }
+
+        Node<T> parseExpression()
+        {
+            List<Node<T>> operands = new ArrayList<>();
+            operands.add(parseTerm());
+            while (accept("or"))
+            {
+                operands.add(parseTerm());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or<>(operands);
+        }
+
+        private Node<T> parseTerm()
+        {
+            List<Node<T>> operands = new ArrayList<>();
+            operands.add(parseFactor());
+            while (accept("and"))
+            {
+                operands.add(parseFactor());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And<>(operands);
+        }
+
+        private Node<T> parseFactor()
+        {
+            if (accept("not"))
+            {
+                return new Not<>(parseFactor());
+            }
+            if (accept("("))
+            {
+                Node<T> result = parseExpression();
+                expect(")");
+                return result;
+            }
+            return parseComparison();
+        }
+
+        private Node<T> parseComparison()
+        {
+            Token field = take("field name");
+            if (field.quoted)
+            {
+                throw error("Expected field name", field);
+            }
+            Function<T, Object> accessor = resolver.resolve(field.text);
+            if (accessor == null)
+            {
+                throw error("Unknown field '" + field.text + "'", field);
+            }
+            int cost = resolver.cost(field.text);
+
+            boolean notIn = accept("not");
+            if (notIn || accept("in"))
+            {
+                if (notIn)
+                {
+                    expect("in");
+                }
+                expect("(");
+                List<String> values = new ArrayList<>();
+                values.add(take("value").text);
+                while (accept(","))
+                {
+                    values.add(take("value").text);
+                }
+                expect(")");
+                Node<T> in = new In<>(field.text, accessor, cost, values);
+                return notIn ? new Not<>(in) : in;
+            }
+
+            Token operatorToken = take("operator");
+            Operator operator = operatorToken.quoted ? null : parseOperator(operatorToken.text);
+            if (operator == null)
+            {
+                throw error("Expected operator", operatorToken);
+            }
+            return new Comparison<>(field.text, accessor, cost, operator, take("value").text);
+        }
+
+        private static Operator parseOperator(String text)
+        {
+            switch (text)
+            {
+            case "=":
+            case "==":
+                return Operator.EQ;
+            case "!=":
+            case "<>":
+                return Operator.NE;
+            case "<":
+                return Operator.LT;
+            case "<=":
+                return Operator.LE;
+            case ">":
+                return Operator.GT;
+            case ">=":
+                return Operator.GE;
+            default:
+                return null;
+            }
+        }
+
+        Token peek()
+        {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private boolean accept(String keyword)
+        {
+            Token token = peek();
+            if (token != null && token.is(keyword))
+            {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword)
+        {
+            if (!accept(keyword))
+            {
+                throw error("Expected '" + keyword + "'");
+            }
+        }
+
+        private Token take(String expected)
+        {
+            Token token = peek();
+            if (token == null)
+            {
+                throw error("Expected " + expected);
+            }
+            next++;
+            return token;
+        }
+
+        IllegalArgumentException error(String message)
+        {
+            Token token = peek();
+            return token != null
+                    ? error(message, token)
+                    : new IllegalArgumentException(message + " at end of expression: " + expression);
+        }
+
+        private IllegalArgumentException error(String message, Token token)
+        {
+            return new IllegalArgumentException(
+                    message + " at position " + (token.position + 1) + ": " + expression);
+        }
+
+        private List<Token> tokenize(String text)
+        {
+            List<Token> result = new ArrayList<>();
+            int i = 0;
+            while (i < text.length())
+            {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c))
+                {
+                    i++;
+                }
+                else if (c == '\'' || c == '"')
+                {
+                    // quoted string, a doubled quote represents a quote
+                    StringBuilder value = new StringBuilder();
+                    int start = i++;
+                    while (true)
+                    {
+                        if (i >= text.length())
+                        {
+                            throw new IllegalArgumentException(
+                                    "Unterminated string at position " + (start + 1) + ": " + text);
+                        }
+                        char ch = text.charAt(i++);
+                        if (ch == c)
+                        {
+                            if (i < text.length() && text.charAt(i) == c)
+                            {
+                                value.append(c);
+                                i++;
+                            }
+                            else
+                            {
+                                break;
+                            }
+                        }
+                        else
+                        {
+                            value.append(ch);
+                        }
+                    }
+                    result.add(new Token(value.toString(), true, start));
+                }
+                else if (c == '(' || c == ')' || c == ',')
+                {
+                    result.add(new Token(String.valueOf(c), false, i++));
+                }
+                else if ("=!<>".indexOf(c) >= 0)
+                {
+                    int start = i++;
+                    if (i < text.length() && "=>".indexOf(text.charAt(i)) >= 0)
+                    {
+                        i++;
+                    }
+                    result.add(new Token(text.substring(start, i), false, start));
+                }
+                else
+                {
+                    // word or number
+                    int start = i;
+                    while (i < text.length()
+                            && !Character.isWhitespace(text.charAt(i))
+                            && "()=!<>,'\"".indexOf(text.charAt(i)) < 0)
+                    {
+                        i++;
+                    }
+                    result.add(new Token(text.substring(start, i), false, start));
+                }
+            }
+            return result;
+        }
+    }
+}
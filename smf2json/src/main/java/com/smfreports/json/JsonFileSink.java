@@ -0,0 +1,378 @@
+package com.smfreports.json;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+
+/**
+ * Write newline delimited JSON to a file, with the file output on a
+ * separate writer thread.
+ * <p>
+ * JSON text is collected into chunks by the calling thread. Full chunks
+ * are passed to the writer thread, which encodes the text, optionally
+ * compresses it and writes it to the file. Each sink has its own writer
+ * thread, so a program writing several files can have all of them
+ * writing at the same time. The number of chunks waiting for the writer
+ * is limited, so memory use is limited if the writer falls behind.
+ * <p>
+ * The output can be moved to a new file using roll. The previous file
+ * is finished by the writer thread, so the calling thread doesn't wait
+ * for it.
+ * <p>
+ * A file is created when the first chunk is written to it, so no file
+ * is created if nothing is written.
+ * <p>
+ * The write methods must be called from a single thread.
+ */
+public class JsonFileSink
+{
+    /** Size of the chunks passed to the writer thread */
+    private static final int CHUNK_CHARS = 256 * 1024;
+    /** Maximum chunks waiting to be written */
+    private static final int MAX_PENDING_CHUNKS = 4;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final boolean gzip;
+    private final int level;
+    private Path path;
+
+    private final StringBuilder chunk = new StringBuilder(CHUNK_CHARS + CHUNK_CHARS / 4);
+    private long entries = 0;
+    private long bytes = 0;
+    private long fileBytes = 0;
+
+    // The writer thread state
+    private final ExecutorService writer;
+    private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+    private volatile Exception failure = null;
+    private OutputStream out = null;
+    private CountingChannel channel = null;
+    // updated by the writer thread
+    private volatile long writtenBytes = 0;
+
+    /**
+     * Create a JsonFileSink
+     * @param path the output file
+     * @param gzip true to write gzip compressed JSON
+     */
+    public JsonFileSink(Path path, boolean gzip)
+    {
+        this(path, gzip, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create a JsonFileSink with a compression level
+     * @param path the output file
+     * @param gzip true to write gzip compressed JSON
+     * @param level the gzip compression level, 1 (fastest) to 9 (smallest)
+     */
+    public JsonFileSink(Path path, boolean gzip, int level)
+    {
+        this.path = path;
+        this.gzip = gzip;
+        this.level = level;
+        writer = Executors.newSingleThreadExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "json-sink-" + path.getFileName());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Convert an object to JSON and write it as a line in the file
+     * @param gson the Gson instance to convert the object
+     * @param object the object
+     */
+    public void write(Gson gson, Object object)
+    {
+        int start = chunk.length();
+        if (object instanceof RawJson)
+        {
+            chunk.append(object.toString());
+        }
+        else
+        {
+            gson.toJson(object, chunk);
+        }
+        chunk.append('\n');
+        long length = utf8Length(chunk, start);
+        bytes += length;
+        fileBytes += length;
+        entries++;
+        if (chunk.length() >= CHUNK_CHARS)
+        {
+            submitChunk();
+        }
+    }
+
+    /**
+     * Finish the current file and write the following JSON to a new
+     * file. The current file is closed by the writer thread.
+     * @param next the new output file
+     */
+    public void roll(Path next)
+    {
+        submitChunk();
+        submit(this::closeFile);
+        path = next;
+        fileBytes = 0;
+    }
+
+    /**
+     * Write the remaining data, close the file and wait for the writer
+     * thread to finish.
+     * @throws UncheckedIOException if writing the file failed
+     */
+    public void close()
+    {
+        submitChunk();
+        submit(this::closeFile);
+        writer.shutdown();
+        try
+        {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * The current output file
+     * @return the path
+     */
+    public Path path()
+    {
+        return path;
+    }
+
+    /**
+     * The number of JSON entries written
+     * @return the count
+     */
+    public long entries()
+    {
+        return entries;
+    }
+
+    /**
+     * The number of bytes of JSON text written, as UTF-8 before
+     * compression.
+     * @return the count
+     */
+    public long bytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * The number of bytes of JSON text written to the current file,
+     * as UTF-8 before compression.
+     * @return the count
+     */
+    public long fileBytes()
+    {
+        return fileBytes;
+    }
+
+    /**
+     * The number of bytes written to the files, after compression.
+     * Complete after close.
+     * @return the count
+     */
+    public long writtenBytes()
+    {
+        return writtenBytes;
+    }
+
+    private void submitChunk()
+    {
+        if (chunk.length() > 0)
+        {
+            String text = chunk.toString();
+            chunk.setLength(0);
+            // the file is opened by the writer thread, using the path
+            // when the chunk was submitted
+            Path target = path;
+            submit(() ->
+                {
+                    if (out == null)
+                    {
+                        open(target);
+                    }
+                    out.write(text.getBytes(StandardCharsets.UTF_8));
+                });
+        }
+    }
+
+    private void open(Path target) throws IOException
+    {
+        channel = new CountingChannel(FileChannel.open(target,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE));
+        OutputStream file = new BufferedOutputStream(
+                Channels.newOutputStream(channel),
+                OUTPUT_BUFFER_SIZE);
+        out = gzip
+                ? new LevelGZIPOutputStream(file, level)
+                : file;
+    }
+
+    private void closeFile() throws IOException
+    {
+        if (out != null)
+        {
+            out.close();
+            writtenBytes += channel.written;
+            out = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Run a task on the writer thread. Waits if too many tasks are
+     * pending.
+     */
+    private void submit(IOTask task)
+    {
+        checkFailure();
+        try
+        {
+            pendingChunks.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        writer.execute(() ->
+            {
+                try
+                {
+                    if (failure == null)
+                    {
+                        task.run();
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // stop writing, the failure is reported to the
+                    // calling thread by the next submit or close
+                    failure = e;
+                }
+                finally
+                {
+                    pendingChunks.release();
+                }
+            });
+    }
+
+    private void checkFailure()
+    {
+        Exception e = failure;
+        if (e instanceof IOException)
+        {
+            throw new UncheckedIOException(path.toString(), (IOException) e);
+        }
+        if (e != null)
+        {
+            throw new RuntimeException(path.toString(), e);
+        }
+    }
+
+    /**
+     * The number of bytes the characters from start to the end of the
+     * text will take when encoded as UTF-8, so file sizes can be
+     * tracked without encoding the text on the calling thread.
+     */
+    static long utf8Length(CharSequence text, int start)
+    {
+        long length = 0;
+        for (int i = start; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                // 4 bytes for the surrogate pair
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private interface IOTask
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * GZIPOutputStream with a compression level
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream
+    {
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException
+        {
+            super(out, OUTPUT_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * A WritableByteChannel that counts the bytes written
+     */
+    private static class CountingChannel implements WritableByteChannel
+    {
+        private final FileChannel channel;
+        private long written = 0;
+
+        CountingChannel(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException
+        {
+            int count = channel.write(source);
+            written += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.smfreports.json;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.apache.commons.cli.*;
+
+import com.google.gson.Gson;
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+
+/**
+ * A Smf2JsonCLI.Client that processes records and creates the JSON on
+ * a pool of worker threads, and returns the results in the same order
+ * as the input records.
+ * <p>
+ * Smf2JsonCLI calls processRecord for each record on a single thread.
+ * This client submits the record to the worker pool and returns the
+ * results for any earlier records that have completed, so the output
+ * lags the input by up to a few records per thread. The remaining
+ * results are returned by onEndOfData.
+ * <p>
+ * The workers convert the results to JSON text using a Gson created
+ * from the Smf2JsonCLI configuration, and return it as RawJson which
+ * Smf2JsonCLI copies to the output. All the field selection and
+ * formatting work is done in parallel, and the output is the same as
+ * the single threaded output.
+ * <p>
+ * Processing is split into 2 stages. The prepare stage is called on
+ * the reading thread in input order, e.g. to create a Smf110Record so
+ * CICS dictionary records are processed before the records that need
+ * them. The process stage is called on the worker threads and must be
+ * thread safe.
+ * <p>
+ * EasySMF objects and threads: each SmfRecord, and the objects created
+ * from it (e.g. Smf30Record, Smf98s1Record, Smf110Record and its
+ * PerformanceRecords), is used by one thread at a time. The objects
+ * are created on the reading thread or on the worker, and passed to the
+ * worker through the executor, which makes everything done before the
+ * submit visible to the worker. The objects that are used by more than
+ * one thread at the same time are:
+ * <ul>
+ * <li>the Gson instance, which is thread safe.</li>
+ * <li>CICS dictionaries. A dictionary is shared by every transaction
+ * that uses it. It is built on the reading thread when the dictionary
+ * record is read, before any record that uses it is submitted, and is
+ * not changed after that. CicsTransactions calls performanceRecords()
+ * in the prepare stage, so the dictionary is also found for each record
+ * on the reading thread, and the workers only read field values through
+ * it.</li>
+ * </ul>
+ * A process stage must not use other EasySMF objects from more than one
+ * record, or objects that are changed by the reading thread, unless they
+ * are confined in the same way.
+ * <p>
+ * Programs add the --threads option using addOptions, and wrap their
+ * client using create. Without --threads, or with --threads=1, the
+ * original client is used.
+ *
+ * @param <T> the type returned by the prepare stage
+ */
+public class OrderedParallelClient<T> implements Smf2JsonCLI.Client
+{
+    /** Maximum records waiting or in progress for each thread */
+    private static final int QUEUE_PER_THREAD = 64;
+
+    /**
+     * Add the --threads option to the command line options.
+     * @param cli the Smf2JsonCLI instance
+     */
+    public static void addOptions(Smf2JsonCLI cli)
+    {
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("threads")
+                    .hasArg(true)
+                    .desc("convert records to JSON using n threads, output is in input order")
+                    .build());
+    }
+
+    /**
+     * Wrap a client if the --threads option requests more than 1 thread.
+     * The client's processRecord method must be thread safe.
+     *
+     * @param cli the Smf2JsonCLI instance
+     * @param args the command line arguments
+     * @param client the client
+     * @return a parallel client, or the original client
+     */
+    public static Smf2JsonCLI.Client create(Smf2JsonCLI cli, String[] args, Smf2JsonCLI.Client client)
+    {
+        return create(cli, args, client, record -> record, client::processRecord);
+    }
+
+    /**
+     * Wrap a client if the --threads option requests more than 1 thread,
+     * using separate prepare and process stages.
+     *
+     * @param <T> the type returned by the prepare stage
+     * @param cli the Smf2JsonCLI instance
+     * @param args the command line arguments
+     * @param client the client, used for onEndOfData and if the client is not wrapped
+     * @param prepare called for each record in input order on the reading thread
+     * @param process called for each prepared record on a worker thread
+     * @return a parallel client, or the original client
+     */
+    public static <T> Smf2JsonCLI.Client create(Smf2JsonCLI cli, String[] args,
+            Smf2JsonCLI.Client client,
+            Function<SmfRecord, T> prepare,
+            Function<T, List<?>> process)
+    {
+        int threads = 1;
+        CommandLine commandLine = cli.commandLine(args);
+        if (commandLine.hasOption("threads"))
+        {
+            try
+            {
+                threads = Integer.parseInt(commandLine.getOptionValue("threads"));
+            }
+            catch (NumberFormatException ex)
+            {
+                System.err.println("Failed to parse threads option: " + ex.toString());
+                System.exit(0);
+            }
+        }
+        return threads > 1
+                ? new OrderedParallelClient<>(cli, threads, client, prepare, process)
+                : client;
+    }
+
+    private final Smf2JsonCLI cli;
+    private final int threads;
+    private final Smf2JsonCLI.Client client;
+    private final Function<SmfRecord, T> prepare;
+    private final Function<T, List<?>> process;
+
+    private final ExecutorService workers;
+    private final Deque<Future<List<RawJson>>> pending = new ArrayDeque<>();
+    private Gson gson = null;
+
+    private long records = 0;
+    private long jsonBytes = 0;
+    private long startNanos = 0;
+
+    private OrderedParallelClient(Smf2JsonCLI cli, int threads,
+            Smf2JsonCLI.Client client,
+            Function<SmfRecord, T> prepare,
+            Function<T, List<?>> process)
+    {
+        this.cli = cli;
+        this.threads = threads;
+        this.client = client;
+        this.prepare = prepare;
+        this.process = process;
+        workers = Executors.newFixedThreadPool(threads, runnable ->
+            {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    @Override
+    public List<Object> processRecord(SmfRecord record)
+    {
+        if (gson == null)
+        {
+            // Create the Gson when the first record arrives so it
+            // has all the configuration from the program
+            gson = cli.easySmfGsonBuilder().createGson();
+            startNanos = System.nanoTime();
+        }
+        records++;
+
+        T prepared = prepare.apply(record);
+        pending.add(workers.submit(() -> toJson(process.apply(prepared))));
+
+        List<Object> result = new ArrayList<>();
+        // Return completed results from the head of the queue, and
+        // wait for the head if the queue is full
+        while (!pending.isEmpty()
+                && (pending.peek().isDone() || pending.size() >= threads * QUEUE_PER_THREAD))
+        {
+            result.addAll(getResult(pending.remove()));
+        }
+        return result;
+    }
+
+    @Override
+    public List<Object> onEndOfData()
+    {
+        List<Object> result = new ArrayList<>();
+        while (!pending.isEmpty())
+        {
+            result.addAll(getResult(pending.remove()));
+        }
+        workers.shutdown();
+
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        System.err.format("%d records processed in %.1f seconds using %d threads, %.0f records/sec, %.1f MB/sec JSON%n",
+                records, seconds, threads,
+                records > 0 ? records / seconds : 0,
+                records > 0 ? jsonBytes / seconds / (1024 * 1024) : 0);
+
+        List<?> endResult = client.onEndOfData();
+        if (endResult != null)
+        {
+            result.addAll(endResult);
+        }
+        return result;
+    }
+
+    private List<RawJson> toJson(List<?> objects)
+    {
+        if (objects == null || objects.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        List<RawJson> result = new ArrayList<>(objects.size());
+        for (Object object : objects)
+        {
+            result.add(RawJson.of(gson, object));
+        }
+        return result;
+    }
+
+    private List<RawJson> getResult(Future<List<RawJson>> future)
+    {
+        try
+        {
+            List<RawJson> result = future.get();
+            for (RawJson json : result)
+            {
+                // the JSON text as UTF-8, plus the newline written by
+                // Smf2JsonCLI
+                jsonBytes += JsonFileSink.utf8Length(json.toString(), 0) + 1;
+            }
+            return result;
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.smfreports.json;
+
+import java.io.IOException;
+
+import com.google.gson.*;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
+
+/**
+ * JSON text that has already been created, e.g. on another thread.
+ * <p>
+ * Gson writes the text as is, so returning a RawJson from a
+ * Smf2JsonCLI client costs the writing thread only a copy of the text.
+ * The adapter is specified using the JsonAdapter annotation, so it is
+ * used by any Gson instance without registering it.
+ */
+@JsonAdapter(RawJson.AdapterFactory.class)
+public final class RawJson
+{
+    private final String json;
+
+    /**
+     * Create a RawJson by converting an object to JSON
+     * @param gson the Gson instance to convert the object
+     * @param object the object
+     * @return the JSON for the object
+     */
+    public static RawJson of(Gson gson, Object object)
+    {
+        return new RawJson(gson.toJson(object));
+    }
+
+    /**
+     * Create a RawJson from JSON text
+     * @param json valid JSON text
+     */
+    public RawJson(String json)
+    {
+        this.json = json;
+    }
+
+    @Override
+    public String toString()
+    {
+        return json;
+    }
+
+    /**
+     * Creates the adapter with the JsonElement adapter from the Gson
+     * instance, which is used when the text can't be written directly.
+     */
+    static class AdapterFactory implements TypeAdapterFactory
+    {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+        {
+            if (type.getRawType() != RawJson.class)
+            {
+                return null;
+            }
+            return (TypeAdapter<T>) new Adapter(gson.getAdapter(JsonElement.class));
+        }
+    }
+
+    private static class Adapter extends TypeAdapter<RawJson>
+    {
+        private final TypeAdapter<JsonElement> elements;
+
+        Adapter(TypeAdapter<JsonElement> elements)
+        {
+            this.elements = elements;
+        }
+
+        @Override
+        public void write(JsonWriter out, RawJson value) throws IOException
+        {
+            if (value == null)
+            {
+                out.nullValue();
+                return;
+            }
+            try
+            {
+                out.jsonValue(value.json);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // Writing to a JSON tree (toJsonTree) doesn't support raw
+                // values, so parse the text and write the elements.
+                elements.write(out, JsonParser.parseString(value.json));
+            }
+        }
+
+        @Override
+        public RawJson read(JsonReader in) throws IOException
+        {
+            return new RawJson(elements.read(in).toString());
+        }
+    }
+}
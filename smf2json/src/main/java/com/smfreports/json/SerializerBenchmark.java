@@ -0,0 +1,250 @@
+package com.smfreports.json;
+
+import java.io.*;
+import java.util.*;
+
+import com.google.gson.Gson;
+import com.blackhillsoftware.json.EasySmfGsonBuilder;
+import com.blackhillsoftware.json.util.CompositeEntry;
+import com.blackhillsoftware.smf.*;
+import com.blackhillsoftware.smf.cics.*;
+import com.blackhillsoftware.smf.cics.monitoring.PerformanceRecord;
+import com.blackhillsoftware.smf.smf30.Smf30Record;
+import com.blackhillsoftware.smf.smf98.Smf98s1Record;
+import com.smfreports.json.cics.*;
+
+/**
+ * Compare the cost of the ways smf2json programs can create JSON, for
+ * the high volume objects: SMF 110 performance records, SMF 30 sections
+ * and SMF 98 lock sections.
+ * <p>
+ * <ul>
+ * <li>gson: Gson writes the object to the output (single threaded programs)</li>
+ * <li>tree: the object is converted to a JsonElement tree, and the tree is
+ * written to the output</li>
+ * <li>render: the object is converted to JSON text as a RawJson (the work done
+ * by OrderedParallelClient worker threads)</li>
+ * <li>raw: the RawJson is written to the output (the work done by the writing
+ * thread with OrderedParallelClient)</li>
+ * <li>plan: SMF 110 transactions only, the transaction is written by
+ * PerformanceRecordSerializer using the plan for its dictionary (the
+ * CicsTransactions --json-plan option)</li>
+ * </ul>
+ * The JSON from each method is compared with the gson output, and any
+ * differences are reported. The plan method must have no differences.
+ * <p>
+ * All the methods use the EasySMF-JSON type adapters to format the
+ * values. The plan method only replaces the work of finding the fields
+ * and checking the options for each PerformanceRecord. The parallel
+ * programs save the cost of the tree and move the rendering off the
+ * writing thread.
+ * <p>
+ * If a list of CICS fields is specified, the SMF 110 transactions are
+ * also written using CicsFieldProjection, as used by the CicsTransactions
+ * --fields option, to compare the cost of writing selected fields with
+ * writing complete transactions.
+ */
+public class SerializerBenchmark
+{
+    private static void printUsage() {
+        System.out.println("Usage: SerializerBenchmark <input-file> [ repeat [ fields ] ]");
+        System.out.println("");
+        System.out.println("Report JSON conversion throughput for SMF 110, 30 and 98 data.");
+        System.out.println("");
+        System.out.println("  input-file   SMF data. Objects are kept in memory.");
+        System.out.println("               CICS dictionary records must be before the");
+        System.out.println("               transaction records.");
+        System.out.println("  repeat       Number of times to repeat each measurement. The best");
+        System.out.println("               result is reported. Default 5.");
+        System.out.println("  fields       CICS fields to select, e.g. TRAN,USRCPUT,DISPWTT");
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1 || args[0].equals("--help") || args[0].equals("-h"))
+        {
+            printUsage();
+            System.exit(0);
+        }
+        int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<Object> transactions = new ArrayList<>();
+        List<Object> smf30Sections = new ArrayList<>();
+        List<Object> lockSections = new ArrayList<>();
+
+        try (SmfRecordReader reader = SmfRecordReader.fromName(args[0])
+                .include(110, 1)
+                .include(30, 4)
+                .include(30, 5)
+                .include(98, 1))
+        {
+            for (SmfRecord record : reader)
+            {
+                switch (record.recordType())
+                {
+                case 110:
+                    Smf110Record r110 = Smf110Record.from(record);
+                    if (r110.haveDictionary())
+                    {
+                        transactions.addAll(r110.performanceRecords());
+                    }
+                    break;
+                case 30:
+                    Smf30Record r30 = Smf30Record.from(record);
+                    addIfPresent(smf30Sections, r30.identificationSection());
+                    addIfPresent(smf30Sections, r30.completionSection());
+                    addIfPresent(smf30Sections, r30.processorAccountingSection());
+                    addIfPresent(smf30Sections, r30.performanceSection());
+                    break;
+                case 98:
+                    Smf98s1Record r98 = Smf98s1Record.from(record);
+                    addIfPresent(lockSections, r98.spinLockSummary());
+                    lockSections.addAll(r98.suspendLockSummary());
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        // the same options as the sample programs
+        Gson gson = new EasySmfGsonBuilder()
+                .cicsClockDetail(true)
+                .includeZeroValues(false)
+                .includeEmptyStrings(false)
+                .includeUnsetFlags(false)
+                .createGson();
+
+        System.out.format("%-24s %-8s %12s %10s %12s%n", "Data", "Method", "Objects/sec", "MB/sec", "Differences");
+        run("SMF 110 transactions", transactions, gson, repeat);
+        runPlan("SMF 110 transactions", transactions, gson, repeat,
+                new PerformanceRecordSerializer(gson, false, false));
+        if (args.length > 2)
+        {
+            runProjected("SMF 110 --fields", transactions, gson, repeat,
+                    new CicsFieldProjection(Arrays.asList(args[2].split(","))));
+        }
+        run("SMF 30 sections", smf30Sections, gson, repeat);
+        run("SMF 98 lock sections", lockSections, gson, repeat);
+    }
+
+    private static void addIfPresent(List<Object> objects, Object object)
+    {
+        if (object != null)
+        {
+            objects.add(object);
+        }
+    }
+
+    private static void run(String name, List<Object> objects, Gson gson, int repeat)
+    {
+        if (objects.isEmpty())
+        {
+            System.out.format("%-24s (none found)%n", name);
+            return;
+        }
+
+        List<String> expected = new ArrayList<>(objects.size());
+        List<RawJson> rendered = new ArrayList<>(objects.size());
+        long bytes = 0;
+        for (Object object : objects)
+        {
+            String json = gson.toJson(object);
+            expected.add(json);
+            rendered.add(RawJson.of(gson, object));
+            bytes += json.length();
+        }
+
+        measure(name, "gson", objects, bytes, repeat, expected,
+                (object, out) -> gson.toJson(object, out));
+        measure(name, "tree", objects, bytes, repeat, expected,
+                (object, out) -> gson.toJson(gson.toJsonTree(object), out));
+        measure(name, "render", objects, bytes, repeat, expected,
+                (object, out) -> out.append(RawJson.of(gson, object).toString()));
+        measure(name, "raw", rendered, bytes, repeat, expected,
+                (object, out) -> gson.toJson(object, out));
+    }
+
+    private static void runPlan(String name, List<Object> transactions, Gson gson, int repeat,
+            PerformanceRecordSerializer serializer)
+    {
+        if (transactions.isEmpty())
+        {
+            return;
+        }
+        List<String> expected = new ArrayList<>(transactions.size());
+        long bytes = 0;
+        for (Object transaction : transactions)
+        {
+            String json = gson.toJson(transaction);
+            expected.add(json);
+            bytes += json.length();
+        }
+        measure(name, "plan", transactions, bytes, repeat, expected,
+                (object, out) -> out.append(
+                        serializer.toJson(new CompositeEntry(), (PerformanceRecord) object)));
+    }
+
+    private static void runProjected(String name, List<Object> transactions, Gson gson, int repeat,
+            CicsFieldProjection projection)
+    {
+        if (transactions.isEmpty())
+        {
+            return;
+        }
+        List<String> expected = new ArrayList<>(transactions.size());
+        long bytes = 0;
+        for (Object transaction : transactions)
+        {
+            String json = gson.toJson(projection.addFields(new CompositeEntry(), (PerformanceRecord) transaction));
+            expected.add(json);
+            bytes += json.length();
+        }
+        // the fields are extracted from the transaction inside the 
+        // measurement, the same as when the complete transaction is written
+        measure(name, "gson", transactions, bytes, repeat, expected,
+                (object, out) -> gson.toJson(
+                        projection.addFields(new CompositeEntry(), (PerformanceRecord) object), out));
+    }
+
+    private static void measure(String name, String method, List<?> objects, long bytes, int repeat,
+            List<String> expected, Serializer serializer)
+    {
+        // check the output, and warm up
+        int differences = 0;
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < objects.size(); i++)
+        {
+            json.setLength(0);
+            serializer.write(objects.get(i), json);
+            if (!expected.get(i).contentEquals(json))
+            {
+                differences++;
+            }
+        }
+
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < repeat; i++)
+        {
+            long start = System.nanoTime();
+            for (Object object : objects)
+            {
+                json.setLength(0);
+                serializer.write(object, json);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        double seconds = bestNanos / 1_000_000_000.0;
+        System.out.format("%-24s %-8s %12.0f %10.1f %12d%n",
+                name,
+                method,
+                objects.size() / seconds,
+                bytes / (1024.0 * 1024) / seconds,
+                differences);
+    }
+
+    private interface Serializer
+    {
+        void write(Object object, StringBuilder out);
+    }
+}
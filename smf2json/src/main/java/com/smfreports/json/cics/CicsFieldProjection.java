@@ -0,0 +1,125 @@
+package com.smfreports.json.cics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.blackhillsoftware.json.util.CompositeEntry;
+import com.blackhillsoftware.smf.cics.monitoring.*;
+
+/**
+ * Select specific fields from CICS performance records, instead of
+ * writing the complete record.
+ * <p>
+ * Fields are specified by the CMODHEAD name from the CICS dictionary,
+ * e.g. USRCPUT. The names are matched against each dictionary once, and
+ * the matching dictionary entries are cached, so only the selected
+ * fields are extracted from each transaction. If a name matches more
+ * than one entry in the dictionary all are included, with _2, _3 etc.
+ * added to the name.
+ * <p>
+ * Fields are written in the order specified. Zero and empty values are
+ * written, so every transaction has the same fields.
+ * <p>
+ * The class is thread safe.
+ */
+public class CicsFieldProjection
+{
+    // The matching entries are cached for each dictionary returned by
+    // PerformanceRecord.getDictionary(). The cache is cleared if it
+    // grows past MAX_DICTIONARIES, so memory use stays limited if a
+    // very large number of dictionaries are seen.
+    private static final int MAX_DICTIONARIES = 1000;
+
+    private final List<String> names;
+    private final Map<Object, ProjectedField[]> resolved = new ConcurrentHashMap<>();
+    private final Set<String> notFound = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a CicsFieldProjection
+     * @param names the CMODHEAD names of the fields
+     */
+    public CicsFieldProjection(Collection<String> names)
+    {
+        this.names = new ArrayList<>();
+        for (String name : names)
+        {
+            this.names.add(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Add the selected fields from a transaction to a CompositeEntry.
+     * @param entry the CompositeEntry
+     * @param transaction the transaction
+     * @return the CompositeEntry
+     */
+    public CompositeEntry addFields(CompositeEntry entry, PerformanceRecord transaction)
+    {
+        for (ProjectedField field : resolve(transaction))
+        {
+            entry.add(field.name, transaction.getField(field.entry));
+        }
+        return entry;
+    }
+
+    private ProjectedField[] resolve(PerformanceRecord transaction)
+    {
+        Object dictionary = transaction.getDictionary();
+        ProjectedField[] result = resolved.get(dictionary);
+        if (result == null)
+        {
+            if (resolved.size() >= MAX_DICTIONARIES)
+            {
+                resolved.clear();
+            }
+            result = resolved.computeIfAbsent(dictionary, key -> resolveDictionary(transaction));
+        }
+        return result;
+    }
+
+    private ProjectedField[] resolveDictionary(PerformanceRecord transaction)
+    {
+        List<ProjectedField> result = new ArrayList<>();
+        Set<String> outputNames = new HashSet<>();
+        for (String name : names)
+        {
+            boolean found = false;
+            for (DictionaryEntry entry : transaction.getDictionary().entries())
+            {
+                if (entry.cmodhead().trim().equalsIgnoreCase(name))
+                {
+                    result.add(new ProjectedField(uniqueName(name.toLowerCase(), outputNames), entry));
+                    found = true;
+                }
+            }
+            // only print the message once per field
+            if (!found && notFound.add(name))
+            {
+                System.err.println("Field " + name + " not found in CICS dictionary, it will not be written");
+            }
+        }
+        return result.toArray(new ProjectedField[0]);
+    }
+
+    private static String uniqueName(String name, Set<String> names)
+    {
+        String result = name;
+        for (int i = 2; !names.add(result); i++)
+        {
+            result = name + "_" + i;
+        }
+        return result;
+    }
+
+    private static class ProjectedField
+    {
+        ProjectedField(String name, DictionaryEntry entry)
+        {
+            this.name = name;
+            this.entry = entry;
+        }
+
+        final String name;
+        final DictionaryEntry entry;
+    }
+}
@@ -0,0 +1,173 @@
+package com.smfreports.json.cics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.blackhillsoftware.smf.cics.*;
+import com.blackhillsoftware.smf.cics.monitoring.*;
+import com.smfreports.json.FilterExpression;
+
+/**
+ * A FilterExpression for CICS transactions, e.g.
+ * <pre>
+ * tran in (ABCD,EFGH) and elapsed &gt; 0.5 and abcodec != ''
+ * </pre>
+ * Fields:
+ * <ul>
+ * <li>system, smfmnjbn, smfmnprn, smfmnspn: from the SMF record</li>
+ * <li>elapsed: the transaction elapsed time in seconds</li>
+ * <li>any other name is a field from the CICS dictionary, using the
+ * CMODHEAD name e.g. TRAN, USRCPUT. Clock fields are compared using the
+ * time in seconds.</li>
+ * </ul>
+ * Field names are not case sensitive. Record fields are tested first,
+ * then dictionary fields, then elapsed time.
+ * <p>
+ * Dictionary field names are matched against each CICS dictionary once
+ * and the dictionary entry is cached. If the field is not found in a
+ * dictionary a message is printed, and the field has no value for
+ * those transactions.
+ * <p>
+ * The class is thread safe.
+ */
+public class CicsTransactionFilter
+{
+    private static final int RECORD_FIELD_COST = 1;
+    private static final int DICTIONARY_FIELD_COST = 2;
+    private static final int ELAPSED_COST = 3;
+
+    private static final int MAX_DICTIONARIES = 1000;
+
+    private final FilterExpression<Transaction> expression;
+
+    /**
+     * Compile a filter expression for CICS transactions.
+     * @param expression the expression
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public CicsTransactionFilter(String expression)
+    {
+        this.expression = FilterExpression.compile(expression, new Resolver());
+    }
+
+    /**
+     * Test a transaction
+     * @param r110 the SMF record containing the transaction
+     * @param transaction the transaction
+     * @return true if the transaction matches the expression
+     */
+    public boolean test(Smf110Record r110, PerformanceRecord transaction)
+    {
+        return expression.test(new Transaction(r110, transaction));
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression.compiled();
+    }
+
+    private static final class Transaction
+    {
+        Transaction(Smf110Record r110, PerformanceRecord transaction)
+        {
+            this.r110 = r110;
+            this.transaction = transaction;
+        }
+
+        final Smf110Record r110;
+        final PerformanceRecord transaction;
+    }
+
+    private static final class Resolver implements FilterExpression.FieldResolver<Transaction>
+    {
+        private final Set<String> notFound = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Function<Transaction, Object> resolve(String name)
+        {
+            switch (name.toLowerCase())
+            {
+            case "system":
+                return item -> item.r110.smfsid();
+            case "smfmnjbn":
+                return item -> item.r110.mnProductSection().smfmnjbn();
+            case "smfmnprn":
+                return item -> item.r110.mnProductSection().smfmnprn();
+            case "smfmnspn":
+                return item -> item.r110.mnProductSection().smfmnspn();
+            case "elapsed":
+                return item -> item.transaction.elapsedSeconds();
+            default:
+                return dictionaryField(name.toUpperCase());
+            }
+        }
+
+        @Override
+        public int cost(String name)
+        {
+            switch (name.toLowerCase())
+            {
+            case "system":
+            case "smfmnjbn":
+            case "smfmnprn":
+            case "smfmnspn":
+                return RECORD_FIELD_COST;
+            case "elapsed":
+                return ELAPSED_COST;
+            default:
+                return DICTIONARY_FIELD_COST;
+            }
+        }
+
+        private Function<Transaction, Object> dictionaryField(String name)
+        {
+            // the entry for this field in each dictionary,
+            // empty if the dictionary doesn't have the field
+            Map<Object, Optional<DictionaryEntry>> entries = new ConcurrentHashMap<>();
+            return item ->
+            {
+                Object dictionary = item.transaction.getDictionary();
+                Optional<DictionaryEntry> entry = entries.get(dictionary);
+                if (entry == null)
+                {
+                    if (entries.size() >= MAX_DICTIONARIES)
+                    {
+                        entries.clear();
+                    }
+                    entry = entries.computeIfAbsent(dictionary, key -> findEntry(item.transaction, name));
+                }
+                return entry.isPresent()
+                        ? value(item.transaction.getField(entry.get()))
+                        : null;
+            };
+        }
+
+        private Optional<DictionaryEntry> findEntry(PerformanceRecord transaction, String name)
+        {
+            for (DictionaryEntry entry : transaction.getDictionary().entries())
+            {
+                if (entry.cmodhead().trim().equalsIgnoreCase(name))
+                {
+                    return Optional.of(entry);
+                }
+            }
+            // only print the message once per field
+            if (notFound.add(name))
+            {
+                System.err.println("Filter field " + name + " not found in CICS dictionary");
+            }
+            return Optional.empty();
+        }
+
+        private static Object value(Object fieldValue)
+        {
+            if (fieldValue instanceof CicsClock)
+            {
+                return ((CicsClock) fieldValue).timerSeconds();
+            }
+            return fieldValue;
+        }
+    }
+}
@@ -1,15 +1,16 @@
 package com.smfreports.json.cics;
 
 import java.io.IOException;
-import java.time.temporal.ChronoUnit;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import com.blackhillsoftware.json.cics.*;
 import com.blackhillsoftware.json.util.*;
 import com.blackhillsoftware.smf.*;
 import com.blackhillsoftware.smf.cics.*;
+import com.blackhillsoftware.smf.cics.monitoring.PerformanceRecord;
 import com.blackhillsoftware.smf.cics.monitoring.fields.*;
 import com.blackhillsoftware.smf2json.cli.*;
 
@@ -36,19 +37,23 @@ public class CicsTransactionSummary
             .includeRecords(110, 1)
             ;
         
+        MinuteWatermark.addOptions(smf2JsonCli);
+        
         smf2JsonCli.easySmfGsonBuilder()
             .includeZeroValues(false)
             .includeEmptyStrings(false)
             .includeUnsetFlags(false)
             ;
         
-        smf2JsonCli.start(new CliClient(), args);
+        smf2JsonCli.start(new CliClient(MinuteWatermark.create(smf2JsonCli, args)), args);
     }
     
     private static class CliClient implements Smf2JsonCLI.Client
     {
-        public CliClient()
+        public CliClient(MinuteWatermark watermark)
         {
+            this.watermark = watermark;
+            
             // Create and configure the factory to create new transaction groups.
             // Exclude fields used in the key from the grouped data.
             transactionGroupFactory = new CicsTransactionGroupFactory()
@@ -66,58 +71,88 @@ public class CicsTransactionSummary
             transactionGroupFactory.clockDetail(false);
         }
              
-        // Keep the transaction groups in a ConcurrentHashMap because we want to make 
-        // the processRecord thread safe so we can process transactions in parallel         
-        private Map<HashKey, CicsTransactionGroup> transactionGroups = new ConcurrentHashMap<>();
+        // CicsTransactionGroup can't be merged, so there is one for each key 
+        // shared by all threads. CicsTransactionGroup.add is thread safe. The 
+        // ConcurrentHashMap is only used the first time a thread sees a key.
+        private Map<TransactionKey, CicsTransactionGroup> transactionGroups = new ConcurrentHashMap<>();
+        
+        // Each thread collects its count and percentile histograms for each 
+        // group in its own map, so the threads don't compete to update the 
+        // same histograms when we process transactions in parallel. The maps 
+        // for all threads are kept in a ConcurrentLinkedQueue and merged when 
+        // they are written.
+        private Queue<ThreadGroups> allThreadGroups = new ConcurrentLinkedQueue<>();
+        private ThreadLocal<ThreadGroups> threadLocalGroups = ThreadLocal.withInitial(() ->
+            {
+                ThreadGroups result = new ThreadGroups();
+                allThreadGroups.add(result);
+                return result;
+            });
+        
+        private long startNanos = System.nanoTime();
+        // updated while holding the watermark write lock
+        private long transactionsWritten = 0;
+        private long groupsWritten = 0;
         
         // Keep track of instances seen without a dictionary
         // ConcurrentHashMap provides a thread safe Set
         private Set<CicsInstanceId> noDictionary = ConcurrentHashMap.newKeySet();
         
         private CicsTransactionGroupFactory transactionGroupFactory;
+        
+        // Decides when groups can be written before the end of the data
+        private MinuteWatermark watermark;
                 
         @Override
         public List<Object> processRecord(SmfRecord record) 
         {
             // This method processes the individual records and adds them to the 
-            // summary. There is no record by record output so this method 
-            // returns null.
+            // summary. 
             // The output is created in the onEndOfData() method which returns
-            // the transaction groups to be converted to JSON.
+            // the transaction groups to be converted to JSON, or with the 
+            // --lateness option groups are returned from this method when
+            // the data has moved past their minute.
             
             Smf110Record r110 = Smf110Record.from(record);
             String smfmnprn = r110.mnProductSection().smfmnprn();
             String smfmnspn = r110.mnProductSection().smfmnspn();
             if (r110.haveDictionary())
             {
-                r110.performanceRecords().stream()
-                    .forEach(performanceRecord ->
-                        {
-                            // Create a key for the Map using fields as required
-                            // There will be a separate entry for each combination of these
-                            // fields.
-                            HashKey key = HashKey
-                                    .of("smfmnprn", smfmnprn)
-                                    .and("smfmnspn", smfmnspn)
-                                    .and("minute", performanceRecord.getField(Field.STOP).truncatedTo(ChronoUnit.MINUTES))
-                                    .and("tran", performanceRecord.getField(Field.TRAN))
-                                    .and("ttype", performanceRecord.getField(Field.TTYPE))
-                                    .and("rtype", performanceRecord.getField(Field.RTYPE).trim())
-                                    .and("pgmname", performanceRecord.getField(Field.PGMNAME))
-                                    .and("srvclsnm", performanceRecord.getField(Field.SRVCLSNM))
-                                    .and("rptclsnm", performanceRecord.getField(Field.RPTCLSNM))
-                                    .and("tclsname", performanceRecord.getField(Field.TCLSNAME))
-                                    ;
+                watermark.addLock().lock();
+                try
+                {
+                    ThreadGroups threadGroups = threadLocalGroups.get();
+                    r110.performanceRecords().stream()
+                        .forEach(performanceRecord ->
+                            {
+                                // Set the key fields in this thread's reusable key.
+                                // There will be a separate entry for each combination of these
+                                // fields - see TransactionKey.
+                                TransactionKey key = threadGroups.key.set(smfmnprn, smfmnspn, performanceRecord);
                             
-                            // Get the existing group or create new.
-                            // We used a ConcurrentHashMap so computeIfAbsent is thread safe,
-                            // CicsTransactionGroup.add is also specified to be thread safe
-                            transactionGroups.computeIfAbsent(
-                                    key, 
-                                    value -> transactionGroupFactory.createGroup())
-                                 .add(performanceRecord);
-                        }
-                    );
+                                // Get this thread's group, or create a new one with a copy 
+                                // of the key. The thread's map is only used by this thread so 
+                                // no synchronization is required. The shared 
+                                // CicsTransactionGroup is found or created using 
+                                // computeIfAbsent, which is thread safe.
+                                SummaryGroup group = threadGroups.groups.get(key);
+                                if (group == null)
+                                {
+                                    TransactionKey copy = key.copy();
+                                    group = new SummaryGroup(transactionGroups.computeIfAbsent(
+                                            copy, 
+                                            value -> transactionGroupFactory.createGroup()));
+                                    threadGroups.groups.put(copy, group);
+                                }
+                                group.add(performanceRecord);
+                                watermark.add(key.minute());
+                            }
+                        );
+                }
+                finally
+                {
+                    watermark.addLock().unlock();
+                }
             }
             else
             {
@@ -127,7 +162,52 @@ public class CicsTransactionSummary
                     System.err.println("No dictionary for: " + r110.cicsInstance().toString() + ", skipping record(s)");
                 }
             }
-            return Collections.emptyList();
+            return watermark.writeReady(this::removeGroupsBefore);
+        }
+        
+        /**
+         * Remove the groups for minutes before the cutoff from the maps
+         * for all threads, merge them and return the output entries.
+         * Called while holding the watermark write lock or at the end of 
+         * the data, so no thread is updating its map.
+         */
+        private List<Object> removeGroupsBefore(long cutoff)
+        {
+            Map<TransactionKey, SummaryGroup> summaryGroups = new HashMap<>();
+            for (ThreadGroups threadGroups : allThreadGroups)
+            {
+                Iterator<Map.Entry<TransactionKey, SummaryGroup>> it = threadGroups.groups.entrySet().iterator();
+                while (it.hasNext())
+                {
+                    Map.Entry<TransactionKey, SummaryGroup> entry = it.next();
+                    if (entry.getKey().minute() < cutoff)
+                    {
+                        summaryGroups.merge(entry.getKey(), entry.getValue(), SummaryGroup::merge);
+                        it.remove();
+                    }
+                }
+            }
+            transactionGroups.keySet().removeIf(key -> key.minute() < cutoff);
+            
+            groupsWritten += summaryGroups.size();
+            for (SummaryGroup group : summaryGroups.values())
+            {
+                transactionsWritten += group.count;
+            }
+            
+            return summaryGroups.entrySet().stream()
+                    .map(CliClient::toOutput)
+                    .collect(Collectors.toList());
+        }
+        
+        private static CompositeEntry toOutput(Map.Entry<TransactionKey, SummaryGroup> entry)
+        {
+            return new CompositeEntry()
+                    .add("recordtype", "CICS Summary")
+                    .add(entry.getKey().toHashKey())
+                    .add(entry.getValue().transactions)
+                    .add("elapsedPercentiles", entry.getValue().elapsed.percentiles())
+                    .add("cpuPercentiles", entry.getValue().cpu.percentiles());
         }
         
         @Override
@@ -135,13 +215,67 @@ public class CicsTransactionSummary
         {
             System.err.println("End of Data");
             
-            return transactionGroups.entrySet().stream()
-                    .map(entry -> 
-                        new CompositeEntry()
-                            .add("recordtype", "CICS Summary")
-                            .add(entry.getKey())
-                            .add(entry.getValue()))
-                    .collect(Collectors.toList());
+            // Merge and return all the remaining groups
+            List<Object> result = removeGroupsBefore(Long.MAX_VALUE);
+            
+            double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+            System.err.format("%d transactions, %d groups, %.1f seconds, %.0f transactions/sec%n",
+                    transactionsWritten, 
+                    groupsWritten, 
+                    seconds,
+                    transactionsWritten / seconds);
+            watermark.printStatistics();
+            
+            return result;
         }
     } 
+    
+    /**
+     * The summary groups and reusable key for a thread
+     */
+    private static class ThreadGroups
+    {
+        TransactionKey key = new TransactionKey();
+        Map<TransactionKey, SummaryGroup> groups = new HashMap<>();
+    }
+    
+    /**
+     * A thread's count and histograms for the elapsed and CPU time 
+     * percentiles, with the CicsTransactionGroup shared by all threads
+     * for the key.
+     */
+    private static class SummaryGroup
+    {
+        SummaryGroup(CicsTransactionGroup transactions)
+        {
+            this.transactions = transactions;
+        }
+        
+        // SummaryGroup is only updated by one thread, so add is not synchronized.
+        // CicsTransactionGroup.add is thread safe.
+        void add(PerformanceRecord performanceRecord)
+        {
+            count++;
+            transactions.add(performanceRecord);
+            elapsed.add(Duration.between(performanceRecord.getField(Field.START), performanceRecord.getField(Field.STOP))
+                    .toNanos() / 1_000_000_000.0);
+            cpu.add(performanceRecord.getField(Field.USRCPUT).timerSeconds());
+        }
+        
+        // Combine the data from 2 threads for the same key. They share
+        // the CicsTransactionGroup, so only the count and histograms 
+        // are merged.
+        SummaryGroup merge(SummaryGroup other)
+        {
+            count += other.count;
+            elapsed.merge(other.elapsed);
+            cpu.merge(other.cpu);
+            return this;
+        }
+        
+        private final CicsTransactionGroup transactions;
+        private long count = 0;
+        private final PercentileHistogram elapsed = new PercentileHistogram();
+        private final PercentileHistogram cpu = new PercentileHistogram();
+    }
 }
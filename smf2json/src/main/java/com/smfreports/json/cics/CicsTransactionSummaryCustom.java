@@ -2,9 +2,8 @@ package com.smfreports.json.cics;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import com.blackhillsoftware.json.util.*;
@@ -40,20 +39,43 @@ public class CicsTransactionSummaryCustom
             .includeRecords(110, 1)
             ;
         
+        MinuteWatermark.addOptions(smf2JsonCli);
+        
         smf2JsonCli.easySmfGsonBuilder()
             .includeZeroValues(false)
             .includeEmptyStrings(false)
             .includeUnsetFlags(false)
             ;
         
-        smf2JsonCli.start(new CliClient(), args);
+        smf2JsonCli.start(new CliClient(MinuteWatermark.create(smf2JsonCli, args)), args);
     }
     
     private static class CliClient implements Smf2JsonCLI.Client
     {        
-        // Keep the transaction groups in a ConcurrentHashMap because we want to make 
-        // the processRecord thread safe so we can process transactions in parallel         
-        private Map<HashKey, TransactionData> transactionGroups = new ConcurrentHashMap<>();
+        public CliClient(MinuteWatermark watermark)
+        {
+            this.watermark = watermark;
+        }
+        
+        // Each thread collects transaction groups in its own map, so processRecord
+        // is thread safe without the threads competing to update the same groups
+        // when we process transactions in parallel. The maps for all threads are
+        // kept in a ConcurrentLinkedQueue and merged when they are written.
+        private Queue<ThreadGroups> allThreadGroups = new ConcurrentLinkedQueue<>();
+        private ThreadLocal<ThreadGroups> threadLocalGroups = ThreadLocal.withInitial(() ->
+            {
+                ThreadGroups result = new ThreadGroups();
+                allThreadGroups.add(result);
+                return result;
+            });
+        
+        private long startNanos = System.nanoTime();
+        // updated while holding the watermark write lock
+        private long transactionsWritten = 0;
+        private long groupsWritten = 0;
+        
+        // Decides when groups can be written before the end of the data
+        private MinuteWatermark watermark;
         
         // Keep track of instances seen without a dictionary
         // ConcurrentHashMap provides a thread safe Set
@@ -64,44 +86,47 @@ public class CicsTransactionSummaryCustom
         public List<Object> processRecord(SmfRecord record) 
         {
             // This method processes the individual records and adds them to the 
-            // summary. There is no record by record output so this method 
-            // returns null.
+            // summary. 
             // The output is created in the onEndOfData() method which returns
-            // the transaction groups to be converted to JSON.
+            // the transaction groups to be converted to JSON, or with the 
+            // --lateness option groups are returned from this method when
+            // the data has moved past their minute.
             
             Smf110Record r110 = Smf110Record.from(record);
             String smfmnprn = r110.mnProductSection().smfmnprn();
             String smfmnspn = r110.mnProductSection().smfmnspn();
             if (r110.haveDictionary())
             {
-                r110.performanceRecords().stream()
-                    .forEach(performanceRecord ->
-                        {
-                            // Create a key for the Map using fields as required
-                            // There will be a separate entry for each combination of these
-                            // fields.
-                            HashKey key = HashKey
-                                    .of("smfmnprn", smfmnprn)
-                                    .and("smfmnspn", smfmnspn)
-                                    .and("minute", performanceRecord.getField(Field.STOP).truncatedTo(ChronoUnit.MINUTES))
-                                    .and("tran", performanceRecord.getField(Field.TRAN))
-                                    .and("ttype", performanceRecord.getField(Field.TTYPE))
-                                    .and("rtype", performanceRecord.getField(Field.RTYPE).trim())
-                                    .and("pgmname", performanceRecord.getField(Field.PGMNAME))
-                                    .and("srvclsnm", performanceRecord.getField(Field.SRVCLSNM))
-                                    .and("rptclsnm", performanceRecord.getField(Field.RPTCLSNM))
-                                    .and("tclsname", performanceRecord.getField(Field.TCLSNAME))
-                                    ;
+                watermark.addLock().lock();
+                try
+                {
+                    ThreadGroups threadGroups = threadLocalGroups.get();
+                    r110.performanceRecords().stream()
+                        .forEach(performanceRecord ->
+                            {
+                                // Set the key fields in this thread's reusable key.
+                                // There will be a separate entry for each combination of these
+                                // fields - see TransactionKey.
+                                TransactionKey key = threadGroups.key.set(smfmnprn, smfmnspn, performanceRecord);
                             
-                            // Get the existing group or create new.
-                            // We used a ConcurrentHashMap so computeIfAbsent is thread safe,
-                            // CicsTransactionGroup.add is also specified to be thread safe
-                            transactionGroups.computeIfAbsent(
-                                    key, 
-                                    value -> new TransactionData())
-                                 .add(performanceRecord);
-                        }
-                    );
+                                // Get the existing group or create new with a copy of the key.
+                                // The map is only used by this thread so no synchronization
+                                // is required.
+                                TransactionData group = threadGroups.groups.get(key);
+                                if (group == null)
+                                {
+                                    group = new TransactionData();
+                                    threadGroups.groups.put(key.copy(), group);
+                                }
+                                group.add(performanceRecord);
+                                watermark.add(key.minute());
+                            }
+                        );
+                }
+                finally
+                {
+                    watermark.addLock().unlock();
+                }
             }
             else
             {
@@ -111,42 +136,114 @@ public class CicsTransactionSummaryCustom
                     System.err.println("No dictionary for: " + r110.cicsInstance().toString() + ", skipping record(s)");
                 }
             }
-            return Collections.emptyList();
+            return watermark.writeReady(this::removeGroupsBefore);
         }
         
-        @Override
-        public List<Object> onEndOfData() 
+        /**
+         * Remove the groups for minutes before the cutoff from the maps
+         * for all threads, merge them and return the output entries.
+         * Called while holding the watermark write lock or at the end of 
+         * the data, so no thread is updating its map.
+         */
+        private List<Object> removeGroupsBefore(long cutoff)
         {
-            System.err.println("End of Data");
+            Map<TransactionKey, TransactionData> transactionGroups = new HashMap<>();
+            for (ThreadGroups threadGroups : allThreadGroups)
+            {
+                Iterator<Map.Entry<TransactionKey, TransactionData>> it = threadGroups.groups.entrySet().iterator();
+                while (it.hasNext())
+                {
+                    Map.Entry<TransactionKey, TransactionData> entry = it.next();
+                    if (entry.getKey().minute() < cutoff)
+                    {
+                        transactionGroups.merge(entry.getKey(), entry.getValue(), TransactionData::merge);
+                        it.remove();
+                    }
+                }
+            }
+            
+            groupsWritten += transactionGroups.size();
+            for (TransactionData group : transactionGroups.values())
+            {
+                transactionsWritten += group.count;
+            }
             
             return transactionGroups.entrySet().stream()
                     .map(entry -> 
                         new CompositeEntry()
-                            .add(entry.getKey())
-                            .add(entry.getValue()))
+                            .add(entry.getKey().toHashKey())
+                            .add(entry.getValue())
+                            .add("elapsedPercentiles", entry.getValue().elapsedTimes.percentiles())
+                            .add("cpuPercentiles", entry.getValue().cpuTimes.percentiles()))
                     .collect(Collectors.toList());
         }
+        
+        @Override
+        public List<Object> onEndOfData() 
+        {
+            System.err.println("End of Data");
+            
+            // Merge and return all the remaining groups
+            List<Object> result = removeGroupsBefore(Long.MAX_VALUE);
+            
+            double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+            System.err.format("%d transactions, %d groups, %.1f seconds, %.0f transactions/sec%n",
+                    transactionsWritten, 
+                    groupsWritten, 
+                    seconds,
+                    transactionsWritten / seconds);
+            watermark.printStatistics();
+            
+            return result;
+        }
+    }
+    
+    /**
+     * The transaction groups and reusable key for a thread
+     */
+    private static class ThreadGroups
+    {
+        TransactionKey key = new TransactionKey();
+        Map<TransactionKey, TransactionData> groups = new HashMap<>();
     }
     
     private static class TransactionData 
     {
         private static final long nanosPerSecond = Duration.ofSeconds(1).toNanos();
         
-        // add is synchronized so collecting transaction data is thread safe 
-        public synchronized void add(PerformanceRecord txData) 
+        // TransactionData is only updated by one thread, so add is not synchronized 
+        public void add(PerformanceRecord txData) 
         {
             count++;
             double elapsedNanos = Duration.between(txData.getField(Field.START), txData.getField(Field.STOP))
                     .toNanos();
             elapsed += elapsedNanos / nanosPerSecond;
+            elapsedTimes.add(elapsedNanos / nanosPerSecond);
             dispatch += txData.getField(Field.USRDISPT).timerSeconds();
             dispatchWait += txData.getField(Field.DISPWTT).timerSeconds();
-            cpu += txData.getField(Field.USRCPUT).timerSeconds();
+            double cpuSeconds = txData.getField(Field.USRCPUT).timerSeconds();
+            cpu += cpuSeconds;
+            cpuTimes.add(cpuSeconds);
             if (!txData.getField(Field.ABCODEC).equals("") || !txData.getField(Field.ABCODEO).equals(""))
             {
                 abends++;
             }
         } 
+        
+        // Combine the data from 2 instances, used to merge the groups 
+        // collected by different threads
+        public TransactionData merge(TransactionData other) 
+        {
+            count += other.count;
+            abends += other.abends;
+            elapsed += other.elapsed;
+            dispatch += other.dispatch;
+            dispatchWait += other.dispatchWait;
+            cpu += other.cpu;
+            elapsedTimes.merge(other.elapsedTimes);
+            cpuTimes.merge(other.cpuTimes);
+            return this;
+        } 
 
         public int count = 0;
         public int abends = 0;
@@ -154,5 +251,11 @@ public class CicsTransactionSummaryCustom
         public double dispatch = 0;
         public double dispatchWait = 0;
         public double cpu = 0;
+        
+        // Histograms for the percentiles. They are transient so Gson 
+        // doesn't write the histogram data, the percentiles are added 
+        // to the output separately.
+        private transient PercentileHistogram elapsedTimes = new PercentileHistogram();
+        private transient PercentileHistogram cpuTimes = new PercentileHistogram();
     }   
 }
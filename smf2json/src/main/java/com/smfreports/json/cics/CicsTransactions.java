@@ -11,6 +11,7 @@ import com.blackhillsoftware.smf.cics.*;
 import com.blackhillsoftware.smf.cics.monitoring.*;
 import com.blackhillsoftware.smf.cics.monitoring.fields.*;
 import com.blackhillsoftware.smf2json.cli.*;
+import com.smfreports.json.*;
 
 /**
  * Write CICS transaction information to JSON.
@@ -30,6 +31,8 @@ public class CicsTransactions
             .includeRecords(110, 1);
         
         setupCommandLineArgs(smf2JsonCli); 
+        OrderedParallelClient.addOptions(smf2JsonCli);
+        CompressedJsonOutput.addOptions(smf2JsonCli);
         Configuration config = readCommandLineArgs(args, smf2JsonCli);
         
         // Specify options for creating JSON
@@ -40,7 +43,25 @@ public class CicsTransactions
             .includeUnsetFlags(false)
             ;
         
-        smf2JsonCli.start(new CliClient(config), args);    
+        if (config.jsonPlan)
+        {
+            // the same includeZeroValues and includeEmptyStrings options 
+            // as the builder
+            config.serializer = new PerformanceRecordSerializer(
+                    smf2JsonCli.easySmfGsonBuilder().createGson(), false, false);
+        }
+        
+        // With --threads, the Smf110Record and its PerformanceRecords are
+        // created in input order on the reading thread, so dictionaries
+        // are processed before the records that need them and only the
+        // reading thread looks them up. The transactions are converted
+        // to JSON in parallel.
+        CliClient client = new CliClient(config);
+        smf2JsonCli.start(
+                CompressedJsonOutput.create(smf2JsonCli, args,
+                        OrderedParallelClient.create(smf2JsonCli, args, client, 
+                                client::prepare, client::processTransactions)), 
+                args);    
     }
 
     private static void setupCommandLineArgs(Smf2JsonCLI smf2JsonCli) 
@@ -91,6 +112,28 @@ public class CicsTransactions
                     .desc("exclude specific transactions: --xtranid=AAAA[,BBBB...]")
                     .build());
         
+        smf2JsonCli.options().addOption(
+                Option.builder()
+                    .longOpt("filter")
+                    .hasArg(true)
+                    .desc("select transactions using an expression: --filter=\"tran in (ABCD,EFGH) and elapsed > 0.5 and abcodec != ''\"")
+                    .build());
+        
+        smf2JsonCli.options().addOption(
+                Option.builder()
+                    .longOpt("fields")
+                    .hasArgs()
+                    .valueSeparator(',')
+                    .desc("write only these fields from the transactions, using the CICS dictionary names: --fields=USRCPUT[,DISPWTT...]")
+                    .build());
+        
+        smf2JsonCli.options().addOption(
+                Option.builder()
+                    .longOpt("json-plan")
+                    .hasArg(false)
+                    .desc("write complete transactions using a plan for each CICS dictionary, checked against the Gson output")
+                    .build());
+        
     }
     
     private static Configuration readCommandLineArgs(String[] args, Smf2JsonCLI smf2JsonCli) 
@@ -105,6 +148,27 @@ public class CicsTransactions
 
         config.abendsOnly = commandLine.hasOption("abend");
         
+        if (commandLine.hasOption("filter"))
+        {
+            try
+            {
+                config.filter = new CicsTransactionFilter(commandLine.getOptionValue("filter"));
+            }
+            catch (IllegalArgumentException ex)
+            {
+                System.err.println("Failed to parse filter option: " + ex.getMessage());
+                System.exit(0);
+            }
+        }
+        
+        if (commandLine.hasOption("fields"))
+        {
+            config.fields = new CicsFieldProjection(
+                    Arrays.asList(commandLine.getOptionValues("fields")));
+        }
+        
+        config.jsonPlan = commandLine.hasOption("json-plan");
+        
         if (commandLine.hasOption("ms"))
         {
             try
@@ -143,6 +207,25 @@ public class CicsTransactions
         Set<String> excludeTransactions = Collections.emptySet();
         double thresholdSeconds = 0;
         boolean abendsOnly = false;
+        CicsTransactionFilter filter = null;
+        CicsFieldProjection fields = null;
+        boolean jsonPlan = false;
+        PerformanceRecordSerializer serializer = null;
+    }
+    
+    /**
+     * A Smf110Record and the transactions selected from it
+     */
+    private static class PreparedRecord
+    {
+        final Smf110Record r110;
+        final List<PerformanceRecord> transactions;
+        
+        PreparedRecord(Smf110Record r110, List<PerformanceRecord> transactions)
+        {
+            this.r110 = r110;
+            this.transactions = transactions;
+        }
     }
     
     private static class CliClient implements Smf2JsonCLI.Client
@@ -157,24 +240,53 @@ public class CicsTransactions
         @Override
         public List<Object> processRecord(SmfRecord record) 
         {
-            List<Object> result = new ArrayList<>();
+            return processTransactions(prepare(record));
+        }
+        
+        /**
+         * Create the Smf110Record and find the transactions for the
+         * selected APPLIDs. Called in input order.
+         */
+        PreparedRecord prepare(SmfRecord record)
+        {
             Smf110Record r110 = Smf110Record.from(record);
-            
-            if (includeApplid(r110.mnProductSection().smfmnprn()))
+            List<PerformanceRecord> transactions = 
+                    includeApplid(r110.mnProductSection().smfmnprn())
+                        ? r110.performanceRecords()
+                        : Collections.emptyList();
+            return new PreparedRecord(r110, transactions);
+        }
+        
+        List<Object> processTransactions(PreparedRecord prepared) 
+        {
+            Smf110Record r110 = prepared.r110;
+            List<Object> result = new ArrayList<>();
+            for (PerformanceRecord transaction : prepared.transactions)
             {
-                for (PerformanceRecord transaction : r110.performanceRecords())
+                if (includeTransaction(transaction)
+                        && (config.filter == null || config.filter.test(r110, transaction)))
                 {
-                    if (includeTransaction(transaction))
+                    CompositeEntry entry = new CompositeEntry()
+                            .add("time", transaction.getField(Field.STOP))
+                            .add("recordtype", "CICS Transaction")
+                            .add("system", r110.smfsid())
+                            .add("smfmnjbn", r110.mnProductSection().smfmnjbn())
+                            .add("smfmnprn", r110.mnProductSection().smfmnprn())
+                            .add("smfmnspn", r110.mnProductSection().smfmnspn());
+                    if (config.fields != null)
+                    {
+                        // only the selected fields
+                        result.add(config.fields.addFields(entry, transaction));
+                    }
+                    else if (config.serializer != null)
+                    {
+                        // the JSON text is created here, on a worker 
+                        // thread with --threads
+                        result.add(new RawJson(config.serializer.toJson(entry, transaction)));
+                    }
+                    else
                     {
-                        CompositeEntry entry = new CompositeEntry()
-                                .add("time", transaction.getField(Field.STOP))
-                                .add("recordtype", "CICS Transaction")
-                                .add("system", r110.smfsid())
-                                .add("smfmnjbn", r110.mnProductSection().smfmnjbn())
-                                .add("smfmnprn", r110.mnProductSection().smfmnprn())
-                                .add("smfmnspn", r110.mnProductSection().smfmnspn())
-                                .add(transaction);
-                        result.add(entry);
+                        result.add(entry.add(transaction));
                     }
                 }
             }
@@ -193,15 +305,15 @@ public class CicsTransactions
         
         private boolean includeTransaction(PerformanceRecord transaction)
         {
-            if (config.excludeTransactions.contains(transaction.getField(Field.TRAN)))
+            String tran = transaction.getField(Field.TRAN);
+            if (config.excludeTransactions.contains(tran))
             {
                 return false;
             }
             
             // if we include specific transactions, all others are excluded
             if (!config.includeTransactions.isEmpty() 
-                    && !config.includeTransactions
-                        .contains(transaction.getField(Field.TRAN)))
+                    && !config.includeTransactions.contains(tran))
             {
                 return false;
             }
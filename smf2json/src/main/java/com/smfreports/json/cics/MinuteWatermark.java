@@ -0,0 +1,176 @@
+package com.smfreports.json.cics;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.LongFunction;
+
+import org.apache.commons.cli.*;
+
+import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+
+/**
+ * Track the latest minute seen in the transactions, and decide when
+ * the summary groups for earlier minutes can be written.
+ * <p>
+ * Without the --lateness option all groups are kept until the end of
+ * the data. With --lateness=n, the groups for a minute are written and
+ * released when a transaction arrives for a minute more than n minutes
+ * later. Memory use depends on the lateness window instead of the time
+ * span of the input data, and output is written while the data is read.
+ * <p>
+ * A transaction that arrives after its minute was written, e.g. from a
+ * system whose SMF data was delayed by more than the lateness, starts a
+ * new group which is written with the next minute. The output will
+ * then have more than one group for the same key and minute, so
+ * consumers of the data should add the values for matching keys.
+ * <p>
+ * processRecord may be called on multiple threads. Threads adding
+ * transactions hold the add lock (a shared read lock), and groups are
+ * removed for writing while holding the exclusive write lock, so no
+ * thread is updating a group while it is removed.
+ */
+final class MinuteWatermark
+{
+    /**
+     * Add the --lateness option to the command line options.
+     * @param cli the Smf2JsonCLI instance
+     */
+    static void addOptions(Smf2JsonCLI cli)
+    {
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("lateness")
+                    .hasArg(true)
+                    .desc("write each minute's groups when data arrives this many minutes later, "
+                            + "instead of at the end of the data")
+                    .build());
+    }
+
+    /**
+     * Create a MinuteWatermark using the --lateness option.
+     * @param cli the Smf2JsonCLI instance
+     * @param args the command line arguments
+     * @return a MinuteWatermark
+     */
+    static MinuteWatermark create(Smf2JsonCLI cli, String[] args)
+    {
+        CommandLine commandLine = cli.commandLine(args);
+        if (!commandLine.hasOption("lateness"))
+        {
+            return new MinuteWatermark(-1);
+        }
+        try
+        {
+            return new MinuteWatermark(Long.parseLong(commandLine.getOptionValue("lateness")));
+        }
+        catch (NumberFormatException ex)
+        {
+            System.err.println("Failed to parse lateness option: " + ex.toString());
+            System.exit(0);
+            return null;
+        }
+    }
+
+    private final long lateness;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong latestMinute = new AtomicLong(Long.MIN_VALUE);
+    private volatile long writtenBefore = Long.MIN_VALUE;
+
+    private final LongAdder lateTransactions = new LongAdder();
+    private long windows = 0;
+
+    private MinuteWatermark(long lateness)
+    {
+        this.lateness = lateness;
+    }
+
+    /**
+     * The lock to hold while adding transactions to groups.
+     * @return the add lock
+     */
+    Lock addLock()
+    {
+        return lock.readLock();
+    }
+
+    /**
+     * Record the minute of a transaction. Call while holding the add
+     * lock.
+     * @param minute the transaction minute from TransactionKey.minute()
+     */
+    void add(long minute)
+    {
+        if (lateness < 0)
+        {
+            return;
+        }
+        if (minute < writtenBefore)
+        {
+            lateTransactions.increment();
+        }
+        if (minute > latestMinute.get())
+        {
+            latestMinute.accumulateAndGet(minute, Math::max);
+        }
+    }
+
+    /**
+     * Write groups if the latest minute has moved past the lateness
+     * window. Call after releasing the add lock.
+     *
+     * @param removeBefore a function that removes the groups before the
+     * specified minute and returns the output entries
+     * @return the output entries, or an empty list if it is not time to
+     * write any groups
+     */
+    List<Object> writeReady(LongFunction<List<Object>> removeBefore)
+    {
+        long latest = latestMinute.get();
+        if (lateness < 0 || latest == Long.MIN_VALUE || latest - lateness <= writtenBefore)
+        {
+            return Collections.emptyList();
+        }
+        lock.writeLock().lock();
+        try
+        {
+            // check again, another thread might have written the groups
+            long cutoff = latestMinute.get() - lateness;
+            if (cutoff <= writtenBefore)
+            {
+                return Collections.emptyList();
+            }
+            writtenBefore = cutoff;
+            List<Object> result = removeBefore.apply(cutoff);
+            if (!result.isEmpty())
+            {
+                windows++;
+            }
+            return result;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Print information about the groups written before the end of the
+     * data.
+     */
+    void printStatistics()
+    {
+        if (lateness < 0)
+        {
+            return;
+        }
+        System.err.format("Groups written %d times before end of data, lateness %d minute(s)%n",
+                windows, lateness);
+        if (lateTransactions.sum() > 0)
+        {
+            System.err.format("%d transactions arrived after their minute was written, "
+                    + "written in additional groups%n",
+                    lateTransactions.sum());
+        }
+    }
+}
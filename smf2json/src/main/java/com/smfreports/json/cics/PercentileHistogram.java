@@ -0,0 +1,197 @@
+package com.smfreports.json.cics;
+
+/**
+ * A histogram to calculate approximate percentiles, e.g. transaction
+ * response time and CPU time, without keeping the individual values.
+ * <p>
+ * Values are counted in buckets whose limits increase by a fixed ratio
+ * (the DDSketch method), so a percentile is accurate to within 1% of
+ * the value whether it is 1 millisecond or 10 minutes. Only the range
+ * of buckets between the smallest and largest values is allocated, and
+ * the number of buckets is limited to MAX_BUCKETS. If the limit is
+ * reached the lowest buckets are combined, so high percentiles remain
+ * accurate.
+ * <p>
+ * Histograms can be merged, e.g. histograms collected by different
+ * threads. The class is not thread safe.
+ */
+final class PercentileHistogram
+{
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    /** Values less than this are counted as zero */
+    private static final double MIN_VALUE = 1e-6;
+    private static final int MAX_BUCKETS = 2048;
+    private static final int INITIAL_BUCKETS = 32;
+
+    // counts[i] is the count for bucket index offset + i
+    private long[] counts = null;
+    private int offset = 0;
+    private long zeroCount = 0;
+    private long count = 0;
+    private double max = 0;
+
+    /**
+     * Add a value to the histogram.
+     * @param value the value, e.g. a time in seconds
+     */
+    void add(double value)
+    {
+        count++;
+        if (value > max)
+        {
+            max = value;
+        }
+        if (value < MIN_VALUE)
+        {
+            zeroCount++;
+        }
+        else
+        {
+            increment(bucket(value), 1);
+        }
+    }
+
+    /**
+     * Add the values from another histogram to this histogram.
+     * @param other the other histogram
+     * @return this histogram
+     */
+    PercentileHistogram merge(PercentileHistogram other)
+    {
+        count += other.count;
+        zeroCount += other.zeroCount;
+        max = Math.max(max, other.max);
+        if (other.counts != null)
+        {
+            for (int i = 0; i < other.counts.length; i++)
+            {
+                if (other.counts[i] != 0)
+                {
+                    increment(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The number of values added.
+     * @return the count
+     */
+    long count()
+    {
+        return count;
+    }
+
+    /**
+     * The approximate value at a percentile.
+     * @param percent the percentile, from 0 to 100
+     * @return the value, or 0 if the histogram is empty
+     */
+    double percentile(double percent)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = zeroCount;
+        if (rank <= seen)
+        {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(value(offset + i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Create the percentiles to be written to the output.
+     * @return the percentiles
+     */
+    Percentiles percentiles()
+    {
+        return new Percentiles(this);
+    }
+
+    private static int bucket(double value)
+    {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     * The value for a bucket, chosen so the relative error is the same
+     * for the lowest and highest values in the bucket.
+     */
+    private static double value(int bucket)
+    {
+        return 2 * Math.pow(GAMMA, bucket) / (GAMMA + 1);
+    }
+
+    private void increment(int bucket, long n)
+    {
+        if (counts == null)
+        {
+            counts = new long[INITIAL_BUCKETS];
+            offset = bucket - INITIAL_BUCKETS / 2;
+        }
+        else if (bucket < offset || bucket >= offset + counts.length)
+        {
+            grow(bucket);
+        }
+        // bucket can be below the range if the lowest buckets were combined
+        counts[Math.max(bucket, offset) - offset] += n;
+    }
+
+    private void grow(int bucket)
+    {
+        int low = Math.min(bucket, offset);
+        int high = Math.max(bucket, offset + counts.length - 1);
+        int length = Math.min(MAX_BUCKETS, Math.max(high - low + 1, counts.length * 2));
+        // leave space for more buckets in the direction we are growing,
+        // if the length is limited this drops the lowest buckets
+        int newOffset = bucket < offset
+                ? high - length + 1
+                : Math.max(low, high - length + 1);
+
+        long[] newCounts = new long[length];
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (counts[i] != 0)
+            {
+                newCounts[Math.max(offset + i, newOffset) - newOffset] += counts[i];
+            }
+        }
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    /**
+     * Percentiles from a histogram, in a format to be written to JSON
+     */
+    static class Percentiles
+    {
+        Percentiles(PercentileHistogram histogram)
+        {
+            p50 = histogram.percentile(50);
+            p90 = histogram.percentile(90);
+            p95 = histogram.percentile(95);
+            p99 = histogram.percentile(99);
+            max = histogram.max;
+        }
+
+        final double p50;
+        final double p90;
+        final double p95;
+        final double p99;
+        final double max;
+    }
+}
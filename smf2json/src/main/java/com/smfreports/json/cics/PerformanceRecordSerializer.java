@@ -0,0 +1,304 @@
+package com.smfreports.json.cics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import com.blackhillsoftware.json.util.CompositeEntry;
+import com.blackhillsoftware.smf.cics.monitoring.*;
+
+/**
+ * Write CICS performance records (transactions) to JSON using a plan
+ * created once for each CICS dictionary, instead of Gson looking up
+ * the adapter and checking the options for each field of every
+ * transaction.
+ * <p>
+ * The plan for a dictionary has the output name and the Gson adapter
+ * for each dictionary entry. The fields are streamed to a JsonWriter
+ * created by the Gson instance, and each value is written by the
+ * adapter Gson uses for its type, so values are formatted by the
+ * EasySMF-JSON adapters. Zero values and empty strings are skipped
+ * unless they are included by the options.
+ * <p>
+ * The JSON must be the same as the Gson output, so each plan is checked
+ * against Gson. The first VERIFY_TRANSACTIONS transactions for each
+ * dictionary are written using both, and the Gson output is returned.
+ * If the JSON is different the plan is not used and all the
+ * transactions for that dictionary are written by Gson, with a message
+ * on stderr. Use SerializerBenchmark to compare the plan with Gson for
+ * every transaction in your data.
+ * <p>
+ * The class is thread safe.
+ */
+public class PerformanceRecordSerializer
+{
+    /** Transactions checked against the Gson output for each dictionary */
+    private static final int VERIFY_TRANSACTIONS = 1000;
+
+    // The plans are cached for each dictionary returned by
+    // PerformanceRecord.getDictionary(), the same as CicsFieldProjection.
+    private static final int MAX_DICTIONARIES = 1000;
+
+    private final Gson gson;
+    private final boolean includeZeroValues;
+    private final boolean includeEmptyStrings;
+    private final Map<Object, Plan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * Create a PerformanceRecordSerializer. The options must be the
+     * same as the options used to create the Gson instance.
+     *
+     * @param gson the Gson instance from EasySmfGsonBuilder
+     * @param includeZeroValues the EasySmfGsonBuilder includeZeroValues option
+     * @param includeEmptyStrings the EasySmfGsonBuilder includeEmptyStrings option
+     */
+    public PerformanceRecordSerializer(Gson gson, boolean includeZeroValues, boolean includeEmptyStrings)
+    {
+        this.gson = gson;
+        this.includeZeroValues = includeZeroValues;
+        this.includeEmptyStrings = includeEmptyStrings;
+    }
+
+    /**
+     * Create the JSON for a transaction, with the fields from a
+     * CompositeEntry before the transaction fields. The result is the
+     * same as Gson's output for the CompositeEntry with the transaction
+     * added.
+     *
+     * @param header the fields to write before the transaction fields.
+     * The transaction is added to it if the JSON is created by Gson.
+     * @param transaction the transaction
+     * @return the JSON text
+     */
+    public String toJson(CompositeEntry header, PerformanceRecord transaction)
+    {
+        Plan plan = plan(transaction);
+        if (plan.failed)
+        {
+            return gson.toJson(header.add(transaction));
+        }
+
+        String result = plan.write(header, transaction);
+        if (plan.verified.get() < VERIFY_TRANSACTIONS)
+        {
+            String expected = gson.toJson(header.add(transaction));
+            if (!expected.equals(result))
+            {
+                // only print the message once per dictionary
+                if (!plan.failed)
+                {
+                    plan.failed = true;
+                    System.err.println("JSON plan for a CICS dictionary with "
+                            + plan.fields.length
+                            + " entries is different from the Gson output, using Gson for its transactions");
+                }
+                return expected;
+            }
+            plan.verified.incrementAndGet();
+        }
+        return result;
+    }
+
+    private Plan plan(PerformanceRecord transaction)
+    {
+        Object dictionary = transaction.getDictionary();
+        Plan result = plans.get(dictionary);
+        if (result == null)
+        {
+            if (plans.size() >= MAX_DICTIONARIES)
+            {
+                plans.clear();
+            }
+            result = plans.computeIfAbsent(dictionary, key -> new Plan(transaction.getDictionary().entries()));
+        }
+        return result;
+    }
+
+    /**
+     * The output names and value adapters for the entries in a
+     * dictionary
+     */
+    private class Plan
+    {
+        private final PlannedField[] fields;
+        private final AtomicInteger verified = new AtomicInteger();
+        private volatile boolean failed = false;
+
+        Plan(List<DictionaryEntry> entries)
+        {
+            fields = new PlannedField[entries.size()];
+            for (int i = 0; i < fields.length; i++)
+            {
+                fields[i] = new PlannedField(entries.get(i));
+            }
+        }
+
+        /**
+         * Write the header object, and continue the same object with
+         * the transaction fields. Everything is written to one
+         * StringBuilder so the text is only copied to create the
+         * result.
+         */
+        String write(CompositeEntry header, PerformanceRecord transaction)
+        {
+            StringBuilder json = new StringBuilder(4096);
+            gson.toJson(header, json);
+            // replace the closing brace of the header with the fields
+            // object, then change the opening brace of the fields to
+            // a comma
+            int fieldsStart = json.length() - 1;
+            boolean emptyHeader = fieldsStart == 1;
+            json.setLength(emptyHeader ? 0 : fieldsStart);
+            if (emptyHeader)
+            {
+                fieldsStart = 0;
+            }
+            try
+            {
+                JsonWriter out = gson.newJsonWriter(new StringBuilderWriter(json));
+                out.beginObject();
+                boolean empty = true;
+                for (PlannedField field : fields)
+                {
+                    Object value = transaction.getField(field.entry);
+                    if (include(value))
+                    {
+                        out.name(field.name);
+                        field.adapter(value).write(out, value);
+                        empty = false;
+                    }
+                }
+                out.endObject();
+                out.flush();
+                if (!emptyHeader)
+                {
+                    if (empty)
+                    {
+                        json.setLength(fieldsStart);
+                        json.append('}');
+                    }
+                    else
+                    {
+                        json.setCharAt(fieldsStart, ',');
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // a StringBuilder doesn't throw IOException
+                throw new UncheckedIOException(e);
+            }
+            return json.toString();
+        }
+
+        private boolean include(Object value)
+        {
+            if (value == null)
+            {
+                return false;
+            }
+            if (value instanceof String)
+            {
+                return includeEmptyStrings || !((String) value).isEmpty();
+            }
+            if (includeZeroValues)
+            {
+                return true;
+            }
+            if (value instanceof Number)
+            {
+                return ((Number) value).doubleValue() != 0;
+            }
+            if (value instanceof CicsClock)
+            {
+                CicsClock clock = (CicsClock) value;
+                return clock.timerSeconds() != 0 || clock.count() != 0;
+            }
+            return true;
+        }
+    }
+
+    private class PlannedField
+    {
+        final DictionaryEntry entry;
+        final String name;
+        // The adapter for the type of the last value. The value type
+        // for an entry is normally always the same.
+        private volatile TypedAdapter adapter = null;
+
+        PlannedField(DictionaryEntry entry)
+        {
+            this.entry = entry;
+            this.name = entry.cmodhead().trim();
+        }
+
+        TypeAdapter<Object> adapter(Object value)
+        {
+            TypedAdapter current = adapter;
+            if (current == null || current.type != value.getClass())
+            {
+                current = new TypedAdapter(value.getClass());
+                adapter = current;
+            }
+            return current.adapter;
+        }
+    }
+
+    private class TypedAdapter
+    {
+        final Class<?> type;
+        final TypeAdapter<Object> adapter;
+
+        @SuppressWarnings("unchecked")
+        TypedAdapter(Class<?> type)
+        {
+            this.type = type;
+            this.adapter = (TypeAdapter<Object>) gson.getAdapter(type);
+        }
+    }
+
+    /**
+     * A Writer that appends to a StringBuilder. StringWriter uses a
+     * synchronized StringBuffer.
+     */
+    private static class StringBuilderWriter extends Writer
+    {
+        private final StringBuilder text;
+
+        StringBuilderWriter(StringBuilder text)
+        {
+            this.text = text;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length)
+        {
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void write(int c)
+        {
+            text.append((char) c);
+        }
+
+        @Override
+        public void write(String string, int offset, int length)
+        {
+            text.append(string, offset, offset + length);
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
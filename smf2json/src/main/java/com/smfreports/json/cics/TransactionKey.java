@@ -0,0 +1,170 @@
+package com.smfreports.json.cics;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+import com.blackhillsoftware.json.util.HashKey;
+import com.blackhillsoftware.smf.cics.monitoring.PerformanceRecord;
+import com.blackhillsoftware.smf.cics.monitoring.fields.Field;
+
+/**
+ * The key used to group transactions in the CICS transaction summaries:
+ * APPLIDs, minute, TRAN, TTYPE, RTYPE, PGMNAME, SRVCLSNM, RPTCLSNM and
+ * TCLSNAME.
+ * <p>
+ * Creating a HashKey for every transaction allocates a number of objects
+ * and truncates the STOP time and trims RTYPE, even though nearly all
+ * transactions belong to a group that already exists. This key keeps
+ * references to the field values, the minute as a long and a precomputed
+ * hash code. RTYPE is trimmed when it is different from the value in the
+ * previous transaction, so it is grouped the same way as the HashKey.
+ * Each thread sets the values in a reusable key to look up the map, and
+ * only copies the key when a new group is created. The HashKey for the
+ * JSON output is created once per group by toHashKey.
+ * <p>
+ * A key is mutable and not thread safe. Keys used in a map must not be
+ * changed - use copy to create the key for a new map entry.
+ */
+final class TransactionKey
+{
+    private String smfmnprn;
+    private String smfmnspn;
+    private long minute;
+    private ZonedDateTime stop;
+    private String tran;
+    private String ttype;
+    private String rtype;
+    /** The untrimmed RTYPE that rtype was created from */
+    private String rtypeUntrimmed;
+    private String pgmname;
+    private String srvclsnm;
+    private String rptclsnm;
+    private String tclsname;
+    private int hash;
+
+    /**
+     * Set the key values from a transaction.
+     * @param smfmnprn the generic APPLID from the record
+     * @param smfmnspn the specific APPLID from the record
+     * @param transaction the transaction
+     * @return this key
+     */
+    TransactionKey set(String smfmnprn, String smfmnspn, PerformanceRecord transaction)
+    {
+        this.smfmnprn = smfmnprn;
+        this.smfmnspn = smfmnspn;
+        stop = transaction.getField(Field.STOP);
+        minute = Math.floorDiv(stop.toEpochSecond(), 60);
+        tran = transaction.getField(Field.TRAN);
+        ttype = transaction.getField(Field.TTYPE);
+        String untrimmed = transaction.getField(Field.RTYPE);
+        if (!untrimmed.equals(rtypeUntrimmed))
+        {
+            rtypeUntrimmed = untrimmed;
+            rtype = untrimmed.trim();
+        }
+        pgmname = transaction.getField(Field.PGMNAME);
+        srvclsnm = transaction.getField(Field.SRVCLSNM);
+        rptclsnm = transaction.getField(Field.RPTCLSNM);
+        tclsname = transaction.getField(Field.TCLSNAME);
+
+        int h = Long.hashCode(minute);
+        h = 31 * h + smfmnprn.hashCode();
+        h = 31 * h + smfmnspn.hashCode();
+        h = 31 * h + tran.hashCode();
+        h = 31 * h + ttype.hashCode();
+        h = 31 * h + rtype.hashCode();
+        h = 31 * h + pgmname.hashCode();
+        h = 31 * h + srvclsnm.hashCode();
+        h = 31 * h + rptclsnm.hashCode();
+        h = 31 * h + tclsname.hashCode();
+        hash = h;
+        return this;
+    }
+
+    /**
+     * The minute of the STOP time.
+     * @return minutes since the epoch
+     */
+    long minute()
+    {
+        return minute;
+    }
+
+    /**
+     * Create a copy of this key, to be added to a map.
+     * @return a new key with the same values
+     */
+    TransactionKey copy()
+    {
+        TransactionKey copy = new TransactionKey();
+        copy.smfmnprn = smfmnprn;
+        copy.smfmnspn = smfmnspn;
+        copy.minute = minute;
+        copy.stop = stop;
+        copy.tran = tran;
+        copy.ttype = ttype;
+        copy.rtype = rtype;
+        copy.pgmname = pgmname;
+        copy.srvclsnm = srvclsnm;
+        copy.rptclsnm = rptclsnm;
+        copy.tclsname = tclsname;
+        copy.hash = hash;
+        return copy;
+    }
+
+    /**
+     * Create a HashKey with the key values for the JSON output.
+     * The names and values are the same as the HashKey previously
+     * created for each transaction.
+     * @return a HashKey
+     */
+    HashKey toHashKey()
+    {
+        return HashKey
+                .of("smfmnprn", smfmnprn)
+                .and("smfmnspn", smfmnspn)
+                .and("minute", stop.truncatedTo(ChronoUnit.MINUTES))
+                .and("tran", tran)
+                .and("ttype", ttype)
+                .and("rtype", rtype)
+                .and("pgmname", pgmname)
+                .and("srvclsnm", srvclsnm)
+                .and("rptclsnm", rptclsnm)
+                .and("tclsname", tclsname)
+                ;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof TransactionKey))
+        {
+            return false;
+        }
+        TransactionKey other = (TransactionKey) obj;
+        // compare the hash and minute first, they are the cheapest
+        // to compare and most likely to be different
+        return hash == other.hash
+                && minute == other.minute
+                && tran.equals(other.tran)
+                && smfmnspn.equals(other.smfmnspn)
+                && smfmnprn.equals(other.smfmnprn)
+                && pgmname.equals(other.pgmname)
+                && ttype.equals(other.ttype)
+                && rtype.equals(other.rtype)
+                && srvclsnm.equals(other.srvclsnm)
+                && rptclsnm.equals(other.rptclsnm)
+                && tclsname.equals(other.tclsname);
+    }
+}
@@ -7,6 +7,7 @@ import com.blackhillsoftware.json.util.CompositeEntry;
 import com.blackhillsoftware.smf.SmfRecord;
 import com.blackhillsoftware.smf.smf30.*;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the major sections from SMF 30 job and step end records
@@ -24,6 +25,8 @@ public class StepAndJobEnd
                 .includeRecords(30,4)
                 .includeRecords(30,5)
                 .description("Format SMF 30 job and step end records");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             .includeZeroValues(false)
@@ -57,7 +60,10 @@ public class StepAndJobEnd
             .exclude("smf30tep") // use smf30tex
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
@@ -10,6 +10,7 @@ import com.blackhillsoftware.smf.smf98.zos.AddressSpaceConsumption;
 import com.blackhillsoftware.smf.smf98.zos.AsidInfo;
 import com.blackhillsoftware.smf.smf98.zos.ExecutionEfficiency;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the Execution Efficiency data from Address Space Consumption 
@@ -27,6 +28,8 @@ public class AscExecutionEfficiency
         Smf2JsonCLI cli = Smf2JsonCLI.create()
                 .includeRecords(98,1)
                 .description("Format SMF 98 Execution Efficiency Sections from Address Space Consumption Sections");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             //.setPrettyPrinting()
@@ -51,7 +54,10 @@ public class AscExecutionEfficiency
             
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
@@ -10,6 +10,7 @@ import com.blackhillsoftware.smf.smf98.zos.AddressSpaceConsumption;
 import com.blackhillsoftware.smf.smf98.zos.AsidInfo;
 import com.blackhillsoftware.smf.smf98.zos.WorkUnit;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the Work Unit data from Address Space Consumption 
@@ -27,6 +28,8 @@ public class AscWorkUnit
         Smf2JsonCLI cli = Smf2JsonCLI.create()
                 .includeRecords(98,1)
                 .description("Format SMF 98 Work Unit Sections from Address Space Consumption Sections");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             //.setPrettyPrinting()
@@ -49,7 +52,10 @@ public class AscWorkUnit
             
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
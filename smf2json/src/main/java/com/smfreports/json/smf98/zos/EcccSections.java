@@ -7,6 +7,7 @@ import com.blackhillsoftware.json.util.CompositeEntry;
 import com.blackhillsoftware.smf.SmfRecord;
 import com.blackhillsoftware.smf.smf98.*;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the External CPU Configuration Counter (ECCC) 
@@ -24,6 +25,8 @@ public class EcccSections
         Smf2JsonCLI cli = Smf2JsonCLI.create()
                 .includeRecords(98,1)
                 .description("Format SMF 98 ECCC Section");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             //.setPrettyPrinting()     
@@ -42,7 +45,10 @@ public class EcccSections
             
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
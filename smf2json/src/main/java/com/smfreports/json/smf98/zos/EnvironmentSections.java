@@ -8,6 +8,7 @@ import com.blackhillsoftware.smf.SmfRecord;
 import com.blackhillsoftware.smf.smf98.*;
 import com.blackhillsoftware.smf.smf98.zos.*;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the Environmental Section 
@@ -25,6 +26,8 @@ public class EnvironmentSections
         Smf2JsonCLI cli = Smf2JsonCLI.create()
                 .includeRecords(98,1)
                 .description("Format SMF 98 Environment Section");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             //.setPrettyPrinting()     
@@ -51,7 +54,10 @@ public class EnvironmentSections
             
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
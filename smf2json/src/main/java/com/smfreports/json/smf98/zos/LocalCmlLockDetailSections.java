@@ -9,6 +9,7 @@ import com.blackhillsoftware.smf.smf98.*;
 import com.blackhillsoftware.smf.smf98.zos.AsidInfo;
 import com.blackhillsoftware.smf.smf98.zos.LockLocalCmlDetail;
 import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
 
 /**
  * Format the Local and CML Lock detail data 
@@ -26,6 +27,8 @@ public class LocalCmlLockDetailSections
         Smf2JsonCLI cli = Smf2JsonCLI.create()
                 .includeRecords(98,1)
                 .description("Format SMF 98 Local or CML Lock Detail Sections");
+        OrderedParallelClient.addOptions(cli);
+        CompressedJsonOutput.addOptions(cli);
         
         cli.easySmfGsonBuilder()
             //.setPrettyPrinting()
@@ -48,7 +51,10 @@ public class LocalCmlLockDetailSections
             
             ;
                         
-        cli.start(new CliClient(), args);
+        cli.start(
+                CompressedJsonOutput.create(cli, args, 
+                        OrderedParallelClient.create(cli, args, new CliClient())), 
+                args);
     }
 
     private static class CliClient implements Smf2JsonCLI.Client
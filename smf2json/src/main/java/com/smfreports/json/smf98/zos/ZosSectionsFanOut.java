@@ -0,0 +1,285 @@
+package com.smfreports.json.smf98.zos;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+import org.apache.commons.cli.*;
+
+import com.google.gson.Gson;
+import com.blackhillsoftware.json.util.CompositeEntry;
+import com.blackhillsoftware.smf.SmfRecord;
+import com.blackhillsoftware.smf.smf98.*;
+import com.blackhillsoftware.smf.smf98.zos.*;
+import com.blackhillsoftware.smf2json.cli.Smf2JsonCLI;
+import com.smfreports.json.*;
+
+/**
+ * Format all the section types in SMF 98 subtype 1 (z/OS) records
+ * in a single pass, writing each section type to its own file.
+ * <p>
+ * The other programs in this package each read the SMF data to write
+ * one section type. This program reads each record once, and writes
+ * the same JSON as those programs to files named prefix-section.json
+ * e.g. prefix-spinlock-detail.json. Each file has its own buffer and
+ * writer thread.
+ * <p>
+ * Use --sections to write a subset of the section types.
+ * <p>
+ * This class uses the Smf2JsonCLI class to provide a command line
+ * interface to handle input specified by command line options and
+ * generate the JSON. The JSON is written to the section files, not
+ * to the Smf2JsonCLI output.
+ *
+ */
+public class ZosSectionsFanOut
+{
+    private static final Map<String, Function<Smf98s1Record, List<Object>>> SECTIONS = new LinkedHashMap<>();
+    static
+    {
+        SECTIONS.put("environment", r98 -> single(r98, r98.environmentalSection()));
+        SECTIONS.put("utilization", r98 -> single(r98, r98.utilizationSection()));
+        SECTIONS.put("eccc", r98 -> single(r98, r98.ecccSection()));
+        SECTIONS.put("spinlock-summary", r98 -> single(r98, r98.spinLockSummary()));
+        SECTIONS.put("spinlock-detail", r98 -> each(r98, r98.spinLockDetails()));
+        SECTIONS.put("susplock-summary", r98 -> each(r98, r98.suspendLockSummary()));
+        SECTIONS.put("susplock-detail", r98 -> each(r98, r98.suspendLockDetail()));
+        SECTIONS.put("localcml-lock-detail", r98 -> each(r98, r98.lockLocalCmlDetail()));
+        SECTIONS.put("wu-priority-bucket", r98 -> each(r98, r98.workUnitPriorityBuckets()));
+        SECTIONS.put("asc-execution-efficiency", r98 -> addressSpace(r98, AddressSpaceConsumption::executionEfficiency));
+        SECTIONS.put("asc-workunit", r98 -> addressSpace(r98, AddressSpaceConsumption::workUnit));
+        SECTIONS.put("asc-spinlock", r98 -> addressSpace(r98, AddressSpaceConsumption::addressSpaceSpinLock));
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Smf2JsonCLI cli = Smf2JsonCLI.create()
+                .includeRecords(98,1)
+                .description("Format all SMF 98 z/OS sections, writing each section type to a separate file");
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("output-prefix")
+                    .hasArg(true)
+                    .desc("write each section type to a file named prefix-section.json")
+                    .build());
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("sections")
+                    .hasArg(true)
+                    .desc("comma separated list of section types to write, default all: "
+                            + String.join(",", SECTIONS.keySet()))
+                    .build());
+        cli.options().addOption(
+                Option.builder()
+                    .longOpt("gzip")
+                    .desc("write gzip compressed files, named prefix-section.json.gz")
+                    .build());
+
+        // The configuration from all the section programs. The flags
+        // formatting for each class is the same in every program.
+        cli.easySmfGsonBuilder()
+            //.setPrettyPrinting()
+
+            // we calculate interval start/end values using the Context Summary section
+            .exclude(IdentificationSection.class, "smf98intervalEnd")
+            .exclude(IdentificationSection.class, "smf98intervalEndEtod")
+            .exclude(IdentificationSection.class, "smf98intervalStart")
+            .exclude(IdentificationSection.class, "smf98intervalStartEtod")
+            .exclude(IdentificationSection.class, "smf98rsd")
+            .exclude(IdentificationSection.class, "smf98rst")
+
+            // other uninteresting fields
+            .exclude(IdentificationSection.class, "smf98jbn")
+            .exclude(IdentificationSection.class, "smf98stp")
+
+            // show flags in hex
+            .exclude(AsidInfo.class, "flags")
+            .calculateEntry(AsidInfo.class, "flags", x -> String.format("0x%02X", x.flags()))
+            .exclude(ExecutionEfficiency.class, "flags")
+            .calculateEntry(ExecutionEfficiency.class, "flags", x -> String.format("0x%02X", x.flags()))
+            .exclude(EnvironmentalSection.class, "flagsByte1")
+            .exclude(EnvironmentalSection.class, "flagsByte2")
+            .exclude(EnvironmentalSection.class, "flagsByte3")
+            .calculateEntry(EnvironmentalSection.class, "flagsByte1", x -> String.format("0x%02X", x.flagsByte1()))
+            .calculateEntry(EnvironmentalSection.class, "flagsByte2", x -> String.format("0x%02X", x.flagsByte2()))
+            .calculateEntry(EnvironmentalSection.class, "flagsByte3", x -> String.format("0x%02X", x.flagsByte3()))
+            ;
+
+        CommandLine commandLine = cli.commandLine(args);
+        if (!commandLine.hasOption("output-prefix"))
+        {
+            System.err.println("--output-prefix is required");
+            System.exit(0);
+        }
+
+        List<String> sections = new ArrayList<>(SECTIONS.keySet());
+        if (commandLine.hasOption("sections"))
+        {
+            sections.clear();
+            for (String name : commandLine.getOptionValue("sections").split(","))
+            {
+                if (!SECTIONS.containsKey(name.trim()))
+                {
+                    System.err.println("Unknown section: " + name.trim()
+                        + ", valid sections are: " + String.join(",", SECTIONS.keySet()));
+                    System.exit(0);
+                }
+                sections.add(name.trim());
+            }
+        }
+
+        cli.start(new CliClient(cli, sections,
+                commandLine.getOptionValue("output-prefix"),
+                commandLine.hasOption("gzip")),
+                args);
+    }
+
+    private static class CliClient implements Smf2JsonCLI.Client
+    {
+        private final Smf2JsonCLI cli;
+        private final List<Function<Smf98s1Record, List<Object>>> extractors = new ArrayList<>();
+        private final List<JsonFileSink> sinks = new ArrayList<>();
+
+        private Gson gson = null;
+        private long records = 0;
+        private long startNanos = 0;
+
+        CliClient(Smf2JsonCLI cli, List<String> sections, String prefix, boolean gzip)
+        {
+            this.cli = cli;
+            for (String section : sections)
+            {
+                extractors.add(SECTIONS.get(section));
+                sinks.add(new JsonFileSink(
+                        Paths.get(prefix + "-" + section + (gzip ? ".json.gz" : ".json")),
+                        gzip));
+            }
+        }
+
+        @Override
+        public List<Object> processRecord(SmfRecord record)
+        {
+            if (gson == null)
+            {
+                gson = cli.easySmfGsonBuilder().createGson();
+                startNanos = System.nanoTime();
+            }
+            records++;
+
+            Smf98s1Record r98 = Smf98s1Record.from(record);
+            for (int i = 0; i < extractors.size(); i++)
+            {
+                List<Object> entries = extractors.get(i).apply(r98);
+                for (Object entry : entries)
+                {
+                    sinks.get(i).write(gson, entry);
+                }
+            }
+            // everything is written to the section files
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<Object> onEndOfData()
+        {
+            // close every sink even if one fails, so the other files
+            // are complete, then report the first failure
+            RuntimeException failure = null;
+            for (JsonFileSink sink : sinks)
+            {
+                try
+                {
+                    sink.close();
+                }
+                catch (RuntimeException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e;
+                    }
+                    else
+                    {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+
+            double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+            System.err.format("%d records read once for %d section types in %.1f seconds%n",
+                    records, sinks.size(), seconds);
+            for (JsonFileSink sink : sinks)
+            {
+                System.err.format("%-40s %10d entries %10.1f MB%n",
+                        sink.path(), sink.entries(), sink.bytes() / (1024.0 * 1024));
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * The entry for a section that occurs at most once in a record
+     */
+    private static List<Object> single(Smf98s1Record r98, Object section)
+    {
+        return section != null
+                ? Collections.singletonList(header(r98).add(section))
+                : Collections.emptyList();
+    }
+
+    /**
+     * An entry for each section in a list
+     */
+    private static List<Object> each(Smf98s1Record r98, List<?> sections)
+    {
+        List<Object> result = new ArrayList<>(sections.size());
+        for (Object section : sections)
+        {
+            result.add(header(r98).add(section));
+        }
+        return result;
+    }
+
+    /**
+     * An entry for each section under the Address Space Consumption
+     * sections, with the priority bucket, processor class and sub bucket
+     * from the Address Space Consumption section
+     */
+    private static List<Object> addressSpace(Smf98s1Record r98,
+            Function<AddressSpaceConsumption, List<?>> sections)
+    {
+        List<Object> result = new ArrayList<>();
+        for (AddressSpaceConsumption consume: r98.addressSpaceConsumption())
+        {
+            for (Object section : sections.apply(consume))
+            {
+                result.add(header(r98)
+                        .add("priorityBucket", consume.priorityBucket())
+                        .add("procClass", consume.procClass())
+                        .add("subBucket", consume.subBucket())
+                        .add(section));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The common fields written for every section
+     */
+    private static CompositeEntry header(Smf98s1Record r98)
+    {
+        return new CompositeEntry()
+                .add("smfid", r98.system())
+                .add("intervalStart",
+                        r98.identificationSection().smf98intervalStart()
+                            .atOffset(r98.contextSummarySection().cvtldto()))
+                .add("intervalEnd",
+                        r98.identificationSection().smf98intervalEnd()
+                            .atOffset(r98.contextSummarySection().cvtldto()))
+                .add(r98.identificationSection());
+    }
+}